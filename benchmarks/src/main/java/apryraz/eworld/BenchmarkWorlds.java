@@ -0,0 +1,84 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Seeded worlds and sequences of steps shared by all the benchmarks, so
+ * that every run measures exactly the same layouts.
+ **/
+public class BenchmarkWorlds {
+
+    /**
+     * Seed of all the random layouts
+     **/
+    public static final long SEED = 42;
+
+    /**
+     * Console of the benchmark, while the agents write to a discarded stream
+     **/
+    static PrintStream console;
+
+    /**
+     * Write a file with count random positions of a wDim x wDim world, in
+     * the format of the steps and envelopes files.
+     *
+     * @param prefix prefix of the temporary file name
+     * @param count  number of positions
+     * @param wDim   dimension of the world
+     * @param seed   seed of the random positions
+     * @return the name of the file, deleted when the JVM exits
+     * @throws IOException IoException error
+     **/
+    public static String randomPositionsFile(String prefix, int count, int wDim, long seed) throws IOException {
+        File file = File.createTempFile(prefix, ".txt");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+        try (PrintWriter out = new PrintWriter(file)) {
+            for (int k = 0; k < count; k++) {
+                out.print((random.nextInt(wDim) + 1) + "," + (random.nextInt(wDim) + 1));
+                out.print(k + 1 < count ? " " : "\n");
+            }
+        }
+        return file.getPath();
+    }
+
+    /**
+     * Make a seeded environment with the given number of envelopes. It
+     * writes no output, and neither do the agents created with it.
+     *
+     * @param wDim      dimension of the world
+     * @param envelopes number of envelopes
+     * @return the environment
+     * @throws IOException IoException error
+     **/
+    public static EnvelopeWorldEnv environment(int wDim, int envelopes) throws IOException {
+        return new EnvelopeWorldEnv(wDim, randomPositionsFile("envelopes", envelopes, wDim, SEED),
+                OutputSink.silent());
+    }
+
+    /**
+     * Discard everything the agents write to the console, as printing
+     * is not what the benchmarks measure.
+     **/
+    public static void silenceConsole() {
+        if (console == null) {
+            console = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+    }
+
+    /**
+     * Restore the console discarded by silenceConsole.
+     **/
+    public static void restoreConsole() {
+        if (console != null) {
+            System.setOut(console);
+            console = null;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package apryraz.eworld;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main program of the benchmarks jar. It accepts the usual JMH command
+ * line options (for example, a regular expression with the benchmarks to
+ * run, or -p wDim=25 to run only one world size), and always adds the GC
+ * profiler, so every result comes with its allocation rate.
+ **/
+public class EWorldBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,40 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.sat4j.specs.*;
+
+/**
+ * Cost of building the formula with the rules of the world.
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GammaBenchmark {
+
+    @Param({"5", "25", "100", "250"})
+    int wDim;
+
+    EnvelopeFinder finder;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkWorlds.silenceConsole();
+        finder = new EnvelopeFinder(wDim, BenchmarkWorlds.environment(wDim, 1), InferenceMode.BITSET);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkWorlds.restoreConsole();
+    }
+
+    @Benchmark
+    public ISolver buildGamma() throws IOException, ContradictionException {
+        return finder.buildGamma();
+    }
+}
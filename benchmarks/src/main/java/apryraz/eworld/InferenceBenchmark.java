@@ -0,0 +1,52 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.sat4j.specs.*;
+
+/**
+ * Cost of the inference questions after some steps of evidence.
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class InferenceBenchmark {
+
+    @Param({"5", "25", "100", "250"})
+    int wDim;
+
+    @Param({"FULL", "BACKBONE"})
+    InferenceMode mode;
+
+    EnvelopeFinder finder;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, ContradictionException, TimeoutException {
+        BenchmarkWorlds.silenceConsole();
+        EnvelopeWorldEnv env = BenchmarkWorlds.environment(wDim, Math.max(1, wDim / 5));
+        finder = new EnvelopeFinder(wDim, env, mode);
+        finder.loadListOfSteps(10, BenchmarkWorlds.randomPositionsFile("steps", 10, wDim, BenchmarkWorlds.SEED));
+        for (int i = 0; i < 10; i++) {
+            finder.addLastFutureClausesToPastClauses();
+            finder.processMoveAnswer(finder.moveToNext());
+            finder.processDetectorSensorAnswer(finder.DetectsAt());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkWorlds.restoreConsole();
+    }
+
+    @Benchmark
+    public EFState performInferenceQuestions() throws IOException, ContradictionException, TimeoutException {
+        finder.performInferenceQuestions();
+        finder.futureToPast.clear();  // do not accumulate conclusions between invocations
+        return finder.getState();
+    }
+}
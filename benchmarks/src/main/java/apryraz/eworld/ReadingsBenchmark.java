@@ -0,0 +1,72 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of computing the sensor readings of a position in the environment,
+ * for a growing number of envelopes.
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadingsBenchmark {
+
+    @Param({"5", "25", "100", "250"})
+    int wDim;
+
+    @Param({"1", "100", "10000", "1000000"})
+    int envelopes;
+
+    EnvelopeWorldEnv env;
+    Position[] positions;
+    BinaryMessage request = new BinaryMessage();
+    BinaryMessage answer = new BinaryMessage();
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkWorlds.silenceConsole();
+        env = BenchmarkWorlds.environment(wDim, envelopes);
+        Random random = new Random(BenchmarkWorlds.SEED);
+        positions = new Position[1024];
+        for (int k = 0; k < positions.length; k++) {
+            positions[k] = new Position(random.nextInt(wDim) + 1, random.nextInt(wDim) + 1);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkWorlds.restoreConsole();
+    }
+
+    @Benchmark
+    public AMessage getPositionReadings() {
+        AMessage ans = env.getPositionReadings(positions[next]);
+        next = (next + 1) & (positions.length - 1);
+        return ans;
+    }
+
+    @Benchmark
+    public int detectsAtBinary() {
+        Position pos = positions[next];
+        env.acceptMessage(request.set(BinaryMessage.DETECTSAT, pos.x, pos.y, 0), answer);
+        next = (next + 1) & (positions.length - 1);
+        return answer.getReadings();
+    }
+
+    @Benchmark
+    public AMessage detectsAtString() {
+        Position pos = positions[next];
+        AMessage ans = env.acceptMessage(new AMessage("detectsat", Integer.toString(pos.x),
+                Integer.toString(pos.y), ""));
+        next = (next + 1) & (positions.length - 1);
+        return ans;
+    }
+}
@@ -0,0 +1,50 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.sat4j.specs.*;
+
+/**
+ * Cost of adding the evidence of one sensor answer to the formula.
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SensingBenchmark {
+
+    @Param({"5", "25", "100", "250"})
+    int wDim;
+
+    EnvelopeFinder finder;
+    AMessage[] answers;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkWorlds.silenceConsole();
+        EnvelopeWorldEnv env = BenchmarkWorlds.environment(wDim, Math.max(1, wDim / 5));
+        finder = new EnvelopeFinder(wDim, env);
+        finder.loadListOfSteps(256, BenchmarkWorlds.randomPositionsFile("steps", 256, wDim, BenchmarkWorlds.SEED));
+        answers = new AMessage[256];
+        for (int k = 0; k < answers.length; k++) {
+            Position p = finder.listOfSteps.get(k);
+            answers[k] = env.getPositionReadings(p);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkWorlds.restoreConsole();
+    }
+
+    @Benchmark
+    public void processDetectorSensorAnswer() throws IOException, ContradictionException, TimeoutException {
+        finder.processDetectorSensorAnswer(answers[next]);
+        next = (next + 1) & (answers.length - 1);
+    }
+}
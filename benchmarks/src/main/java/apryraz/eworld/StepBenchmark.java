@@ -0,0 +1,50 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.sat4j.specs.*;
+
+/**
+ * Cost of a full step of the agent: past clauses, move, sensing,
+ * inference and printing of the state (to a discarded stream).
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class StepBenchmark {
+
+    @Param({"5", "25", "100", "250"})
+    int wDim;
+
+    @Param({"FULL", "INCREMENTAL"})
+    InferenceMode mode;
+
+    EnvelopeFinder finder;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        BenchmarkWorlds.silenceConsole();
+        EnvelopeWorldEnv env = BenchmarkWorlds.environment(wDim, Math.max(1, wDim / 5));
+        finder = new EnvelopeFinder(wDim, env, mode);
+        finder.loadListOfSteps(1000, BenchmarkWorlds.randomPositionsFile("steps", 1000, wDim, BenchmarkWorlds.SEED));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkWorlds.restoreConsole();
+    }
+
+    @Benchmark
+    public EFState runNextStep() throws IOException, ContradictionException, TimeoutException {
+        if (finder.idNextStep == finder.numMovements) {
+            finder.idNextStep = 0;  // walk the same steps again
+        }
+        finder.runNextStep();
+        return finder.getState();
+    }
+}
@@ -35,7 +35,19 @@ public class AMessage {
      * Show message on screen
      **/
     public void showMessage() {
-        System.out.println("MESSAGE: " + msg[0] + " " + msg[1] + " " + msg[2] + " " + msg[3]);
+        StringBuilder text = new StringBuilder();
+        appendMessage(text);
+        System.out.print(text);
+    }
+
+    /**
+     * Append the line printed by showMessage to the given buffer
+     *
+     * @param text the buffer where the message is rendered
+     **/
+    public void appendMessage(StringBuilder text) {
+        text.append("MESSAGE: ").append(msg[0]).append(' ').append(msg[1]).append(' ')
+                .append(msg[2]).append(' ').append(msg[3]).append(OutputSink.EOL);
     }
 
     /**
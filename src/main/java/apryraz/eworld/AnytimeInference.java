@@ -0,0 +1,280 @@
+package apryraz.eworld;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.specs.*;
+
+/**
+ * Performs the inference questions of the EnvelopeFinder agent within a
+ * time budget per step. The positions pending of checking (the same ones
+ * as in INCREMENTAL mode) are checked nearest to the agent first, until the
+ * budget runs out, and the rest are checked by a background thread between
+ * steps, with the solver of the agent. Every conclusion is a logical
+ * consequence of the formula, so the state of the agent is always sound,
+ * although it may miss conclusions that are still being refined.
+ * <p>
+ * The background thread is stopped at the start of the next step, after
+ * the query it is performing, and its conclusions are then given to the
+ * agent. The positions it did not check remain pending for the next
+ * inference. waitForCompleteKnowledge waits until all the positions are
+ * checked instead.
+ **/
+public class AnytimeInference {
+
+    /**
+     * Default time budget of the inference of a step
+     **/
+    static final long DEFAULT_BUDGET_NANOS = 10_000_000L;
+
+    /**
+     * The agent whose solver, state and pending positions are used
+     **/
+    EnvelopeFinder agent;
+    /**
+     * Time budget of the inference of a step
+     **/
+    long budgetNanos = DEFAULT_BUDGET_NANOS;
+    /**
+     * Lineal indexes of the positions of the last inference, nearest first,
+     * and index of the next one to check
+     **/
+    int[] queue = new int[0];
+    int queueSize, nextCell;
+    /**
+     * Positions found empty by the background thread, number of solver calls
+     * it performed, and the exception that stopped it, if any
+     **/
+    VecInt found = new VecInt();
+    int backgroundCalls;
+    TimeoutException failure;
+    /**
+     * True when the background thread must stop after the current query
+     **/
+    boolean stopRequested;
+    /**
+     * Thread of the refinement, and the refinement running, or null
+     **/
+    ExecutorService background;
+    Future<?> refinement;
+    /**
+     * Statistics of the solver at the end of the last inference, taken
+     * before the refinement starts to use the solver, or null when the
+     * agent does not record metrics
+     **/
+    Map<?, ?> statistics;
+
+    /**
+     * Class constructor
+     *
+     * @param agent the agent whose inference is performed
+     **/
+    public AnytimeInference(EnvelopeFinder agent) {
+        this.agent = agent;
+        background = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "eworld-refinement");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the statistics of the solver at the end of the last
+     * inference, without waiting for the refinement.
+     *
+     * @return the statistics, or null if the agent does not record metrics
+     **/
+    public Map<?, ?> getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Set the time budget of the inference of every step. With a budget of
+     * 0, all the positions are checked in the background.
+     *
+     * @param nanos the budget, in nanoseconds
+     * @throws IllegalArgumentException if the budget is negative
+     **/
+    public void setBudgetNanos(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException(String.format("Inference budget can not be negative. Given %d", nanos));
+        }
+        budgetNanos = nanos;
+    }
+
+    public long getBudgetNanos() {
+        return budgetNanos;
+    }
+
+    /**
+     * Perform the inference of a step: check the pending positions of the
+     * agent nearest first until the budget runs out, and start the
+     * refinement of the rest in the background.
+     *
+     * @throws TimeoutException time out exception
+     **/
+    public void infer() throws TimeoutException {
+        long start = System.nanoTime();
+        stopRefinement();
+        sortPendingCells();
+        while (nextCell < queueSize && System.nanoTime() - start < budgetNanos) {
+            int[] coords = agent.linealToCoord(queue[nextCell++], 0);
+            agent.inferPosition(coords[0], coords[1]);
+        }
+        // The solver can not be read from the agent thread once the refinement runs
+        statistics = agent.metrics != null ? agent.solver.getStat() : null;
+        if (nextCell < queueSize) {
+            stopRequested = false;
+            refinement = background.submit(this::refine);
+        }
+    }
+
+    /**
+     * Stop the refinement after the query it is performing, and give its
+     * conclusions to the agent. The positions not checked become pending
+     * again.
+     *
+     * @throws TimeoutException if the refinement was stopped by a time out
+     **/
+    public void stopRefinement() throws TimeoutException {
+        synchronized (this) {
+            stopRequested = true;
+        }
+        collect();
+    }
+
+    /**
+     * Wait until the refinement checks all the positions, and give its
+     * conclusions to the agent.
+     *
+     * @throws TimeoutException if the refinement was stopped by a time out
+     **/
+    public void waitForCompleteKnowledge() throws TimeoutException {
+        collect();
+    }
+
+    /**
+     * Stop the background thread, after giving its conclusions to the agent.
+     *
+     * @throws TimeoutException if the refinement was stopped by a time out
+     **/
+    public void shutdown() throws TimeoutException {
+        try {
+            stopRefinement();
+        } finally {
+            background.shutdown();
+        }
+    }
+
+    /**
+     * Wait for the refinement to end, and give its conclusions and the
+     * positions not checked to the agent. Its conclusions are counted in
+     * refinementUnsatCalls, not in the counters of the step of the agent.
+     **/
+    void collect() throws TimeoutException {
+        if (refinement != null) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    refinement.get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;  // the solver can not be used until the refinement ends
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException("Inference refinement failed", ex.getCause());
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            refinement = null;
+        }
+        TimeoutException error;
+        synchronized (this) {
+            for (int k = 0; k < found.size(); k++) {
+                int[] coords = agent.linealToCoord(found.get(k), 0);
+                agent.markImpossiblePosition(coords[0], coords[1]);
+            }
+            agent.totalSolverCalls += backgroundCalls;
+            agent.refinementUnsatCalls += found.size();
+            found.clear();
+            backgroundCalls = 0;
+            error = failure;
+            failure = null;
+        }
+        for (int k = nextCell; k < queueSize; k++) {
+            agent.markPendingCell(queue[k]);
+        }
+        queueSize = 0;
+        nextCell = 0;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Move the pending positions of the agent not known to be empty to the
+     * queue, sorted by their distance to the agent (the largest of the
+     * distances in x and y), and then by lineal index.
+     **/
+    void sortPendingCells() {
+        VecInt pending = agent.pendingCells;
+        long[] keys = new long[pending.size()];
+        int count = 0;
+        for (int k = 0; k < pending.size(); k++) {
+            int lineal = pending.get(k);
+            int[] coords = agent.linealToCoord(lineal, 0);
+            if (!agent.efstate.isEmpty(coords[0], coords[1])) {
+                long distance = Math.max(Math.abs(coords[0] - agent.agentX), Math.abs(coords[1] - agent.agentY));
+                keys[count++] = distance * agent.WorldLinealDim + lineal;
+            }
+        }
+        agent.clearPendingCells();
+        Arrays.sort(keys, 0, count);
+        if (queue.length < count) {
+            queue = new int[Math.max(count, 2 * queue.length)];
+        }
+        for (int k = 0; k < count; k++) {
+            queue[k] = (int) (keys[k] % agent.WorldLinealDim);
+        }
+        queueSize = count;
+        nextCell = 0;
+    }
+
+    /**
+     * Check the positions of the queue from nextCell, until all are
+     * checked or the agent asks to stop. Runs in the background thread.
+     **/
+    void refine() {
+        try {
+            while (true) {
+                int lineal;
+                synchronized (this) {
+                    if (stopRequested || nextCell >= queueSize) {
+                        return;
+                    }
+                    lineal = queue[nextCell];
+                }
+                int[] coords = agent.linealToCoord(lineal, 0);
+                boolean empty = agent.entailsNoEnvelope(coords[0], coords[1]);
+                synchronized (this) {
+                    backgroundCalls++;
+                    if (empty) {
+                        found.push(lineal);
+                    }
+                    nextCell++;
+                }
+            }
+        } catch (TimeoutException ex) {
+            synchronized (this) {
+                failure = ex;
+            }
+        }
+    }
+
+}
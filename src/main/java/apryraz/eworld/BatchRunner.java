@@ -0,0 +1,278 @@
+package apryraz.eworld;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs many Envelope World episodes concurrently. Every job of the batch
+ * is a world dimension, a number of steps, a steps file and an envelopes
+ * file, like the arguments of EnvelopeWorld, and is run with its own
+ * EnvelopeWorldEnv and EnvelopeFinder on a fixed pool of threads.
+ * <p>
+ * The manifest of a batch is a text file with one job per line:
+ * "wdim numSteps fileSteps fileEnvelopes". Blank lines and lines starting
+ * with # are ignored.
+ **/
+public class BatchRunner {
+
+    /**
+     * Number of threads that run the jobs
+     **/
+    int numThreads;
+    /**
+     * Inference and formula modes of the agents of all the jobs
+     **/
+    InferenceMode inferenceMode = InferenceMode.INCREMENTAL;
+    GammaMode gammaMode = GammaMode.TEMPLATE;
+    /**
+     * If false, the console output of the agents and environments is discarded
+     **/
+    boolean verbose = false;
+
+    /**
+     * Class constructor
+     *
+     * @param threads number of jobs run at the same time
+     **/
+    public BatchRunner(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(String.format("Number of threads must be at least 1. Given %d", threads));
+        }
+        numThreads = threads;
+    }
+
+    /**
+     * Select the inference and formula modes of the agents. By default,
+     * INCREMENTAL and TEMPLATE, as all the jobs with the same dimension can
+     * share the same GammaTemplate.
+     *
+     * @param mode  inference mode of the agents
+     * @param gamma formula mode of the agents
+     **/
+    public void setModes(InferenceMode mode, GammaMode gamma) {
+        inferenceMode = mode;
+        gammaMode = gamma;
+    }
+
+    /**
+     * Keep or discard the console output of the agents and environments
+     * while the batch runs. It is discarded by default, by giving every
+     * job a SILENT OutputSink.
+     *
+     * @param verbose true to keep the console output
+     **/
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * Load the list of jobs of a manifest file.
+     *
+     * @param manifestFile name of the manifest file
+     * @return the list of jobs, in the order of the file
+     * @throws IOException if the file can not be read or a line is not valid
+     **/
+    public static List<Job> loadManifest(String manifestFile) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(manifestFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 4) {
+                    throw new IOException(String.format("%s:%d: expected 4 fields, found %d",
+                            manifestFile, lineNumber, fields.length));
+                }
+                try {
+                    jobs.add(new Job(jobs.size(), Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                            fields[2], fields[3]));
+                } catch (NumberFormatException ex) {
+                    throw new IOException(String.format("%s:%d: %s", manifestFile, lineNumber, ex.getMessage()));
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Run all the jobs and wait until they finish.
+     *
+     * @param jobs the jobs to run
+     * @return the result of every job, in the same order as jobs
+     * @throws InterruptedException if interrupted while waiting
+     **/
+    public List<Result> run(List<Job> jobs) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>(jobs.size());
+            for (Job job : jobs) {
+                futures.add(executor.submit(() -> runJob(job)));
+            }
+            List<Result> results = new ArrayList<>(jobs.size());
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException ex) {
+                    throw new IllegalStateException(ex.getCause());  // runJob catches everything
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run one job: make the environment and the agent, and execute all
+     * the steps.
+     *
+     * @param job the job to run
+     * @return the result of the job, with the error if it failed
+     **/
+    Result runJob(Job job) {
+        long start = System.nanoTime();
+        Result result = new Result(job);
+        try {
+            EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(job.wDim, job.envelopesFile,
+                    verbose ? new OutputSink() : OutputSink.silent());
+            EnvelopeFinder eAgent = new EnvelopeFinder(job.wDim, envAgent, inferenceMode, gammaMode);
+            try {
+                eAgent.streamListOfSteps(job.numSteps, job.stepsFile);
+                for (int i = 0; i < job.numSteps; i++) {
+                    eAgent.runNextStep();
+                    result.stepsDone++;
+                }
+                result.finalState = eAgent.getState();
+            } finally {
+                eAgent.shutdown();
+            }
+        } catch (Exception ex) {
+            result.error = ex;
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    /**
+     * Run a batch from the command line and print one summary line per job
+     * and the aggregated throughput.
+     *
+     * @param args ...
+     *             arg[0] = manifest file
+     *             arg[1] = number of threads (by default, the available processors)
+     *             -verbose, anywhere, keeps the console output of the agents
+     * @throws IOException          if the manifest can not be read
+     * @throws InterruptedException if interrupted while waiting
+     **/
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> positional = new ArrayList<>();
+        boolean verbose = false;
+        for (String arg : args) {
+            if (arg.equals("-verbose")) {
+                verbose = true;
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() < 1 || positional.size() > 2) {
+            System.err.println("Usage: EnvelopeWorld -batch manifestFile [numThreads] [-verbose]");
+            throw new IllegalArgumentException(String.format("Expected 1 or 2 arguments. Given %d", positional.size()));
+        }
+        int threads = positional.size() > 1 ? Integer.parseInt(positional.get(1))
+                : Runtime.getRuntime().availableProcessors();
+
+        List<Job> jobs = loadManifest(positional.get(0));
+        BatchRunner runner = new BatchRunner(threads);
+        runner.setVerbose(verbose);
+        long start = System.nanoTime();
+        List<Result> results = runner.run(jobs);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("job\twdim\tsteps\tempty\tunknown\tms\tstatus");
+        int failed = 0;
+        for (Result result : results) {
+            System.out.println(result);
+            if (result.error != null) {
+                failed++;
+            }
+        }
+        System.out.printf("BATCH => %d jobs (%d failed) in %.3f s with %d threads: %.1f jobs/sec%n",
+                results.size(), failed, seconds, threads, results.size() / seconds);
+    }
+
+    /**
+     * One episode of a batch
+     **/
+    public static class Job {
+        public final int index, wDim, numSteps;
+        public final String stepsFile, envelopesFile;
+
+        public Job(int index, int wDim, int numSteps, String stepsFile, String envelopesFile) {
+            this.index = index;
+            this.wDim = wDim;
+            this.numSteps = numSteps;
+            this.stepsFile = stepsFile;
+            this.envelopesFile = envelopesFile;
+        }
+    }
+
+    /**
+     * Result of one job of a batch
+     **/
+    public static class Result {
+        public final Job job;
+        /**
+         * Final state of the agent, null if the job failed
+         **/
+        public EFState finalState;
+        /**
+         * Number of steps performed, and time used by the whole job
+         **/
+        public int stepsDone;
+        public long nanos;
+        /**
+         * The exception that stopped the job, or null if it finished
+         **/
+        public Exception error;
+
+        Result(Job job) {
+            this.job = job;
+        }
+
+        /**
+         * Returns the number of positions of the final state marked as
+         * empty, or -1 if the job failed.
+         *
+         * @return number of positions with "X"
+         **/
+        public int emptyPositions() {
+            if (finalState == null) {
+                return -1;
+            }
+            return finalState.emptyCount();
+        }
+
+        /**
+         * Summary line: job, wdim, steps, empty, unknown, ms, status
+         **/
+        @Override
+        public String toString() {
+            int empty = emptyPositions();
+            return String.format("%d\t%d\t%d\t%d\t%d\t%.1f\t%s", job.index, job.wDim, stepsDone,
+                    empty, empty < 0 ? -1 : job.wDim * job.wDim - empty, nanos / 1e6,
+                    error == null ? "OK" : "FAILED " + error);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package apryraz.eworld;
+
+/**
+ * Typed version of the messages exchanged between the agent and the
+ * World interface object: an int opcode, two int coordinates and the
+ * sensor readings as a 5 bit mask. Objects of this class are meant to be
+ * reused, so exchanging messages does not create any object and there is
+ * nothing to parse. AMessage objects can be converted from and to this form.
+ **/
+public class BinaryMessage {
+
+    /**
+     * Message types, with the same meaning as the first field of AMessage
+     **/
+    public static final int NOMESSAGE = 0;
+    public static final int VOIDMSG = 1;
+    public static final int MOVETO = 2;
+    public static final int MOVEDTO = 3;
+    public static final int NOTMOVEDTO = 4;
+    public static final int DETECTSAT = 5;
+
+    /**
+     * Names of the message types, as used in the first field of AMessage
+     **/
+    static final String[] TYPE_NAMES = {"NOMESSAGE", "voidmsg", "moveto", "movedto", "notmovedto", "detectsat"};
+
+    /**
+     * Message type, coordinates, and readings mask: bit r is set if
+     * reading r+1 was detected (only for detectsat answers)
+     **/
+    int type, x, y, readings;
+
+    /**
+     * Class constructor, making an empty NOMESSAGE message
+     **/
+    public BinaryMessage() {
+        type = NOMESSAGE;
+    }
+
+    /**
+     * Set all the fields of the message.
+     *
+     * @param type     message type
+     * @param x        first coordinate
+     * @param y        second coordinate
+     * @param readings readings mask
+     * @return this message
+     **/
+    public BinaryMessage set(int type, int x, int y, int readings) {
+        this.type = type;
+        this.x = x;
+        this.y = y;
+        this.readings = readings;
+        return this;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getReadings() {
+        return readings;
+    }
+
+    /**
+     * Check whether the given reading was detected.
+     *
+     * @param reading index of the reading (0 for reading 1, ..., 4 for reading 5)
+     * @return true if the bit of the reading is set
+     **/
+    public boolean hasReading(int reading) {
+        return (readings & (1 << reading)) != 0;
+    }
+
+    /**
+     * Show message on screen, with the same format as AMessage.showMessage.
+     * The readings are only shown if some bit is set, as the detectsat
+     * messages sent by the agent carry no readings.
+     **/
+    public void showMessage() {
+        StringBuilder text = new StringBuilder();
+        appendMessage(text);
+        System.out.print(text);
+    }
+
+    /**
+     * Append the line printed by showMessage to the given buffer.
+     *
+     * @param text the buffer where the message is rendered
+     **/
+    public void appendMessage(StringBuilder text) {
+        text.append("MESSAGE: ").append(TYPE_NAMES[type]).append(' ').append(x).append(' ').append(y).append(' ');
+        if (type == DETECTSAT && readings != 0) {
+            for (int r = 0; r < 5; r++) {
+                text.append(hasReading(r) ? '1' : '0');
+            }
+        }
+        text.append(OutputSink.EOL);
+    }
+
+    /**
+     * Convert the message to the String based AMessage.
+     *
+     * @return the equivalent AMessage
+     **/
+    public AMessage toAMessage() {
+        switch (type) {
+            case NOMESSAGE:
+            case VOIDMSG:
+                return new AMessage(TYPE_NAMES[type], "", "", "");
+            case DETECTSAT:
+                return new AMessage(TYPE_NAMES[type], Integer.toString(x), Integer.toString(y),
+                        readingsString(readings));
+            default:
+                return new AMessage(TYPE_NAMES[type], Integer.toString(x), Integer.toString(y), "");
+        }
+    }
+
+    /**
+     * Fill this message with the contents of an AMessage.
+     *
+     * @param msg the message to convert
+     * @return this message, or null if the type or the fields of msg are
+     * not valid (this message is then left unchanged)
+     **/
+    public BinaryMessage fromAMessage(AMessage msg) {
+        int newType = typeOf(msg.getComp(0));
+        if (newType < 0) {
+            return null;
+        }
+        if (newType == NOMESSAGE || newType == VOIDMSG) {
+            return set(newType, 0, 0, 0);
+        }
+        int newReadings = 0;
+        if (newType == DETECTSAT && !msg.getComp(3).isEmpty()) {
+            newReadings = readingsMask(msg.getComp(3));
+            if (newReadings < 0) {
+                return null;
+            }
+        }
+        try {
+            return set(newType, Integer.parseInt(msg.getComp(1)), Integer.parseInt(msg.getComp(2)), newReadings);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the opcode of a message type name.
+     *
+     * @param name the first field of an AMessage
+     * @return the opcode, or -1 if the name is not a known type
+     **/
+    public static int typeOf(String name) {
+        for (int t = 0; t < TYPE_NAMES.length; t++) {
+            if (TYPE_NAMES[t].equals(name)) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Convert a readings String like "10100" to a mask (reading 1 in bit 0).
+     *
+     * @param readings the readings as five '0' or '1' characters
+     * @return the mask, or -1 if the String has other characters
+     **/
+    public static int readingsMask(String readings) {
+        int mask = 0;
+        for (int r = 0; r < readings.length(); r++) {
+            char c = readings.charAt(r);
+            if (c == '1') {
+                mask |= 1 << r;
+            } else if (c != '0') {
+                return -1;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Convert a readings mask to the String form used by AMessage.
+     *
+     * @param mask the readings mask
+     * @return five '0' or '1' characters, reading 1 first
+     **/
+    public static String readingsString(int mask) {
+        char[] readings = new char[5];
+        for (int r = 0; r < readings.length; r++) {
+            readings[r] = (mask & (1 << r)) != 0 ? '1' : '0';
+        }
+        return new String(readings);
+    }
+
+}
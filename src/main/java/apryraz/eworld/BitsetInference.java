@@ -0,0 +1,137 @@
+package apryraz.eworld;
+
+import java.util.Arrays;
+
+/**
+ * Inference engine for the Envelope World that does not use a SAT solver.
+ * <p>
+ * Apart from the two ALO clauses and the link between past and future
+ * variables, all the clauses of the formula built by EnvelopeFinder are
+ * binary clauses "reading OR NOT future envelope". The ALO clauses never
+ * discard a position (a model with an envelope at the position satisfies
+ * them), so the only conclusions are "a 0 reading clears the positions
+ * it covers". This class keeps the positions known to be empty as a packed
+ * bitset, one row of the world after the other, so every reading is
+ * applied with a constant number of word operations.
+ **/
+public class BitsetInference {
+
+    /**
+     * Dimension of the world
+     **/
+    int WorldDim;
+    /**
+     * Number of 64 bit words used by every row of the world
+     **/
+    int wordsPerRow;
+    /**
+     * Bit (x,y) is set if it is known that there is no envelope at (x,y)
+     **/
+    long[] empty;
+    /**
+     * Lineal indexes (0 based) of the positions found empty since the
+     * last call to transferNewEmptyPositions
+     **/
+    int[] newEmpty;
+    /**
+     * Number of valid entries of newEmpty
+     **/
+    int numNewEmpty;
+
+    /**
+     * Class constructor
+     *
+     * @param dim dimension of the world
+     **/
+    public BitsetInference(int dim) {
+        WorldDim = dim;
+        wordsPerRow = (dim + 63) >>> 6;
+        empty = new long[wordsPerRow * dim];
+        newEmpty = new int[16];
+        numNewEmpty = 0;
+    }
+
+    /**
+     * Apply a "0" answer of the given reading obtained at (x,y): all the
+     * positions covered by the reading are marked as empty.
+     *
+     * @param x       x coordinate of the sensing position
+     * @param y       y coordinate of the sensing position
+     * @param reading index of the reading (0 for reading 1, ..., 4 for reading 5)
+     * @return number of positions that were not known to be empty before
+     **/
+    public int applyNoReading(int x, int y, int reading) {
+        int found = 0;
+        for (int[] delta : EnvelopeFinder.READING_AREAS[reading]) {
+            if (markEmpty(x + delta[0], y + delta[1])) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Mark the position (x,y) as empty, ignoring positions outside the world.
+     *
+     * @param x x coordinate of the position
+     * @param y y coordinate of the position
+     * @return true if the position was not known to be empty before
+     **/
+    public boolean markEmpty(int x, int y) {
+        if (x < 1 || x > WorldDim || y < 1 || y > WorldDim) {
+            return false;
+        }
+        int word = (x - 1) * wordsPerRow + ((y - 1) >>> 6);
+        long bit = 1L << (y - 1);
+        if ((empty[word] & bit) != 0) {
+            return false;
+        }
+        empty[word] |= bit;
+        if (numNewEmpty == newEmpty.length) {
+            newEmpty = Arrays.copyOf(newEmpty, numNewEmpty * 2);
+        }
+        newEmpty[numNewEmpty++] = (x - 1) * WorldDim + (y - 1);
+        return true;
+    }
+
+    /**
+     * Check whether the position (x,y) is known to be empty.
+     *
+     * @param x x coordinate of the position
+     * @param y y coordinate of the position
+     * @return true if there is certainly no envelope at (x,y)
+     **/
+    public boolean isEmpty(int x, int y) {
+        return (empty[(x - 1) * wordsPerRow + ((y - 1) >>> 6)] & (1L << (y - 1))) != 0;
+    }
+
+    /**
+     * Returns the number of positions known to be empty.
+     *
+     * @return number of empty positions
+     **/
+    public long emptyCount() {
+        long count = 0;
+        for (long word : empty) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Mark with "X" in the given state all the positions found empty since
+     * the last call, and forget them.
+     *
+     * @param state the state of the agent to update
+     * @return number of positions updated
+     **/
+    public int transferNewEmptyPositions(EFState state) {
+        int transferred = numNewEmpty;
+        for (int k = 0; k < numNewEmpty; k++) {
+            state.markEmpty(newEmpty[k] / WorldDim + 1, newEmpty[k] % WorldDim + 1);
+        }
+        numNewEmpty = 0;
+        return transferred;
+    }
+
+}
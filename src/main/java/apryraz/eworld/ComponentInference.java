@@ -0,0 +1,340 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.specs.*;
+
+/**
+ * Inference engine that splits the inference questions of every step in
+ * independent subproblems. The positions to check (the same ones as in
+ * INCREMENTAL mode) are the nodes of a graph, where two positions are
+ * connected if the same "0" reading covers both, as then the clauses
+ * "reading OR NOT envelope" of the formula link both positions to the same
+ * reading variable. Every connected component gets its own small formula,
+ * with the clauses and the evidence of the readings that cover its
+ * positions, and the components are solved concurrently in a work-stealing
+ * pool, each one with its own solver. Sparse evidence gives many small
+ * components, so the latency of the step drops with the number of threads.
+ * <p>
+ * The only clause that links all the positions is the ALO clause of the
+ * world. Every question assumes an envelope at the position asked, which
+ * satisfies the ALO clause, and the positions outside the component can be
+ * empty in any model, so a position is impossible if and only if it is
+ * impossible in the formula of its component. The ALO clause only matters
+ * when no position of the world can hold an envelope, which is checked
+ * across the components with isGlobalAloSatisfiable.
+ **/
+public class ComponentInference {
+
+    /**
+     * Dimension of the world
+     **/
+    int WorldDim;
+    /**
+     * Readings answered "0" at every position sensed, by lineal index
+     * (0 based), as a mask with bit r set for reading r+1. A map, as the
+     * evidence of large worlds is sparse.
+     **/
+    HashMap<Integer, Integer> noReadings = new HashMap<>();
+    /**
+     * Work-stealing pool where the components are solved
+     **/
+    ForkJoinPool pool;
+    /**
+     * Provider of the solvers of the components
+     **/
+    InferenceBackend backend;
+    /**
+     * Number of components and of calls to the solvers of the last inference
+     **/
+    int lastComponents, lastSolverCalls;
+
+    /**
+     * Class constructor
+     *
+     * @param dim         dimension of the world
+     * @param parallelism number of threads of the pool
+     * @param backend     provider of the solvers of the components
+     * @throws IllegalArgumentException if parallelism is lower than 1
+     **/
+    public ComponentInference(int dim, int parallelism, InferenceBackend backend) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format("Parallelism must be at least 1. Given %d",
+                    parallelism));
+        }
+        WorldDim = dim;
+        this.backend = backend;
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Record a "0" answer of the given reading obtained at (x,y).
+     *
+     * @param x       x coordinate of the sensing position
+     * @param y       y coordinate of the sensing position
+     * @param reading index of the reading (0 for reading 1, ..., 4 for reading 5)
+     **/
+    public void applyNoReading(int x, int y, int reading) {
+        noReadings.merge((x - 1) * WorldDim + (y - 1), 1 << reading, (a, b) -> a | b);
+    }
+
+    /**
+     * Check the given positions not yet known to be empty, solving every
+     * connected component of them in the pool. Blocks until all the
+     * components are solved.
+     *
+     * @param cells lineal indexes (0 based) of the positions to check
+     * @param state current state of the agent; it is only read
+     * @return lineal indexes of the new empty positions, in increasing order
+     * @throws TimeoutException time out exception
+     **/
+    public int[] findNewEmptyPositions(VecInt cells, EFState state) throws TimeoutException {
+        HashMap<Integer, Integer> nodeOf = new HashMap<>();
+        VecInt nodes = new VecInt();
+        for (int k = 0; k < cells.size(); k++) {
+            int lineal = cells.get(k);
+            if (!state.isEmpty(lineal / WorldDim + 1, lineal % WorldDim + 1) && !nodeOf.containsKey(lineal)) {
+                nodeOf.put(lineal, nodes.size());
+                nodes.push(lineal);
+            }
+        }
+
+        // Union-find: join the positions covered by every "0" reading around each one
+        int[] parent = new int[nodes.size()];
+        for (int n = 0; n < parent.length; n++) {
+            parent[n] = n;
+        }
+        for (int n = 0; n < nodes.size(); n++) {
+            int x = nodes.get(n) / WorldDim + 1;
+            int y = nodes.get(n) % WorldDim + 1;
+            for (int r = 0; r < EnvelopeFinder.READING_AREAS.length; r++) {
+                for (int[] delta : EnvelopeFinder.READING_AREAS[r]) {
+                    int sensed = noReadingAt(x - delta[0], y - delta[1], r);
+                    if (sensed < 0) {
+                        continue;
+                    }
+                    for (int[] other : EnvelopeFinder.READING_AREAS[r]) {
+                        Integer node = nodeOf.get(linealOf(sensed, other));
+                        if (node != null) {
+                            union(parent, n, node);
+                        }
+                    }
+                }
+            }
+        }
+
+        // One task per component, with its positions in increasing order of node
+        HashMap<Integer, Component> byRoot = new HashMap<>();
+        ArrayList<Component> components = new ArrayList<>();
+        for (int n = 0; n < nodes.size(); n++) {
+            Component component = byRoot.get(find(parent, n));
+            if (component == null) {
+                component = new Component();
+                byRoot.put(find(parent, n), component);
+                components.add(component);
+            }
+            component.members.push(nodes.get(n));
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(components);
+            }
+        });
+
+        lastComponents = components.size();
+        lastSolverCalls = 0;
+        VecInt found = new VecInt();
+        for (Component component : components) {
+            if (component.timeout != null) {
+                throw component.timeout;
+            }
+            lastSolverCalls += component.calls;
+            for (int k = 0; k < component.found.size(); k++) {
+                found.push(component.found.get(k));
+            }
+        }
+        int[] result = new int[found.size()];
+        for (int k = 0; k < result.length; k++) {
+            result[k] = found.get(k);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Returns the number of connected components of the last inference.
+     *
+     * @return number of components
+     **/
+    public int getLastComponents() {
+        return lastComponents;
+    }
+
+    /**
+     * Returns the number of calls to the solvers performed by the last
+     * call to findNewEmptyPositions, adding the calls of all the threads.
+     *
+     * @return number of solver calls
+     **/
+    public int getLastSolverCalls() {
+        return lastSolverCalls;
+    }
+
+    /**
+     * Check the ALO clause of the whole world: as every component is
+     * satisfiable with no envelopes, the formula of the world is
+     * satisfiable if and only if some position can still hold an envelope.
+     *
+     * @param state current state of the agent
+     * @return false if the evidence leaves no position for an envelope
+     **/
+    public boolean isGlobalAloSatisfiable(EFState state) {
+        return state.unknownCount() > 0;
+    }
+
+    /**
+     * Replace the pool by a new one with the given number of threads.
+     *
+     * @param parallelism number of threads of the pool
+     * @throws IllegalArgumentException if parallelism is lower than 1
+     **/
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format("Parallelism must be at least 1. Given %d",
+                    parallelism));
+        }
+        pool.shutdown();
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Stop the threads of the pool.
+     **/
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Returns the lineal index of (x,y) if it is inside the world and the
+     * given reading was answered "0" there, or -1 otherwise.
+     **/
+    int noReadingAt(int x, int y, int reading) {
+        if (x < 1 || x > WorldDim || y < 1 || y > WorldDim) {
+            return -1;
+        }
+        int lineal = (x - 1) * WorldDim + (y - 1);
+        Integer mask = noReadings.get(lineal);
+        return mask != null && (mask & (1 << reading)) != 0 ? lineal : -1;
+    }
+
+    /**
+     * Returns the lineal index of the position at delta of another one, or
+     * -1 if it is outside the world.
+     **/
+    int linealOf(int lineal, int[] delta) {
+        int x = lineal / WorldDim + 1 + delta[0];
+        int y = lineal % WorldDim + 1 + delta[1];
+        if (x < 1 || x > WorldDim || y < 1 || y > WorldDim) {
+            return -1;
+        }
+        return (x - 1) * WorldDim + (y - 1);
+    }
+
+    static int find(int[] parent, int n) {
+        while (parent[n] != n) {
+            parent[n] = parent[parent[n]];
+            n = parent[n];
+        }
+        return n;
+    }
+
+    static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    /**
+     * A component: the task that builds the formula of its positions with
+     * a new solver, and asks about every one of them. The solvers are not
+     * kept between steps: the components are rebuilt every step from the
+     * positions still unknown, new readings merge them and the positions
+     * found empty leave them, so there is no stable key to cache a solver
+     * under, and the formula of a component, proportional to its size, is
+     * cheaper to build again than to reconcile with the old one.
+     **/
+    class Component extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        VecInt members = new VecInt();
+        VecInt found = new VecInt();
+        int calls;
+        TimeoutException timeout;
+
+        @Override
+        protected void compute() {
+            // Variables 1..n are the positions of the component, then one per reading that covers them
+            HashMap<Long, Integer> readingVarOf = new HashMap<>();
+            ArrayList<VecInt> clauses = new ArrayList<>();
+            for (int k = 0; k < members.size(); k++) {
+                int x = members.get(k) / WorldDim + 1;
+                int y = members.get(k) % WorldDim + 1;
+                for (int r = 0; r < EnvelopeFinder.READING_AREAS.length; r++) {
+                    for (int[] delta : EnvelopeFinder.READING_AREAS[r]) {
+                        int sensed = noReadingAt(x - delta[0], y - delta[1], r);
+                        if (sensed < 0) {
+                            continue;
+                        }
+                        long key = (long) sensed * EnvelopeFinder.READING_AREAS.length + r;
+                        Integer readingVar = readingVarOf.get(key);
+                        if (readingVar == null) {
+                            readingVar = members.size() + readingVarOf.size() + 1;
+                            readingVarOf.put(key, readingVar);
+                            VecInt evidence = new VecInt(1);
+                            evidence.push(-readingVar);
+                            clauses.add(evidence);
+                        }
+                        VecInt readClause = new VecInt(2);
+                        readClause.push(readingVar);
+                        readClause.push(-(k + 1));
+                        clauses.add(readClause);
+                    }
+                }
+            }
+            if (readingVarOf.isEmpty()) {
+                return;  // no evidence about these positions: all of them are possible
+            }
+            try {
+                ISolver solver = backend.newSolver();
+                solver.setTimeout(3600);
+                solver.newVar(members.size() + readingVarOf.size());
+                for (VecInt clause : clauses) {
+                    solver.addClause(clause);
+                }
+                VecInt assumption = new VecInt(1);
+                for (int k = 0; k < members.size(); k++) {
+                    assumption.clear();
+                    assumption.push(k + 1);
+                    calls++;
+                    if (!solver.isSatisfiable(assumption)) {
+                        found.push(members.get(k));
+                    }
+                }
+            } catch (ContradictionException ex) {
+                // Only unit clauses on reading variables and binary clauses are added
+                throw new IllegalStateException(ex);
+            } catch (TimeoutException ex) {
+                timeout = ex;
+            }
+        }
+    }
+
+}
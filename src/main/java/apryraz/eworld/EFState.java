@@ -1,13 +1,43 @@
 package apryraz.eworld;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Class that represents the state of the Envelope Finder.
  * What the agent knows about the world.
+ * <p>
+ * Every position is either "?" (there may be an envelope) or "X" (there
+ * is no envelope), so the state is stored as a packed bitset with one bit
+ * per position, set for the "X" positions. Position (i,j) is the bit
+ * (i-1)*wDim + (j-1).
  **/
 public class EFState {
 
+    /**
+     * The two possible states of a position
+     **/
+    static final String UNKNOWN = "?";
+    static final String EMPTY = "X";
+
     int wDim;
-    String[][] matrix;
+    /**
+     * Bits of the positions with the "X" state
+     **/
+    long[] empty;
+    /**
+     * Number of positions with the "X" state
+     **/
+    int emptyCount;
+    /**
+     * If trackChanges is true, lineal indexes ((i-1)*wDim + (j-1)) of the
+     * positions marked "X" since the last call to clearChanges, in the
+     * order they were marked.
+     **/
+    boolean trackChanges;
+    int[] changes = new int[0];
+    int numChanges;
 
     /**
      * EFState constructor.
@@ -16,7 +46,7 @@ public class EFState {
      */
     public EFState(int dim) {
         wDim = dim;
-        matrix = new String[wDim][wDim];
+        empty = new long[(int) (((long) dim * dim + 63) >>> 6)];
         initializeState();
     }
 
@@ -28,7 +58,19 @@ public class EFState {
      * @return The state of the given position.
      */
     String getPositionState(int i, int j) {
-        return matrix[i - 1][j - 1];
+        return isEmpty(i, j) ? EMPTY : UNKNOWN;
+    }
+
+    /**
+     * Check whether the given position has the "X" state.
+     *
+     * @param i X-axis position (row).
+     * @param j Y-axis position (column).
+     * @return True if there is no envelope in the given position.
+     */
+    public boolean isEmpty(int i, int j) {
+        long bit = bitOf(i, j);
+        return (empty[(int) (bit >>> 6)] & (1L << bit)) != 0;
     }
 
     /**
@@ -39,27 +81,132 @@ public class EFState {
      * in the given position.
      */
     public void initializeState() {
-        for (int i = 0; i < wDim; i++) {
-            for (int j = 0; j < wDim; j++) {
-                matrix[i][j] = "?";
-            }
-        }
+        Arrays.fill(empty, 0L);
+        emptyCount = 0;
     }
 
     /**
      * Set the state of the given position with the
      * given state value.
-     * It is assumed that the given positions and
-     * value are valid.
+     * It is assumed that the given positions are valid.
      *
      * @param i   X-axis position (row).
      * @param j   Y-axis position (column).
-     * @param val The new state value.
+     * @param val The new state value, "?" or "X".
      */
     public void set(int i, int j, String val) {
-        matrix[i - 1][j - 1] = val;
+        if (val.equals(EMPTY)) {
+            markEmpty(i, j);
+        } else if (val.equals(UNKNOWN)) {
+            long bit = bitOf(i, j);
+            int word = (int) (bit >>> 6);
+            if ((empty[word] & (1L << bit)) != 0) {
+                empty[word] &= ~(1L << bit);
+                emptyCount--;
+            }
+        } else {
+            throw new IllegalArgumentException(String.format("Unknown state value (%s) at %d,%d", val, i, j));
+        }
+    }
+
+    /**
+     * Set the "X" state in the given position.
+     *
+     * @param i X-axis position (row).
+     * @param j Y-axis position (column).
+     */
+    public void markEmpty(int i, int j) {
+        long bit = bitOf(i, j);
+        int word = (int) (bit >>> 6);
+        if ((empty[word] & (1L << bit)) == 0) {
+            empty[word] |= 1L << bit;
+            emptyCount++;
+            if (trackChanges) {
+                if (numChanges == changes.length) {
+                    changes = Arrays.copyOf(changes, Math.max(16, 2 * changes.length));
+                }
+                changes[numChanges++] = (int) bit;
+            }
+        }
+    }
+
+    /**
+     * Start or stop recording the positions that change to the "X" state.
+     *
+     * @param track true to record the changes
+     */
+    public void setTrackChanges(boolean track) {
+        trackChanges = track;
+        clearChanges();
+    }
+
+    /**
+     * Returns the number of positions marked "X" since the last call to
+     * clearChanges, if the changes are tracked.
+     *
+     * @return number of changes recorded
+     */
+    public int getNumChanges() {
+        return numChanges;
+    }
+
+    /**
+     * Returns a position marked "X" since the last call to clearChanges.
+     *
+     * @param k index of the change, from 0 to getNumChanges() - 1
+     * @return lineal index (i-1)*wDim + (j-1) of the position
+     */
+    public int getChange(int k) {
+        return changes[k];
+    }
+
+    /**
+     * Forget the changes recorded so far.
+     */
+    public void clearChanges() {
+        numChanges = 0;
     }
 
+    /**
+     * Returns the number of positions with the "?" state.
+     *
+     * @return number of positions that may still have an envelope
+     */
+    public int unknownCount() {
+        return wDim * wDim - emptyCount;
+    }
+
+    /**
+     * Returns the number of positions with the "X" state.
+     *
+     * @return number of positions known to have no envelope
+     */
+    public int emptyCount() {
+        return emptyCount;
+    }
+
+    /**
+     * Returns the positions whose state is different in the given EFState,
+     * row by row. Only the words of the bitsets that differ are scanned.
+     *
+     * @param other The state to compare with, of the same dimension.
+     * @return The positions with a different state, empty if the states are equal.
+     */
+    public List<Position> diff(EFState other) {
+        if (other.wDim != wDim) {
+            throw new IllegalArgumentException(String.format("Dimensions differ: %d and %d", wDim, other.wDim));
+        }
+        List<Position> changed = new ArrayList<>();
+        for (int w = 0; w < empty.length; w++) {
+            long bits = empty[w] ^ other.empty[w];
+            while (bits != 0) {
+                long bit = ((long) w << 6) + Long.numberOfTrailingZeros(bits);
+                changed.add(new Position((int) (bit / wDim) + 1, (int) (bit % wDim) + 1));
+                bits &= bits - 1;
+            }
+        }
+        return changed;
+    }
 
     /**
      * Checks if the given object is equals to
@@ -68,31 +215,54 @@ public class EFState {
      * @param obj The object that is going to be checked.
      * @return True if the given object and the current EFState are equals. Otherwise, false.
      */
+    @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EFState)) {
+            return false;
+        }
         EFState efstate2 = (EFState) obj;
-        boolean status = true;
+        return wDim == efstate2.wDim && emptyCount == efstate2.emptyCount
+                && Arrays.equals(empty, efstate2.empty);
+    }
 
-        for (int i = 0; i < wDim; i++) {
-            for (int j = 0; j < wDim; j++) {
-                if (!matrix[i][j].equals(efstate2.matrix[i][j]))
-                    status = false;
-            }
-        }
-        return status;
+    @Override
+    public int hashCode() {
+        return 31 * wDim + Arrays.hashCode(empty);
     }
 
     /**
      * Prints the current state.
      */
     public void printState() {
-        System.out.println("FINDER => Printing Envelope world matrix");
-        for (int i = wDim - 1; i > -1; i--) {
-            System.out.print("\t#\t");
-            for (int j = 0; j < wDim; j++) {
-                System.out.print(matrix[i][j] + " ");
+        StringBuilder text = new StringBuilder((2 * wDim + 8) * (wDim + 1));
+        appendState(text);
+        System.out.print(text);
+    }
+
+    /**
+     * Append the text printed by printState to the given buffer.
+     *
+     * @param text The buffer where the state is rendered.
+     */
+    public void appendState(StringBuilder text) {
+        text.append("FINDER => Printing Envelope world matrix").append(OutputSink.EOL);
+        for (int i = wDim; i >= 1; i--) {
+            text.append("\t#\t");
+            for (int j = 1; j <= wDim; j++) {
+                text.append(isEmpty(i, j) ? 'X' : '?').append(' ');
             }
-            System.out.println("\t#");
+            text.append("\t#").append(OutputSink.EOL);
         }
     }
 
+    /**
+     * Index of the bit of position (i,j).
+     */
+    long bitOf(int i, int j) {
+        return (long) (i - 1) * wDim + (j - 1);
+    }
+
 }
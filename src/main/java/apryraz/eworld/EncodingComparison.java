@@ -0,0 +1,78 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.sat4j.specs.*;
+
+/**
+ * Program that compares the formula modes of the EnvelopeFinder agent.
+ * For every world dimension given, it builds an agent with every
+ * GammaMode and prints the number of variables and clauses of its formula
+ * after a random sequence of steps, as LAZY mode adds most of them while
+ * sensing, the time and heap used to build it, and the time per step.
+ **/
+public class EncodingComparison {
+
+    /**
+     * Run the comparison.
+     *
+     * @param args ...
+     *             arg[0] = num of steps to perform in every world
+     *             arg[1..n] = dimensions of the worlds to compare
+     * @throws IOException            IoException error
+     * @throws ContradictionException contradiction error
+     * @throws TimeoutException       time out exception
+     **/
+    public static void main(String[] args) throws
+            IOException, ContradictionException, TimeoutException {
+        if (args.length < 2) {
+            System.err.println("Usage: EncodingComparison numSteps wdim1 [wdim2 ...]");
+            throw new IllegalArgumentException(String.format("Expected at least 2 arguments. Given %d", args.length));
+        }
+        int numSteps = Integer.parseInt(args[0]);
+        System.out.println("wdim\tgamma\tvars\tclauses\tbuild ms\theap MB\tms/step");
+        for (int a = 1; a < args.length; a++) {
+            int wDim = Integer.parseInt(args[a]);
+            Random random = new Random(42);
+            File stepsFile = File.createTempFile("steps", ".txt");
+            File envelopesFile = File.createTempFile("envelopes", ".txt");
+            stepsFile.deleteOnExit();
+            envelopesFile.deleteOnExit();
+            ParallelScalingReport.writeRandomPositions(stepsFile, numSteps, wDim, random);
+            ParallelScalingReport.writeRandomPositions(envelopesFile, Math.max(1, wDim / 2), wDim, random);
+            for (GammaMode gamma : GammaMode.values()) {
+                compare(wDim, numSteps, gamma, stepsFile.getPath(), envelopesFile.getPath());
+            }
+        }
+    }
+
+    /**
+     * Build an agent with the given formula mode, run the steps with the
+     * INCREMENTAL inference mode and print one line of the comparison.
+     **/
+    static void compare(int wDim, int numSteps, GammaMode gamma, String fileSteps, String fileEnvelopes)
+            throws IOException, ContradictionException, TimeoutException {
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(wDim, fileEnvelopes, OutputSink.silent());
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        EnvelopeFinder eAgent = new EnvelopeFinder(wDim, envAgent, InferenceMode.INCREMENTAL, gamma);
+        long buildTime = System.nanoTime() - start;
+        System.gc();
+        long heap = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+
+        eAgent.loadListOfSteps(numSteps, fileSteps);
+        start = System.nanoTime();
+        for (int i = 0; i < numSteps; i++) {
+            eAgent.runNextStep();
+        }
+        long stepsTime = System.nanoTime() - start;
+        int vars = eAgent.solver.nVars();
+        int clauses = eAgent.solver.nConstraints();
+        System.out.printf("%d\t%s\t%d\t%d\t%.1f\t%.1f\t%.3f%n", wDim, gamma, vars, clauses,
+                buildTime / 1e6, heap / 1e6, stepsTime / 1e6 / numSteps);
+    }
+}
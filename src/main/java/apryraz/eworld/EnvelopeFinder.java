@@ -3,12 +3,14 @@
 package apryraz.eworld;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 
-import java.io.BufferedReader;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 
 import static java.lang.System.exit;
 
@@ -19,6 +21,10 @@ import org.sat4j.core.VecInt;
 
 import org.sat4j.specs.*;
 import org.sat4j.minisat.*;
+import org.sat4j.minisat.core.IOrder;
+import org.sat4j.minisat.core.Solver;
+import org.sat4j.minisat.orders.PositiveLiteralSelectionStrategy;
+import org.sat4j.minisat.orders.VarOrderHeap;
 
 
 /**
@@ -37,6 +43,18 @@ public class EnvelopeFinder {
      * index to the next movement to perform, and total number of movements
      **/
     int idNextStep, numMovements;
+    /**
+     * The steps file being read, if the steps are streamed instead of
+     * loaded in listOfSteps
+     **/
+    StepSource stepSource;
+    /**
+     * Environment thread that performs the next steps ahead of the agent,
+     * or null if the steps are performed serially, and maximum number of
+     * steps performed ahead (0 for the serial mode)
+     **/
+    StepPipeline pipeline;
+    int pipelineDepth;
     /**
      * Array of clauses that represent conclusiones obtained in the last
      * call to the inference function, but rewritten using the "past" variables
@@ -101,6 +119,148 @@ public class EnvelopeFinder {
      */
     int actualLiteral;
 
+    /**
+     * Relative positions covered by each sensor reading (reading 1 to reading 5),
+     * following the same layout used by noReadingOneEnvelope ... noReadingFiveEnvelope.
+     */
+    static final int[][][] READING_AREAS = {
+            {{1, -1}, {1, 0}, {1, 1}},
+            {{-1, 1}, {0, 1}, {1, 1}},
+            {{-1, -1}, {-1, 0}, {-1, 1}},
+            {{-1, -1}, {0, -1}, {1, -1}},
+            {{0, 0}}
+    };
+
+    /**
+     * Messages reused to talk with the environment in every step: the
+     * last request sent, and the last answer received.
+     */
+    BinaryMessage request = new BinaryMessage();
+    BinaryMessage answer = new BinaryMessage();
+    /**
+     * Destination of the console output. By default, the one of the
+     * environment given to the constructor.
+     */
+    OutputSink output;
+    /**
+     * Stream where the knowledge obtained in every step is written, or null
+     */
+    KnowledgeEventStream events;
+
+    /**
+     * Strategy used by performInferenceQuestions.
+     */
+    InferenceMode inferenceMode = InferenceMode.FULL;
+    /**
+     * Lineal indexes (0 based) of the positions that may have changed
+     * since the last inference. Not used in BITSET mode.
+     */
+    VecInt pendingCells = new VecInt();
+    /**
+     * Bit l of pendingMark is set if the lineal index l is already in
+     * pendingCells. Packed, as the modes for very large worlds use it too,
+     * and null in BITSET mode.
+     */
+    long[] pendingMark;
+    /**
+     * Number of calls to the solver performed in the last inference, and
+     * since the agent was created.
+     */
+    int solverCalls;
+    long totalSolverCalls;
+    /**
+     * Number of solver calls of the last inference answered UNSAT (every
+     * one gives a new empty position), and number of clauses added to the
+     * solver with addClause since the agent was created
+     */
+    int unsatCalls;
+    long clausesAdded;
+    /**
+     * Number of empty positions found by the refinement of the ANYTIME
+     * mode in the background, that are not counted in unsatCalls
+     */
+    long refinementUnsatCalls;
+    /**
+     * Inference engine with a time budget per step, only used in ANYTIME mode
+     */
+    AnytimeInference anytimeInference;
+    /**
+     * Time budget of the inference of every step in ANYTIME mode
+     */
+    long inferenceBudgetNanos = AnytimeInference.DEFAULT_BUDGET_NANOS;
+    /**
+     * Runtime metrics of the steps, or null if they are not recorded
+     */
+    FinderMetrics metrics;
+    /**
+     * Solver-free inference engine, only used in BITSET mode
+     */
+    BitsetInference bitsetInference;
+    /**
+     * Inference engine with one small formula per tile of the world, only
+     * used in TILED mode, and side of the tiles
+     */
+    TiledInference tiledInference;
+    int tileSize = TiledInference.DEFAULT_TILE_SIZE;
+    /**
+     * Inference engine that solves the connected components of the positions
+     * to check in parallel, only used in COMPONENTS mode
+     */
+    ComponentInference componentInference;
+    /**
+     * Multi-threaded inference engine, only used in PARALLEL mode
+     */
+    ParallelInference parallelInference;
+    /**
+     * Number of threads used in PARALLEL mode
+     */
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    /**
+     * Clauses added to the solver after buildGamma (evidence, and the rules
+     * of the sensed positions in LAZY mode), needed to build solver replicas
+     * in the same state as the solver of the agent, and to rebuild the
+     * solver with compaction. They are only kept in PARALLEL mode or with
+     * compaction, so the memory of the other modes does not grow with them.
+     */
+    ArrayList<VecInt> clauseLog = new ArrayList<>();
+    /**
+     * True if some clause was added to the solver without keeping it in
+     * clauseLog, so the log can not be used anymore
+     */
+    boolean clauseLogIncomplete;
+    /**
+     * How the formula with the rules of the world is built
+     */
+    GammaMode gammaMode = GammaMode.STANDARD;
+    /**
+     * Provider of the solvers where the formula is stored
+     */
+    InferenceBackend backend = SolverBackend.DEFAULT;
+    /**
+     * In LAZY mode, lineal indexes (0 based) of the positions whose reading
+     * clauses are already in the formula (sensedCells), and of the positions
+     * whose past to future clause is already in the formula (linkedCells).
+     * Sets, so their memory grows with the positions sensed and not with the
+     * size of the world, although the variable ids still span the 7*n*n
+     * variables of STANDARD mode.
+     */
+    HashSet<Integer> sensedCells, linkedCells;
+    /**
+     * If true, the evidence and conclusions already in the formula are not
+     * added again, and the positions known to be empty are not asked again
+     * in FULL mode. If rebuildInterval is greater than 0, the solver is
+     * also rebuilt every rebuildInterval steps.
+     */
+    boolean compaction;
+    int rebuildInterval, stepsSinceRebuild;
+    long solverRebuilds;
+    /**
+     * With compaction, bit r of evidenceMask[l] is set if the evidence of
+     * a "0" in reading r+1 at the position with lineal index l (0 based)
+     * is already in the formula
+     */
+    byte[] evidenceMask;
+
 
     /**
      * The class constructor must create the initial Boolean formula with the
@@ -112,22 +272,142 @@ public class EnvelopeFinder {
      * @throws IOException IoException error.
      **/
     public EnvelopeFinder(int WDim, EnvelopeWorldEnv environment) throws IOException {
+        this(WDim, environment, InferenceMode.FULL);
+    }
+
+    /**
+     * Same as the previous constructor, but choosing the strategy used to
+     * perform the inference questions. If the mode is BITSET, no formula
+     * is built.
+     *
+     * @param WDim        the dimension of the Envelope World.
+     * @param environment the environment agent.
+     * @param mode        the inference mode of the agent.
+     * @throws IOException IoException error.
+     **/
+    public EnvelopeFinder(int WDim, EnvelopeWorldEnv environment, InferenceMode mode) throws IOException {
+        this(WDim, environment, mode, GammaMode.STANDARD);
+    }
+
+    /**
+     * Same as the previous constructor, but also choosing how the formula
+     * with the rules of the world is built. The formula mode is ignored in
+     * BITSET inference mode, as no formula is built.
+     *
+     * @param WDim        the dimension of the Envelope World.
+     * @param environment the environment agent.
+     * @param mode        the inference mode of the agent.
+     * @param gamma       how to build the formula of the agent.
+     * @throws IOException IoException error.
+     **/
+    public EnvelopeFinder(int WDim, EnvelopeWorldEnv environment, InferenceMode mode,
+                          GammaMode gamma) throws IOException {
+        this(WDim, environment, mode, gamma, SolverBackend.DEFAULT);
+    }
+
+    /**
+     * Same as the previous constructor, but also choosing the backend that
+     * provides the solvers of the agent. The backend is ignored in BITSET
+     * inference mode, as no solver is used.
+     *
+     * @param WDim        the dimension of the Envelope World.
+     * @param environment the environment agent.
+     * @param mode        the inference mode of the agent.
+     * @param gamma       how to build the formula of the agent.
+     * @param backend     provider of the solvers of the agent.
+     * @throws IOException IoException error.
+     **/
+    public EnvelopeFinder(int WDim, EnvelopeWorldEnv environment, InferenceMode mode,
+                          GammaMode gamma, InferenceBackend backend) throws IOException {
 
         WorldDim = WDim;
+        this.backend = backend;
         WorldLinealDim = WorldDim * WorldDim;
         EnvAgent = environment; //Set the environment agent.
-        try {
-            solver = buildGamma();
-        } catch (IOException | ContradictionException ex) {
-            Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.SEVERE, null, ex);
+        if (mode != InferenceMode.BITSET) {
+            pendingMark = new long[(WorldLinealDim + 63) >>> 6];
+        }
+        gammaMode = gamma;
+        if (gamma == GammaMode.LAZY) {
+            sensedCells = new HashSet<>();
+            linkedCells = new HashSet<>();
+        }
+        inferenceMode = mode;
+        if (mode == InferenceMode.BITSET) {
+            bitsetInference = new BitsetInference(WorldDim);
+        } else if (mode == InferenceMode.TILED) {
+            tiledInference = new TiledInference(WorldDim, tileSize, backend);
+        } else if (mode == InferenceMode.COMPONENTS) {
+            componentInference = new ComponentInference(WorldDim, parallelism, backend);
+        } else {
+            try {
+                solver = buildGamma();
+            } catch (IOException | ContradictionException ex) {
+                Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            setInferenceMode(mode);
         }
         numMovements = 0;
         idNextStep = 0;
-        System.out.println("STARTING Envelope FINDER AGENT...");
+        output = environment != null ? environment.output : new OutputSink();
+        if (output.isEnabled(OutputLevel.SUMMARY)) {
+            output.text().append("STARTING Envelope FINDER AGENT...").append(OutputSink.EOL);
+            output.endText();
+        }
 
 
         efstate = new EFState(WorldDim);  // Initialize state (matrix) of knowledge with '?'
-        efstate.printState();
+        printState();
+        output.flush();
+    }
+
+    /**
+     * Change the destination of the console output of the agent.
+     *
+     * @param output the new destination
+     **/
+    public void setOutput(OutputSink output) {
+        this.output = output;
+    }
+
+    public OutputSink getOutput() {
+        return output;
+    }
+
+    /**
+     * Write the knowledge obtained in every step to the given stream: the
+     * position, the readings, and the positions newly marked "X". The
+     * stream is not closed by the agent.
+     *
+     * @param events the stream of events, or null to stop writing them
+     **/
+    public void setEventStream(KnowledgeEventStream events) {
+        this.events = events;
+        efstate.setTrackChanges(events != null);
+    }
+
+    /**
+     * Record the runtime metrics of every step in the given object.
+     *
+     * @param metrics where the metrics are recorded, or null to stop
+     *                recording them
+     **/
+    public void setMetrics(FinderMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public FinderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Print the current state of knowledge, if the output level is FULL.
+     **/
+    void printState() {
+        if (output.isEnabled(OutputLevel.FULL)) {
+            efstate.appendState(output.text());
+            output.endText();
+        }
     }
 
     /**
@@ -139,10 +419,373 @@ public class EnvelopeFinder {
      * @param environment the Environment object
      **/
     public void setEnvironment(EnvelopeWorldEnv environment) {
+        stopPipeline();
         EnvAgent = environment;
     }
 
 
+    /**
+     * Select the strategy used to perform the inference questions after
+     * every step. All the strategies obtain exactly the same conclusions
+     * (ANYTIME once waitForCompleteKnowledge returns).
+     * The BITSET, TILED and COMPONENTS modes can only be chosen when the
+     * agent is created.
+     *
+     * @param mode the inference strategy
+     * @throws IllegalArgumentException if changing from or to BITSET, TILED
+     *                                  or COMPONENTS mode
+     **/
+    public void setInferenceMode(InferenceMode mode) {
+        if ((mode == InferenceMode.BITSET) != (bitsetInference != null)) {
+            throw new IllegalArgumentException("BITSET inference mode must be chosen when creating the agent");
+        }
+        if ((mode == InferenceMode.TILED) != (tiledInference != null)) {
+            throw new IllegalArgumentException("TILED inference mode must be chosen when creating the agent");
+        }
+        if ((mode == InferenceMode.COMPONENTS) != (componentInference != null)) {
+            throw new IllegalArgumentException("COMPONENTS inference mode must be chosen when creating the agent");
+        }
+        inferenceMode = mode;
+        if (mode == InferenceMode.BACKBONE) {
+            preferPositivePhase();
+        }
+        if (mode == InferenceMode.PARALLEL) {
+            startParallelInference();
+        } else if (parallelInference != null) {
+            parallelInference.shutdown();
+            parallelInference = null;
+            if (!compaction) {
+                dropClauseLog();
+            }
+        }
+        if (mode == InferenceMode.ANYTIME) {
+            if (anytimeInference == null) {
+                anytimeInference = new AnytimeInference(this);
+                anytimeInference.setBudgetNanos(inferenceBudgetNanos);
+            }
+        } else if (anytimeInference != null) {
+            try {
+                anytimeInference.shutdown();
+            } catch (TimeoutException ex) {
+                Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            anytimeInference = null;
+        }
+    }
+
+    /**
+     * Select the pipelined execution of the steps: the moves and the
+     * readings of up to depth steps are obtained from the environment by
+     * another thread while the agent performs the inference of the current
+     * step (see StepPipeline). The states are the same as in the serial
+     * mode. While pipelined, the steps must only be performed with
+     * runNextStep, and the environment must only be used by this agent.
+     *
+     * @param depth maximum number of steps performed ahead, or 0 to perform
+     *              the steps serially
+     * @throws IllegalArgumentException if depth is negative
+     **/
+    public void setPipelineDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException(String.format("Pipeline depth can not be negative. Given %d", depth));
+        }
+        stopPipeline();
+        pipelineDepth = depth;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Stop the environment thread of the pipelined mode, if running. The
+     * steps performed ahead by the environment are discarded, and the
+     * pipeline is started again by the next step.
+     **/
+    void stopPipeline() {
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
+    }
+
+    /**
+     * Stop all the threads of the agent: the environment thread of the
+     * pipelined mode, the pools of the PARALLEL and COMPONENTS modes and
+     * the refinement thread of the ANYTIME mode. The state of the agent can
+     * still be read, but no more steps must be performed with it.
+     **/
+    public void shutdown() {
+        stopPipeline();
+        if (parallelInference != null) {
+            parallelInference.shutdown();
+            parallelInference = null;
+        }
+        if (componentInference != null) {
+            componentInference.shutdown();
+        }
+        if (anytimeInference != null) {
+            try {
+                anytimeInference.shutdown();
+            } catch (TimeoutException ex) {
+                Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            anytimeInference = null;
+        }
+    }
+
+    /**
+     * Set the time budget of the inference of every step in ANYTIME mode.
+     * The positions not checked when the budget runs out are checked in
+     * the background until the next step.
+     *
+     * @param nanos the budget, in nanoseconds
+     * @throws IllegalArgumentException if the budget is negative
+     **/
+    public void setInferenceBudget(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException(String.format("Inference budget can not be negative. Given %d", nanos));
+        }
+        inferenceBudgetNanos = nanos;
+        if (anytimeInference != null) {
+            anytimeInference.setBudgetNanos(nanos);
+        }
+    }
+
+    public long getInferenceBudget() {
+        return inferenceBudgetNanos;
+    }
+
+    /**
+     * Wait until the inference of the last step is complete, so the state
+     * has all the conclusions of the steps performed. Only needed in ANYTIME
+     * mode, in the other modes the inference is complete when runNextStep
+     * returns. If there is a stream of events, the conclusions obtained
+     * while waiting are written as another event of the last step.
+     *
+     * @throws IOException      IoException error writing the event
+     * @throws TimeoutException time out exception
+     **/
+    public void waitForCompleteKnowledge() throws IOException, TimeoutException {
+        if (anytimeInference != null) {
+            anytimeInference.waitForCompleteKnowledge();
+            if (events != null && efstate.getNumChanges() > 0) {
+                events.writeStep(idNextStep, agentX, agentY, answer.readings, efstate);
+            }
+        }
+    }
+
+    /**
+     * Set the number of threads, and solver replicas, used to perform the
+     * inference questions in PARALLEL mode, and the threads of the pool of
+     * the COMPONENTS mode. By default, the number of available processors.
+     *
+     * @param threads number of threads
+     * @throws IllegalArgumentException if threads is lower than 1
+     **/
+    public void setParallelism(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(String.format("Parallelism must be at least 1. Given %d", threads));
+        }
+        parallelism = threads;
+        if (inferenceMode == InferenceMode.PARALLEL) {
+            startParallelInference();
+        }
+        if (componentInference != null) {
+            componentInference.setParallelism(threads);
+        }
+    }
+
+    /**
+     * Returns the number of threads used in PARALLEL and COMPONENTS modes.
+     *
+     * @return the parallelism of the agent
+     **/
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Create the solver replicas and the thread pool of the PARALLEL mode.
+     * The replicas are built with the same rules as the solver of the agent,
+     * plus the knowledge obtained so far (see addKnowledgeTo).
+     **/
+    void startParallelInference() {
+        if (parallelInference != null) {
+            parallelInference.shutdown();
+        }
+        ISolver[] replicas = new ISolver[parallelism];
+        replicas[0] = solver;
+        ISolver agentSolver = solver;
+        try {
+            for (int k = 1; k < parallelism; k++) {
+                replicas[k] = buildGamma();
+                addKnowledgeTo(replicas[k]);
+            }
+        } catch (IOException | ContradictionException ex) {
+            Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            solver = agentSolver;  // buildGamma stores the new formula in solver
+        }
+        parallelInference = new ParallelInference(WorldDim, EnvelopeFutureOffset, replicas);
+    }
+
+    /**
+     * Keep the size of the formula bounded in long runs. With compaction,
+     * the evidence of a position sensed again and the conclusions already
+     * known are not added again to the solver, so the clauses only grow
+     * with new knowledge. Every rebuildInterval steps, the solver is also
+     * replaced by a new one with only the rules of the world, the evidence
+     * and a unit clause per position known to be empty, dropping the
+     * clauses learned by the solver. The conclusions are the same.
+     *
+     * @param enabled         true to enable the compaction
+     * @param rebuildInterval steps between rebuilds of the solver, or 0 to
+     *                        never rebuild it
+     * @throws IllegalArgumentException if rebuildInterval is negative
+     **/
+    public void setCompaction(boolean enabled, int rebuildInterval) {
+        if (rebuildInterval < 0) {
+            throw new IllegalArgumentException(String.format("Rebuild interval can not be negative. Given %d",
+                    rebuildInterval));
+        }
+        compaction = enabled;
+        if (!enabled && inferenceMode != InferenceMode.PARALLEL) {
+            dropClauseLog();
+        }
+        this.rebuildInterval = rebuildInterval;
+        stepsSinceRebuild = 0;
+        if (enabled && evidenceMask == null) {
+            evidenceMask = new byte[WorldLinealDim];
+        }
+    }
+
+    /**
+     * Set the side of the tiles of the TILED mode. By default,
+     * TiledInference.DEFAULT_TILE_SIZE.
+     *
+     * @param size number of positions of every side of a tile
+     * @throws IllegalArgumentException if size is lower than 1, or some
+     *                                  tile has already been created
+     **/
+    public void setTileSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException(String.format("Tile size must be at least 1. Given %d", size));
+        }
+        if (tiledInference != null && tiledInference.getCreatedTiles() > 0) {
+            throw new IllegalArgumentException("Tile size must be set before the first step");
+        }
+        tileSize = size;
+        if (tiledInference != null) {
+            tiledInference = new TiledInference(WorldDim, size, backend);
+        }
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the number of times the solver has been rebuilt by the
+     * compaction.
+     *
+     * @return number of rebuilds of the solver
+     **/
+    public long getSolverRebuilds() {
+        return solverRebuilds;
+    }
+
+    /**
+     * Returns the strategy used to perform the inference questions.
+     *
+     * @return the current inference mode
+     **/
+    public InferenceMode getInferenceMode() {
+        return inferenceMode;
+    }
+
+    /**
+     * Returns the backend that provides the solvers of the agent.
+     *
+     * @return the inference backend
+     **/
+    public InferenceBackend getBackend() {
+        return backend;
+    }
+
+
+    /**
+     * Returns the number of calls to the solver performed by the
+     * last call to performInferenceQuestions.
+     *
+     * @return number of solver calls of the last inference
+     **/
+    public int getSolverCallsLastStep() {
+        return solverCalls;
+    }
+
+    /**
+     * Returns the number of calls to the solver performed by all the
+     * inferences since the agent was created.
+     *
+     * @return total number of solver calls
+     **/
+    public long getTotalSolverCalls() {
+        return totalSolverCalls;
+    }
+
+    /**
+     * Returns the number of empty positions found by the refinement of the
+     * ANYTIME mode in the background since the agent was created. Its
+     * solver calls are counted in getTotalSolverCalls only.
+     *
+     * @return number of empty positions found in the background
+     **/
+    public long getRefinementUnsatCalls() {
+        return refinementUnsatCalls;
+    }
+
+
+    /**
+     * Store the formula that buildGamma builds in STANDARD mode for the
+     * dimension of this world in a binary file, that loadGamma can load
+     * later with a memory-mapped file instead of generating it again.
+     *
+     * @param gammaFile name of the binary file to write
+     * @throws IOException IoException error
+     **/
+    public void saveGamma(String gammaFile) throws IOException {
+        GammaTemplate.forDimension(WorldDim).writeTo(Paths.get(gammaFile));
+    }
+
+    /**
+     * Load a formula stored by saveGamma, mapping the file in memory. The
+     * agents of that dimension created afterwards in TEMPLATE mode, and the
+     * solvers rebuilt by the ones already created, load the formula of the
+     * file instead of generating it. It must be called before creating the
+     * agents, as they build their formula in the constructor.
+     *
+     * @param gammaFile name of the binary file to read
+     * @param dim       dimension of the world the formula must have
+     * @throws IOException if the file can not be read, or was written for
+     *                     another dimension or encoding version, or is corrupted
+     **/
+    public static void loadGamma(String gammaFile, int dim) throws IOException {
+        GammaTemplate.load(Paths.get(gammaFile), dim);
+    }
+
+    /**
+     * Store the formula that buildGamma builds in STANDARD mode for the
+     * dimension of this world in DIMACS CNF format.
+     *
+     * @param dimacsFile name of the text file to write
+     * @throws IOException IoException error
+     **/
+    public void exportGammaDimacs(String dimacsFile) throws IOException {
+        GammaTemplate.forDimension(WorldDim).writeDimacs(Paths.get(dimacsFile));
+    }
+
+
     /**
      * Load a sequence of steps to be performed by the agent. This sequence will
      * be stored in the listOfSteps ArrayList of the agent.  Steps are represented
@@ -151,32 +794,81 @@ public class EnvelopeFinder {
      * @param numSteps  number of steps to read from the file
      * @param stepsFile the name of the text file with the line that contains
      *                  the sequence of steps: x1,y1 x2,y2 ...  xn,yn
+     * @throws UncheckedIOException if the file does not exist or is malformed
      **/
     public void loadListOfSteps(int numSteps, String stepsFile) {
-        String[] stepsList;
-        String steps = ""; // Prepare a list of movements to try with the FINDER Agent
+        stopPipeline();
+        closeStepSource();
+        StepSource steps = openStepsFile(numSteps, stepsFile);
+        listOfSteps = new ArrayList<>(numSteps);
         try {
-            BufferedReader br = new BufferedReader(new FileReader(stepsFile));
-            System.out.println("STEPS FILE OPENED ...");
-            steps = br.readLine();
-            br.close();
-        } catch (FileNotFoundException ex) {
-            System.out.println("MSG.   => Steps file not found");
-            exit(1);
+            while (steps.next()) {
+                listOfSteps.add(new Position(steps.getX(), steps.getY()));
+            }
+            steps.close();
         } catch (IOException ex) {
-            Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.SEVERE, null, ex);
-            exit(2);
-        }
-        stepsList = steps.split(" ");
-        listOfSteps = new ArrayList<>(numSteps);
-        for (int i = 0; i < numSteps; i++) {
-            String[] coords = stepsList[i].split(",");
-            listOfSteps.add(new Position(Integer.parseInt(coords[0]), Integer.parseInt(coords[1])));
+            throw new UncheckedIOException(String.format("Can not read the steps file %s: %s", stepsFile,
+                    ex.getMessage()), ex);
         }
         numMovements = listOfSteps.size(); // Initialization of numMovements
         idNextStep = 0;
     }
 
+    /**
+     * Same as loadListOfSteps, but the steps are not loaded in memory: they
+     * are read from the file one at a time, when moveToNext needs them, so
+     * the memory used does not depend on the number of steps.
+     *
+     * @param numSteps  maximum number of steps to read from the file
+     * @param stepsFile the name of the text file with the line that contains
+     *                  the sequence of steps: x1,y1 x2,y2 ...  xn,yn
+     * @throws UncheckedIOException if the file does not exist or can not be read
+     **/
+    public void streamListOfSteps(long numSteps, String stepsFile) {
+        stopPipeline();
+        closeStepSource();
+        stepSource = openStepsFile(numSteps, stepsFile);
+        listOfSteps = new ArrayList<>();
+        numMovements = 0;
+        idNextStep = 0;
+    }
+
+    /**
+     * Open a steps file.
+     *
+     * @throws UncheckedIOException if the file does not exist or can not be read
+     **/
+    StepSource openStepsFile(long numSteps, String stepsFile) {
+        StepSource steps;
+        try {
+            steps = new StepSource(stepsFile, numSteps);
+        } catch (NoSuchFileException ex) {
+            throw new UncheckedIOException(String.format("Steps file %s not found", stepsFile), ex);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(String.format("Can not read the steps file %s: %s", stepsFile,
+                    ex.getMessage()), ex);
+        }
+        if (output.isEnabled(OutputLevel.SUMMARY)) {
+            output.text().append("STEPS FILE OPENED ...").append(OutputSink.EOL);
+            output.endText();
+        }
+        return steps;
+    }
+
+    /**
+     * Close the steps file being streamed, if any.
+     **/
+    void closeStepSource() {
+        if (stepSource != null) {
+            try {
+                stepSource.close();
+            } catch (IOException ex) {
+                Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            stepSource = null;
+        }
+    }
+
     /**
      * Returns the current state of the agent.
      *
@@ -199,24 +891,107 @@ public class EnvelopeFinder {
      **/
     public void runNextStep() throws
             IOException, ContradictionException, TimeoutException {
+        FinderMetrics stepMetrics = metrics;
+        long clausesBefore = clausesAdded;
+        if (stepMetrics != null) {
+            stepMetrics.startStep();
+        }
+        if (anytimeInference != null) {
+            // Give the solver back to the agent, with the conclusions of the refinement
+            anytimeInference.stopRefinement();
+        }
 
         // Add the conclusions obtained in the previous step
         // but as clauses that use the "past" variables
         addLastFutureClausesToPastClauses();
+        endPhase(stepMetrics, FinderMetrics.Phase.ADD_PAST_CLAUSES);
+
+        if (pipelineDepth > 0 && pipeline == null && (stepSource != null || idNextStep < numMovements)) {
+            pipeline = new StepPipeline(this, pipelineDepth);
+        }
+        int slot = pipeline != null ? pipeline.take() : -1;
+        if (slot >= 0) {
+            // The environment thread already moved and sensed: apply its answers in order
+            takePipelinedStep(slot, stepMetrics);
+        } else {
+            stopPipeline();  // no more steps: the environment is used serially again
+            // Ask to move, and check whether it was successful
+            // Also, record if a pirate was found at that position
+            moveToNext(answer);
+            processMoveAnswer(answer);
+            endPhase(stepMetrics, FinderMetrics.Phase.MOVE);
+
+
+            // Next, use Detector sensor to discover new information
+            DetectsAt(answer);
+            endPhase(stepMetrics, FinderMetrics.Phase.SENSE);
+        }
+        processDetectorSensorAnswer(answer);
+        endPhase(stepMetrics, FinderMetrics.Phase.PROCESS_SENSOR);
 
-        // Ask to move, and check whether it was successful
-        // Also, record if a pirate was found at that position
-        processMoveAnswer(moveToNext());
 
+        // Perform logical consequence questions for all the positions
+        // of the Envelope World
+        performInferenceQuestions();
+        endPhase(stepMetrics, FinderMetrics.Phase.INFERENCE);
+        if (events != null) {
+            events.writeStep(idNextStep, agentX, agentY, answer.readings, efstate);
+        }
+        printState();      // Print the resulting knowledge matrix
+        output.flush();
+        if (stepMetrics != null) {
+            stepMetrics.endPhase(FinderMetrics.Phase.OUTPUT);
+            stepMetrics.endStep(solverCalls, unsatCalls, clausesAdded - clausesBefore, futureToPast.size(),
+                    anytimeInference != null ? anytimeInference.getStatistics()
+                            : solver != null ? solver.getStat() : null);
+        }
+    }
 
-        // Next, use Detector sensor to discover new information
-        processDetectorSensorAnswer(DetectsAt());
+    /**
+     * Perform the move and the sensing of the step with the answers in a
+     * slot of the pipeline, writing the same output as moveToNext and
+     * DetectsAt, including the messages the environment would have written.
+     **/
+    void takePipelinedStep(int slot, FinderMetrics stepMetrics) {
+        OutputSink environmentOutput = pipeline.getEnvironmentOutput();
+        idNextStep = idNextStep + 1;
+        int x = pipeline.stepX[slot];
+        int y = pipeline.stepY[slot];
+        if (environmentOutput.isEnabled(OutputLevel.STEP)) {
+            request.set(BinaryMessage.MOVETO, x, y, 0).appendMessage(environmentOutput.text());
+            environmentOutput.endText();
+        }
+        if (output.isEnabled(OutputLevel.STEP)) {
+            output.text().append("FINDER => moving to : (").append(x).append(',').append(y).append(')')
+                    .append(OutputSink.EOL);
+            output.endText();
+        }
+        BinaryMessage moveAnswer = pipeline.moveAnswers[slot];
+        processMoveAnswer(answer.set(moveAnswer.type, moveAnswer.x, moveAnswer.y, moveAnswer.readings));
+        endPhase(stepMetrics, FinderMetrics.Phase.MOVE);
 
+        if (environmentOutput.isEnabled(OutputLevel.STEP)) {
+            request.set(BinaryMessage.DETECTSAT, agentX, agentY, 0).appendMessage(environmentOutput.text());
+            environmentOutput.endText();
+        }
+        if (output.isEnabled(OutputLevel.STEP)) {
+            output.text().append("FINDER => detecting at : (").append(agentX).append(',').append(agentY).append(')')
+                    .append(OutputSink.EOL);
+            output.endText();
+        }
+        BinaryMessage senseAnswer = pipeline.senseAnswers[slot];
+        answer.set(senseAnswer.type, senseAnswer.x, senseAnswer.y, senseAnswer.readings);
+        pipeline.release();
+        endPhase(stepMetrics, FinderMetrics.Phase.SENSE);
+    }
 
-        // Perform logical consequence questions for all the positions
-        // of the Envelope World
-        performInferenceQuestions();
-        efstate.printState();      // Print the resulting knowledge matrix
+    /**
+     * Record the end of a phase of the step, if metrics are recorded.
+     **/
+    static void endPhase(FinderMetrics stepMetrics, FinderMetrics.Phase phase) {
+        if (stepMetrics != null) {
+            stepMetrics.endPhase(phase);
+        }
     }
 
 
@@ -229,15 +1004,47 @@ public class EnvelopeFinder {
      * movement was successful or not.
      **/
     public AMessage moveToNext() {
+        BinaryMessage ans = new BinaryMessage();
+        moveToNext(ans);
+        return ans.toAMessage();
+    }
+
+    /**
+     * Same as moveToNext(), but the answer of the environment is written
+     * in the message given.
+     *
+     * @param ans message where the answer of the environment is written
+     * @throws UncheckedIOException if the steps file being streamed is malformed
+     **/
+    public void moveToNext(BinaryMessage ans) {
         Position nextPosition;
 
+        if (stepSource != null) {
+            boolean hasNext = false;
+            try {
+                hasNext = stepSource.next();
+            } catch (IOException ex) {
+                closeStepSource();
+                throw new UncheckedIOException(String.format("Can not read the next step of the steps file: %s",
+                        ex.getMessage()), ex);
+            }
+            if (hasNext) {
+                idNextStep = idNextStep + 1;
+                moveTo(stepSource.getX(), stepSource.getY(), ans);
+                return;
+            }
+            closeStepSource();
+        }
         if (idNextStep < numMovements) {
             nextPosition = listOfSteps.get(idNextStep);
             idNextStep = idNextStep + 1;
-            return moveTo(nextPosition.x, nextPosition.y);
+            moveTo(nextPosition.x, nextPosition.y, ans);
         } else {
-            System.out.println("NO MORE steps to perform at agent!");
-            return (new AMessage("NOMESSAGE", "", "", ""));
+            if (output.isEnabled(OutputLevel.STEP)) {
+                output.text().append("NO MORE steps to perform at agent!").append(OutputSink.EOL);
+                output.endText();
+            }
+            ans.set(BinaryMessage.NOMESSAGE, 0, 0, 0);
         }
     }
 
@@ -253,14 +1060,27 @@ public class EnvelopeFinder {
      * moveto message sent
      **/
     public AMessage moveTo(int x, int y) {
-        // Tell the EnvironmentAgentID that we want  to move
-        AMessage msg, ans;
-
-        msg = new AMessage("moveto", (new Integer(x)).toString(), (new Integer(y)).toString(), "");
-        ans = EnvAgent.acceptMessage(msg);
-        System.out.println("FINDER => moving to : (" + x + "," + y + ")");
+        BinaryMessage ans = new BinaryMessage();
+        moveTo(x, y, ans);
+        return ans.toAMessage();
+    }
 
-        return ans;
+    /**
+     * Same as moveTo(x,y), but the answer of the environment is written
+     * in the message given.
+     *
+     * @param x   horizontal coordinate (row) of the movement to perform
+     * @param y   vertical coordinate (column) of the movement to perform
+     * @param ans message where the answer of the environment is written
+     **/
+    public void moveTo(int x, int y, BinaryMessage ans) {
+        // Tell the EnvironmentAgentID that we want  to move
+        EnvAgent.acceptMessage(request.set(BinaryMessage.MOVETO, x, y, 0), ans);
+        if (output.isEnabled(OutputLevel.STEP)) {
+            output.text().append("FINDER => moving to : (").append(x).append(',').append(y).append(')')
+                    .append(OutputSink.EOL);
+            output.endText();
+        }
     }
 
     /**
@@ -270,11 +1090,28 @@ public class EnvelopeFinder {
      * @param moveans the answer given by the environment to the last move message
      **/
     public void processMoveAnswer(AMessage moveans) {
-        if (moveans.getComp(0).equals("movedto")) {
-            agentX = Integer.parseInt(moveans.getComp(1));
-            agentY = Integer.parseInt(moveans.getComp(2));
+        BinaryMessage ans = new BinaryMessage().fromAMessage(moveans);
+        if (ans != null) {
+            processMoveAnswer(ans);
+        }
+    }
 
-            System.out.println("FINDER => moved to : (" + agentX + "," + agentY + ")");
+    /**
+     * Process the answer obtained from the environment when we asked
+     * to perform a movement
+     *
+     * @param moveans the answer given by the environment to the last move message
+     **/
+    public void processMoveAnswer(BinaryMessage moveans) {
+        if (moveans.type == BinaryMessage.MOVEDTO) {
+            agentX = moveans.x;
+            agentY = moveans.y;
+
+            if (output.isEnabled(OutputLevel.STEP)) {
+                output.text().append("FINDER => moved to : (").append(agentX).append(',').append(agentY).append(')')
+                        .append(OutputSink.EOL);
+                output.endText();
+            }
         }
     }
 
@@ -285,13 +1122,24 @@ public class EnvelopeFinder {
      * @return return the answer given by the environment
      **/
     public AMessage DetectsAt() {
-        AMessage msg, ans;
+        BinaryMessage ans = new BinaryMessage();
+        DetectsAt(ans);
+        return ans.toAMessage();
+    }
 
-        msg = new AMessage("detectsat", (new Integer(agentX)).toString(),
-                (new Integer(agentY)).toString(), "");
-        ans = EnvAgent.acceptMessage(msg);
-        System.out.println("FINDER => detecting at : (" + agentX + "," + agentY + ")");
-        return ans;
+    /**
+     * Same as DetectsAt(), but the answer of the environment is written
+     * in the message given.
+     *
+     * @param ans message where the answer of the environment is written
+     **/
+    public void DetectsAt(BinaryMessage ans) {
+        EnvAgent.acceptMessage(request.set(BinaryMessage.DETECTSAT, agentX, agentY, 0), ans);
+        if (output.isEnabled(OutputLevel.STEP)) {
+            output.text().append("FINDER => detecting at : (").append(agentX).append(',').append(agentY).append(')')
+                    .append(OutputSink.EOL);
+            output.endText();
+        }
     }
 
 
@@ -311,45 +1159,95 @@ public class EnvelopeFinder {
     public void processDetectorSensorAnswer(AMessage ans) throws
             IOException, ContradictionException, TimeoutException {
         if (ans.getComp(0).equals("detectsat")) {
-            int x = Integer.parseInt(ans.getComp(1));
-            int y = Integer.parseInt(ans.getComp(2));
             String detectorValue = ans.getComp(3);      //xxxxx s.t. rd1,rd2,rd3,rd4,rd5
             for (int i = 0; i < detectorValue.length(); i++) {
                 char reading = detectorValue.charAt(i);
-
-                if (reading == '0') {   //No reading received
-                    VecInt evidence = new VecInt();
-                    switch (i) {
-                        case 0: //No reading 1
-                            evidence.insertFirst(-coordToLineal(x, y, ReadOneOffset));
-                            break;
-                        case 1: //No reading 2
-                            evidence.insertFirst(-coordToLineal(x, y, ReadTwoOffset));
-                            break;
-                        case 2: //No reading 3
-                            evidence.insertFirst(-coordToLineal(x, y, ReadThreeOffset));
-                            break;
-                        case 3: //No reading 4
-                            evidence.insertFirst(-coordToLineal(x, y, ReadFourOffset));
-                            break;
-                        case 4: //No reading 5
-                            evidence.insertFirst(-coordToLineal(x, y, ReadFiveOffset));
-                            break;
-                    }
-                    if (evidence.size() != 0) {
-                        solver.addClause(evidence);
-                    }
-                } else if (reading != '1') {
+                if (reading != '0' && reading != '1') {
+                    output.close();
                     System.err.printf("ERROR: Unknown code (%c)\n", reading);
                     exit(1);
                 }
             }
+            processDetectorSensorAnswer(new BinaryMessage().set(BinaryMessage.DETECTSAT,
+                    Integer.parseInt(ans.getComp(1)), Integer.parseInt(ans.getComp(2)),
+                    BinaryMessage.readingsMask(detectorValue)));
         } else {
+            output.close();
             System.err.printf("ERROR: Unknown message type (%s)\n", ans.getComp(0));
             exit(1);
         }
     }
 
+    /**
+     * Process the answer obtained for the query "Detects at (x,y)?"
+     * by adding the appropriate evidence clause to the formula
+     *
+     * @param ans detectsat message with the readings mask of the sensor
+     *            at (x,y): bit r is set if reading r+1 was detected
+     * @throws IOException            ioexption error
+     * @throws ContradictionException contradiction error
+     * @throws TimeoutException       time out exception
+     **/
+    public void processDetectorSensorAnswer(BinaryMessage ans) throws
+            IOException, ContradictionException, TimeoutException {
+        if (ans.type != BinaryMessage.DETECTSAT) {
+            output.close();
+            System.err.printf("ERROR: Unknown message type (%s)\n", BinaryMessage.TYPE_NAMES[ans.type]);
+            exit(1);
+        }
+        int x = ans.x;
+        int y = ans.y;
+        if (gammaMode == GammaMode.LAZY && solver != null) {
+            addSensedPositionClauses(x, y);
+        }
+        for (int i = 0; i < READING_AREAS.length; i++) {
+            if (!ans.hasReading(i)) {   //No reading received
+                if (bitsetInference != null) {
+                    bitsetInference.applyNoReading(x, y, i);
+                    continue;
+                }
+                if (compaction && !markEvidence(x, y, i)) {
+                    continue;  // the same evidence is already in the formula
+                }
+                if (tiledInference != null) {
+                    tiledInference.applyNoReading(x, y, i);
+                    markAffectedCells(x, y, i);
+                    continue;
+                }
+                if (componentInference != null) {
+                    componentInference.applyNoReading(x, y, i);
+                    markAffectedCells(x, y, i);
+                    continue;
+                }
+                if (gammaMode == GammaMode.COMPACT) {
+                    addNoReadingUnitClauses(x, y, i);
+                    continue;
+                }
+                VecInt evidence = new VecInt();
+                switch (i) {
+                    case 0: //No reading 1
+                        evidence.insertFirst(-coordToLineal(x, y, ReadOneOffset));
+                        break;
+                    case 1: //No reading 2
+                        evidence.insertFirst(-coordToLineal(x, y, ReadTwoOffset));
+                        break;
+                    case 2: //No reading 3
+                        evidence.insertFirst(-coordToLineal(x, y, ReadThreeOffset));
+                        break;
+                    case 3: //No reading 4
+                        evidence.insertFirst(-coordToLineal(x, y, ReadFourOffset));
+                        break;
+                    case 4: //No reading 5
+                        evidence.insertFirst(-coordToLineal(x, y, ReadFiveOffset));
+                        break;
+                }
+                addClause(evidence);
+                logClause(evidence);
+                markAffectedCells(x, y, i);
+            }
+        }
+    }
+
 
     /**
      * This function should add all the clauses stored in the list
@@ -362,14 +1260,139 @@ public class EnvelopeFinder {
      **/
     public void addLastFutureClausesToPastClauses() throws IOException,
             ContradictionException, TimeoutException {
-        for (VecInt clause : futureToPast) {
-            solver.addClause(clause); //Added conclusions to the solver.
+        if (compaction && rebuildInterval > 0 && solver != null && ++stepsSinceRebuild >= rebuildInterval) {
+            rebuildSolver();  // with all the positions marked "X", so futureToPast included
+        } else {
+            for (VecInt clause : futureToPast) {
+                addClause(clause); //Added conclusions to the solver.
+            }
         }
 
         futureToPast = new ArrayList<>(); //Reset future conclusions.
 
     }
 
+    /**
+     * Replace the solver of the agent by a new one with the rules of the
+     * world and the knowledge obtained so far (see addKnowledgeTo). The
+     * solver replicas of the PARALLEL mode are rebuilt in the same way. The
+     * old solver is dropped; it holds no threads, even with the portfolio
+     * backend.
+     *
+     * @throws IOException            IoException error
+     * @throws ContradictionException contradiction error
+     **/
+    void rebuildSolver() throws IOException, ContradictionException {
+        stepsSinceRebuild = 0;
+        solverRebuilds++;
+        buildGamma();  // stores the new formula in solver
+        if (inferenceMode == InferenceMode.BACKBONE) {
+            preferPositivePhase();
+        }
+        addKnowledgeTo(solver);
+        if (parallelInference != null) {
+            startParallelInference();
+        }
+    }
+
+    /**
+     * Keep a clause added to the solver in clauseLog, if it may be needed
+     * to build solver replicas or to rebuild the solver.
+     *
+     * @param clause the clause added
+     **/
+    void logClause(VecInt clause) {
+        if (!clauseLogIncomplete && (compaction || inferenceMode == InferenceMode.PARALLEL)) {
+            clauseLog.add(clause);
+        } else {
+            clauseLogIncomplete = true;
+            dropClauseLog();
+        }
+    }
+
+    /**
+     * Free the clauses of clauseLog, that can not be used anymore (see
+     * addKnowledgeTo).
+     **/
+    void dropClauseLog() {
+        if (!clauseLog.isEmpty()) {
+            clauseLogIncomplete = true;
+            clauseLog = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Add to a solver just built by buildGamma what the solver of the agent
+     * has learned since it was built, so both give the same conclusions.
+     * If clauseLog has all the clauses added to the solver of the agent,
+     * they are added again. Otherwise, only the rules of the sensed
+     * positions are added again in LAZY mode, and the evidence is left out:
+     * it only makes empty the positions covered by its readings, which are
+     * already known to be empty. In both cases, a unit clause with the past
+     * variable of every position known to be empty is added.
+     *
+     * @param target the solver with the rules of the world
+     * @throws ContradictionException contradiction error
+     **/
+    void addKnowledgeTo(ISolver target) throws ContradictionException {
+        if (!clauseLogIncomplete) {
+            for (VecInt clause : clauseLog) {
+                target.addClause(clause);
+            }
+        } else if (gammaMode == GammaMode.LAZY) {
+            int[] readOffsets = {ReadOneOffset, ReadTwoOffset, ReadThreeOffset, ReadFourOffset, ReadFiveOffset};
+            for (int l : sensedCells) {
+                int x = l / WorldDim + 1;
+                int y = l % WorldDim + 1;
+                for (int r = 0; r < READING_AREAS.length; r++) {
+                    for (int[] delta : READING_AREAS[r]) {
+                        if (EnvAgent.withinLimits(x + delta[0], y + delta[1])) {
+                            VecInt readClause = new VecInt();
+                            readClause.insertFirst(-coordToLineal(x + delta[0], y + delta[1], EnvelopeFutureOffset));
+                            readClause.insertFirst(coordToLineal(x, y, readOffsets[r]));
+                            target.addClause(readClause);
+                        }
+                    }
+                }
+            }
+            for (int l : linkedCells) {
+                int x = l / WorldDim + 1;
+                int y = l % WorldDim + 1;
+                VecInt impClause = new VecInt();
+                impClause.insertFirst(coordToLineal(x, y, EnvelopePastOffset));
+                impClause.insertFirst(-coordToLineal(x, y, EnvelopeFutureOffset));
+                target.addClause(impClause);
+            }
+        }
+        for (int i = 1; i <= WorldDim; i++) {
+            for (int j = 1; j <= WorldDim; j++) {
+                if (efstate != null && efstate.isEmpty(i, j)) {
+                    VecInt concPast = new VecInt();
+                    concPast.insertFirst(-(coordToLineal(i, j, EnvelopePastOffset)));
+                    target.addClause(concPast);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that the evidence of a "0" in the given reading at (x,y) is
+     * in the formula.
+     *
+     * @param x       x coordinate of the sensing position
+     * @param y       y coordinate of the sensing position
+     * @param reading index of the reading (0 for reading 1, ..., 4 for reading 5)
+     * @return false if the evidence was already in the formula
+     **/
+    boolean markEvidence(int x, int y, int reading) {
+        int lineal = coordToLineal(x, y, 0);
+        if ((evidenceMask[lineal] & (1 << reading)) != 0) {
+            return false;
+        }
+        evidenceMask[lineal] |= (byte) (1 << reading);
+        return true;
+    }
+
     /**
      * This function should check, using the future variables related
      * to possible positions of Envelope, whether it is a logical consequence
@@ -388,25 +1411,339 @@ public class EnvelopeFinder {
      **/
     public void performInferenceQuestions() throws IOException,
             ContradictionException, TimeoutException {
+        solverCalls = 0;
+        unsatCalls = 0;
+        if (inferenceMode == InferenceMode.BITSET) {
+            bitsetInference.transferNewEmptyPositions(efstate);
+            return;
+        }
+        if (inferenceMode == InferenceMode.INCREMENTAL) {
+            performIncrementalInference();
+            return;
+        }
+        if (inferenceMode == InferenceMode.BACKBONE) {
+            performBackboneInference();
+            return;
+        }
+        if (inferenceMode == InferenceMode.PARALLEL) {
+            performParallelInference();
+            return;
+        }
+        if (inferenceMode == InferenceMode.ANYTIME) {
+            anytimeInference.infer();
+            return;
+        }
+        if (inferenceMode == InferenceMode.TILED) {
+            performTiledInference();
+            return;
+        }
+        if (inferenceMode == InferenceMode.COMPONENTS) {
+            performComponentInference();
+            return;
+        }
         for (int i = 1; i <= WorldDim; i++) {
             for (int j = 1; j <= WorldDim; j++) {
+                if (!(compaction && efstate.isEmpty(i, j))) {
+                    inferPosition(i, j);
+                }
+            }
+        }
+        clearPendingCells();
+    }
 
-                int linealIndex = coordToLineal(i, j, EnvelopeFutureOffset);
-                int linealIndexPast = coordToLineal(i, j, EnvelopePastOffset);
-
-                VecInt variablePositive = new VecInt();
-                variablePositive.insertFirst(linealIndex);
+    /**
+     * Incremental version of performInferenceQuestions. Only the positions
+     * covered by a "0" reading since the last inference can become
+     * impossible locations: any model where an envelope is at another
+     * position is still a model after setting to false the future variables
+     * of the covered positions. So only those positions, and only if they are
+     * not already known to be empty, are checked with the solver.
+     * As the conclusions of previous steps are already in the formula, only
+     * the new ones are added to futureToPast.
+     *
+     * @throws TimeoutException time out exception
+     **/
+    void performIncrementalInference() throws TimeoutException {
+        for (int k = 0; k < pendingCells.size(); k++) {
+            int[] coords = linealToCoord(pendingCells.get(k), 0);
+            if (!efstate.isEmpty(coords[0], coords[1])) {
+                inferPosition(coords[0], coords[1]);
+            }
+        }
+        clearPendingCells();
+    }
 
-                if (!(solver.isSatisfiable(variablePositive))) {
-                    VecInt concPast = new VecInt();
-                    concPast.insertFirst(-(linealIndexPast));
-                    futureToPast.add(concPast);
-                    efstate.set(i, j, "X");
+    /**
+     * Backbone version of performInferenceQuestions. Every satisfying model
+     * found when asking about a position shows all the positions that can
+     * still hold an envelope, so all of them are discarded at once. Only the
+     * positions not covered by any model are checked individually, and those
+     * are exactly the ones that become impossible locations. With the solver
+     * preferring positive decisions, the first model usually covers all the
+     * possible positions, so the number of solver calls is close to the
+     * number of new conclusions plus one.
+     *
+     * @throws TimeoutException time out exception
+     **/
+    void performBackboneInference() throws TimeoutException {
+        boolean[] possible = new boolean[WorldLinealDim];
+        for (int l = 0; l < WorldLinealDim; l++) {
+            int[] coords = linealToCoord(l, 0);
+            if (possible[l] || efstate.isEmpty(coords[0], coords[1])) {
+                continue;
+            }
+            VecInt variablePositive = new VecInt();
+            variablePositive.insertFirst(l + EnvelopeFutureOffset);
+            if (isSatisfiable(variablePositive)) {
+                for (int m = l; m < WorldLinealDim; m++) {
+                    if (!possible[m] && solver.model(m + EnvelopeFutureOffset)) {
+                        possible[m] = true;
+                    }
                 }
+            } else {
+                addImpossiblePosition(coords[0], coords[1]);
+            }
+        }
+        clearPendingCells();
+    }
+
+    /**
+     * Parallel version of performInferenceQuestions. The positions not yet
+     * known to be empty are checked by several threads, and the conclusions
+     * are then added to futureToPast and to the state in increasing order
+     * of position, so the result does not depend on the scheduling.
+     *
+     * @throws TimeoutException time out exception
+     **/
+    void performParallelInference() throws TimeoutException {
+        for (int lineal : parallelInference.findNewEmptyPositions(efstate)) {
+            int[] coords = linealToCoord(lineal, 0);
+            addImpossiblePosition(coords[0], coords[1]);
+        }
+        solverCalls = parallelInference.getLastSolverCalls();
+        totalSolverCalls += solverCalls;
+        clearPendingCells();
+    }
+
+    /**
+     * Tiled version of performInferenceQuestions. The same positions as in
+     * INCREMENTAL mode are checked, each one with the formula of its tile.
+     * No formula uses past variables, as the tiles keep all the evidence,
+     * so the conclusions go straight to the state.
+     *
+     * @throws TimeoutException time out exception
+     **/
+    void performTiledInference() throws TimeoutException {
+        VecInt found = tiledInference.findNewEmptyPositions(pendingCells, efstate);
+        solverCalls = tiledInference.getLastSolverCalls();
+        totalSolverCalls += solverCalls;
+        for (int k = 0; k < found.size(); k++) {
+            int[] coords = linealToCoord(found.get(k), 0);
+            efstate.markEmpty(coords[0], coords[1]);
+            unsatCalls++;
+        }
+        clearPendingCells();
+        if (found.size() > 0 && !tiledInference.isGlobalAloSatisfiable(efstate)) {
+            Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.WARNING,
+                    "No position can hold an envelope: the evidence contradicts the rules of the world");
+        }
+    }
+
+    /**
+     * Component version of performInferenceQuestions. The same positions as
+     * in INCREMENTAL mode are split in connected components, which are
+     * solved in parallel (see ComponentInference). Like in TILED mode, the
+     * components keep all the evidence, so the conclusions go straight to
+     * the state, in increasing order of position.
+     *
+     * @throws TimeoutException time out exception
+     **/
+    void performComponentInference() throws TimeoutException {
+        int[] found = componentInference.findNewEmptyPositions(pendingCells, efstate);
+        solverCalls = componentInference.getLastSolverCalls();
+        totalSolverCalls += solverCalls;
+        for (int lineal : found) {
+            int[] coords = linealToCoord(lineal, 0);
+            efstate.markEmpty(coords[0], coords[1]);
+            unsatCalls++;
+        }
+        clearPendingCells();
+        if (found.length > 0 && !componentInference.isGlobalAloSatisfiable(efstate)) {
+            Logger.getLogger(EnvelopeFinder.class.getName()).log(Level.WARNING,
+                    "No position can hold an envelope: the evidence contradicts the rules of the world");
+        }
+    }
+
+    /**
+     * Check whether it is a logical consequence that there is no envelope
+     * at position (i,j). If so, store the conclusion in futureToPast using
+     * the past variable of the position, and update the state.
+     *
+     * @param i x coordinate of the position
+     * @param j y coordinate of the position
+     * @throws TimeoutException time out exception
+     **/
+    void inferPosition(int i, int j) throws TimeoutException {
+        if (gammaMode == GammaMode.LAZY && !linkedCells.contains(coordToLineal(i, j, 0))) {
+            return;  // no clause talks about this position yet
+        }
+        int linealIndex = coordToLineal(i, j, EnvelopeFutureOffset);
+
+        VecInt variablePositive = new VecInt();
+        variablePositive.insertFirst(linealIndex);
+
+        if (!(isSatisfiable(variablePositive))) {
+            addImpossiblePosition(i, j);
+        }
+    }
+
+    /**
+     * Check whether it is a logical consequence that there is no envelope
+     * at position (i,j), without counting the call nor changing the state.
+     * Used by the refinement thread of ANYTIME mode.
+     *
+     * @param i x coordinate of the position
+     * @param j y coordinate of the position
+     * @return true if the formula entails that there is no envelope at (i,j)
+     * @throws TimeoutException time out exception
+     **/
+    boolean entailsNoEnvelope(int i, int j) throws TimeoutException {
+        if (gammaMode == GammaMode.LAZY && !linkedCells.contains(coordToLineal(i, j, 0))) {
+            return false;  // no clause talks about this position yet
+        }
+        VecInt variablePositive = new VecInt();
+        variablePositive.insertFirst(coordToLineal(i, j, EnvelopeFutureOffset));
+        return !solver.isSatisfiable(variablePositive);
+    }
+
+    /**
+     * Store the conclusion that there is no envelope at position (i,j)
+     * in futureToPast, using the past variable of the position, and
+     * update the state.
+     *
+     * @param i x coordinate of the position
+     * @param j y coordinate of the position
+     **/
+    void addImpossiblePosition(int i, int j) {
+        unsatCalls++;
+        markImpossiblePosition(i, j);
+    }
+
+    /**
+     * Store the conclusion that there is no envelope at position (i,j),
+     * as addImpossiblePosition, but without counting it in the solver
+     * calls of the last inference.
+     *
+     * @param i x coordinate of the position
+     * @param j y coordinate of the position
+     **/
+    void markImpossiblePosition(int i, int j) {
+        VecInt concPast = new VecInt();
+        concPast.insertFirst(-(coordToLineal(i, j, EnvelopePastOffset)));
+        futureToPast.add(concPast);
+        efstate.markEmpty(i, j);
+    }
+
+    /**
+     * Ask the solver whether the formula is satisfiable with the given
+     * assumptions, counting the call.
+     *
+     * @param assumptions literals assumed to be true
+     * @return true if the formula is satisfiable with the assumptions
+     * @throws TimeoutException time out exception
+     **/
+    boolean isSatisfiable(VecInt assumptions) throws TimeoutException {
+        solverCalls++;
+        totalSolverCalls++;
+        return solver.isSatisfiable(assumptions);
+    }
+
+    /**
+     * Add a clause to the solver of the agent, and to the solver
+     * replicas if the PARALLEL mode is active.
+     *
+     * @param clause the clause to add
+     * @throws ContradictionException contradiction error
+     **/
+    void addClause(VecInt clause) throws ContradictionException {
+        clausesAdded++;
+        solver.addClause(clause);
+        if (parallelInference != null) {
+            parallelInference.addClause(clause);
+        }
+    }
+
+    /**
+     * Make the solver assign true to the decision variables, so the models
+     * it finds contain as many possible envelope positions as possible.
+     * This does not change the answers of the solver, only which models
+     * it returns.
+     **/
+    void preferPositivePhase() {
+        if (solver instanceof PortfolioSolver) {
+            for (ISolver member : ((PortfolioSolver) solver).getMembers()) {
+                preferPositivePhase(member);
+            }
+        } else {
+            preferPositivePhase(solver);
+        }
+    }
+
+    /**
+     * Make a solver assign true to the decision variables, if it is a
+     * minisat solver with a heap of variables.
+     **/
+    static void preferPositivePhase(ISolver solver) {
+        if (solver instanceof Solver) {
+            IOrder order = ((Solver) solver).getOrder();
+            if (order instanceof VarOrderHeap) {
+                ((VarOrderHeap) order).setPhaseSelectionStrategy(new PositiveLiteralSelectionStrategy());
+            }
+        }
+    }
+
+    /**
+     * Record the positions covered by the given reading at (x,y) as
+     * positions that must be checked in the next incremental inference.
+     *
+     * @param x       x coordinate of the sensing position
+     * @param y       y coordinate of the sensing position
+     * @param reading index of the reading (0 for reading 1, ..., 4 for reading 5)
+     **/
+    void markAffectedCells(int x, int y, int reading) {
+        for (int[] delta : READING_AREAS[reading]) {
+            int cx = x + delta[0];
+            int cy = y + delta[1];
+            if (cx >= 1 && cx <= WorldDim && cy >= 1 && cy <= WorldDim) {
+                markPendingCell(coordToLineal(cx, cy, 0));
             }
         }
     }
 
+    /**
+     * Add a position to the positions pending of checking, if it is not
+     * already there.
+     *
+     * @param lineal lineal index (0 based) of the position
+     **/
+    void markPendingCell(int lineal) {
+        long bit = 1L << lineal;
+        if ((pendingMark[lineal >>> 6] & bit) == 0) {
+            pendingMark[lineal >>> 6] |= bit;
+            pendingCells.push(lineal);
+        }
+    }
+
+    /**
+     * Forget the positions pending of checking.
+     **/
+    void clearPendingCells() {
+        for (int k = 0; k < pendingCells.size(); k++) {
+            pendingMark[pendingCells.get(k) >>> 6] = 0;
+        }
+        pendingCells.clear();
+    }
+
     /**
      * This function builds the initial logical formula of the agent and stores it
      * into the solver object.
@@ -426,8 +1763,25 @@ public class EnvelopeFinder {
          * + nxn reading 3 positions + nxn reading 4 positions + nxn reading 5 positions
          * */
         totalNumVariables = WorldLinealDim * 7; //n*n*7
-        solver = SolverFactory.newDefault();
+        solver = backend.newSolver();
         solver.setTimeout(3600);
+        if (gammaMode == GammaMode.LAZY) {
+            assignStandardOffsets();
+            return solver;
+        }
+        if (gammaMode == GammaMode.TEMPLATE) {
+            GammaTemplate.forDimension(WorldDim).loadInto(solver);
+            assignStandardOffsets();
+            return solver;
+        }
+        if (gammaMode == GammaMode.COMPACT) {
+            // nxn envelope positions, shared by past and future; one clause
+            solver.newVar(WorldLinealDim);
+            actualLiteral = 1;
+            futureAloEnvelope();
+            EnvelopePastOffset = EnvelopeFutureOffset;
+            return solver;
+        }
         solver.newVar(totalNumVariables);
         // This variable is used to generate, in a particular sequential order,
         // the variable indentifiers of all the variables
@@ -453,6 +1807,88 @@ public class EnvelopeFinder {
         return solver;
     }
 
+    /**
+     * Assign the offsets of all the subsets of variables, in the same order
+     * used by buildGamma, but without adding any clause. Used in TEMPLATE
+     * mode, where the clauses come from the GammaTemplate, and in LAZY mode,
+     * where the clauses of a position are added by addSensedPositionClauses.
+     * The ALO clauses are not added in LAZY mode: a model with an envelope at
+     * the asked position always satisfies them, so they never change the
+     * answer to the inference questions, and they would need all the
+     * variables of the world.
+     */
+    void assignStandardOffsets() {
+        EnvelopePastOffset = 1;
+        EnvelopeFutureOffset = EnvelopePastOffset + WorldLinealDim;
+        ReadOneOffset = EnvelopeFutureOffset + WorldLinealDim;
+        ReadTwoOffset = ReadOneOffset + WorldLinealDim;
+        ReadThreeOffset = ReadTwoOffset + WorldLinealDim;
+        ReadFourOffset = ReadThreeOffset + WorldLinealDim;
+        ReadFiveOffset = ReadFourOffset + WorldLinealDim;
+        actualLiteral = ReadFiveOffset + WorldLinealDim;
+    }
+
+    /**
+     * Adds to solver, the first time the agent senses at (x,y), the same
+     * clauses that noReadingOneEnvelope ... noReadingFiveEnvelope add for
+     * the position (x,y), and the past to future clauses of the positions
+     * covered by its readings. Used in LAZY mode.
+     *
+     * @param x x coordinate of the sensing position
+     * @param y y coordinate of the sensing position
+     * @throws ContradictionException contradiction error
+     */
+    void addSensedPositionClauses(int x, int y) throws ContradictionException {
+        if (!sensedCells.add(coordToLineal(x, y, 0))) {
+            return;
+        }
+        int[] readOffsets = {ReadOneOffset, ReadTwoOffset, ReadThreeOffset, ReadFourOffset, ReadFiveOffset};
+        for (int r = 0; r < READING_AREAS.length; r++) {
+            int detectLiteral = coordToLineal(x, y, readOffsets[r]);
+            for (int[] delta : READING_AREAS[r]) {
+                int cx = x + delta[0];
+                int cy = y + delta[1];
+                if (EnvAgent.withinLimits(cx, cy)) {
+                    VecInt readClause = new VecInt();
+                    readClause.insertFirst(-coordToLineal(cx, cy, EnvelopeFutureOffset));
+                    readClause.insertFirst(detectLiteral);
+                    addClause(readClause);
+                    logClause(readClause);
+                    if (linkedCells.add(coordToLineal(cx, cy, 0))) {
+                        VecInt impClause = new VecInt();
+                        impClause.insertFirst(coordToLineal(cx, cy, EnvelopePastOffset));
+                        impClause.insertFirst(-coordToLineal(cx, cy, EnvelopeFutureOffset));
+                        addClause(impClause);
+                        logClause(impClause);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to solver, for a "0" answer of the given reading at (x,y),
+     * one unit clause for every position covered by the reading, saying
+     * that there is no envelope there. Used in COMPACT mode, where this
+     * replaces the evidence over the reading variables.
+     *
+     * @param x       x coordinate of the sensing position
+     * @param y       y coordinate of the sensing position
+     * @param reading index of the reading (0 for reading 1, ..., 4 for reading 5)
+     * @throws ContradictionException contradiction error
+     */
+    void addNoReadingUnitClauses(int x, int y, int reading) throws ContradictionException {
+        for (int[] delta : READING_AREAS[reading]) {
+            if (EnvAgent.withinLimits(x + delta[0], y + delta[1])) {
+                VecInt evidence = new VecInt();
+                evidence.insertFirst(-coordToLineal(x + delta[0], y + delta[1], EnvelopeFutureOffset));
+                addClause(evidence);
+                logClause(evidence);
+            }
+        }
+        markAffectedCells(x, y, reading);
+    }
+
     /**
      * Adds to solver the following clauses:
      * For all the positions in the Envelope World,
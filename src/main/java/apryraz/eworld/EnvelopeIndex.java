@@ -0,0 +1,231 @@
+package apryraz.eworld;
+
+import java.util.Arrays;
+
+/**
+ * Occupancy index of the envelopes of the world, so that the environment
+ * can answer whether there is an envelope at a position in constant time,
+ * whatever the number of envelopes.
+ * <p>
+ * Worlds up to DENSE_MAX_DIM x DENSE_MAX_DIM use a packed bitmap with one
+ * bit per position. Bigger worlds, and positions outside the limits of the
+ * world, use an open addressing hash set of packed (x,y) coordinates, whose
+ * size only depends on the number of envelopes.
+ **/
+public class EnvelopeIndex {
+
+    /**
+     * Maximum dimension of the worlds indexed with a bitmap (32 MB of bits)
+     **/
+    static final int DENSE_MAX_DIM = 16384;
+    /**
+     * Value of the empty slots of the hash set. Only the position
+     * (Integer.MIN_VALUE, 0) packs to it, and add ignores it.
+     **/
+    static final long EMPTY_SLOT = Long.MIN_VALUE;
+
+    /**
+     * Dimension of the world
+     **/
+    int WorldDim;
+    /**
+     * Bit (x-1)*WorldDim + (y-1) is set if there is an envelope at (x,y).
+     * Null if the world uses only the hash set.
+     **/
+    long[] bitmap;
+    /**
+     * Open addressing hash set of packed positions, and number of positions in it
+     **/
+    long[] slots;
+    int numSlotsUsed;
+    /**
+     * Number of different positions with an envelope
+     **/
+    int size;
+
+    /**
+     * Class constructor. Chooses the bitmap or the hash set by the dimension.
+     *
+     * @param dim dimension of the world
+     **/
+    public EnvelopeIndex(int dim) {
+        this(dim, dim <= DENSE_MAX_DIM);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param dim   dimension of the world
+     * @param dense true to index the positions within the world with a bitmap
+     **/
+    EnvelopeIndex(int dim, boolean dense) {
+        WorldDim = dim;
+        if (dense) {
+            bitmap = new long[(int) (((long) dim * dim + 63) >>> 6)];
+        }
+        slots = new long[16];
+        Arrays.fill(slots, EMPTY_SLOT);
+    }
+
+    /**
+     * Add an envelope at position (x,y).
+     *
+     * @param x x coordinate of the envelope
+     * @param y y coordinate of the envelope
+     * @return true if there was no envelope at (x,y) before
+     **/
+    public boolean add(int x, int y) {
+        if (bitmap != null && inWorld(x, y)) {
+            long bit = (long) (x - 1) * WorldDim + (y - 1);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bitmap[word] & mask) != 0) {
+                return false;
+            }
+            bitmap[word] |= mask;
+            size++;
+            return true;
+        }
+        if (pack(x, y) != EMPTY_SLOT && addToSlots(pack(x, y))) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether there is an envelope at position (x,y).
+     *
+     * @param x x coordinate of the position
+     * @param y y coordinate of the position
+     * @return true if there is an envelope at (x,y)
+     **/
+    public boolean contains(int x, int y) {
+        if (bitmap != null && inWorld(x, y)) {
+            long bit = (long) (x - 1) * WorldDim + (y - 1);
+            return (bitmap[(int) (bit >>> 6)] & (1L << bit)) != 0;
+        }
+        if (numSlotsUsed == 0) {
+            return false;
+        }
+        long key = pack(x, y);
+        int mask = slots.length - 1;
+        for (int s = hash(key) & mask; slots[s] != EMPTY_SLOT; s = (s + 1) & mask) {
+            if (slots[s] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of different positions with an envelope.
+     *
+     * @return number of envelopes in the index
+     **/
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the dimension of the world of the index.
+     *
+     * @return dimension of the world
+     **/
+    public int getWorldDim() {
+        return WorldDim;
+    }
+
+    /**
+     * Visit all the positions with an envelope: first the ones of the
+     * bitmap, row by row, and then the ones of the hash set.
+     *
+     * @param visitor function called with the coordinates of every envelope
+     **/
+    public void forEach(PositionVisitor visitor) {
+        if (bitmap != null) {
+            for (int w = 0; w < bitmap.length; w++) {
+                for (long bits = bitmap[w]; bits != 0; bits &= bits - 1) {
+                    long bit = ((long) w << 6) + Long.numberOfTrailingZeros(bits);
+                    visitor.visit((int) (bit / WorldDim) + 1, (int) (bit % WorldDim) + 1);
+                }
+            }
+        }
+        for (long key : slots) {
+            if (key != EMPTY_SLOT) {
+                visitor.visit((int) (key >> 32), (int) key);
+            }
+        }
+    }
+
+    /**
+     * Check whether all the envelopes are in the bitmap, so the bitmap
+     * alone describes the index.
+     *
+     * @return true if the index has a bitmap and the hash set is empty
+     **/
+    boolean isBitmapOnly() {
+        return bitmap != null && numSlotsUsed == 0;
+    }
+
+    /**
+     * Check whether (x,y) is within the limits of the world.
+     **/
+    boolean inWorld(int x, int y) {
+        return x >= 1 && x <= WorldDim && y >= 1 && y <= WorldDim;
+    }
+
+    /**
+     * Pack the coordinates of a position in a long, x in the high half.
+     **/
+    static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Spread the bits of a packed position (Fibonacci hashing).
+     **/
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Add a packed position to the hash set, doubling the table when it
+     * becomes half full.
+     *
+     * @return true if the position was not in the set
+     **/
+    boolean addToSlots(long key) {
+        if (2 * (numSlotsUsed + 1) > slots.length) {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            Arrays.fill(slots, EMPTY_SLOT);
+            numSlotsUsed = 0;
+            for (long k : old) {
+                if (k != EMPTY_SLOT) {
+                    addToSlots(k);
+                }
+            }
+        }
+        int mask = slots.length - 1;
+        int s = hash(key) & mask;
+        while (slots[s] != EMPTY_SLOT) {
+            if (slots[s] == key) {
+                return false;
+            }
+            s = (s + 1) & mask;
+        }
+        slots[s] = key;
+        numSlotsUsed++;
+        return true;
+    }
+
+    /**
+     * Function that receives the coordinates of a position
+     **/
+    public interface PositionVisitor {
+        void visit(int x, int y);
+    }
+
+}
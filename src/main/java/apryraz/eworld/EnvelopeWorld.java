@@ -2,7 +2,14 @@ package apryraz.eworld;
 
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.management.JMException;
 
 
 import org.sat4j.specs.*;
@@ -31,20 +38,159 @@ public class EnvelopeWorld {
     public static void runStepsSequence(int wDim,
                                         int numSteps, String fileSteps, String fileEnvelopes) throws
             IOException, ContradictionException, TimeoutException {
+        runStepsSequence(wDim, numSteps, fileSteps, fileEnvelopes, new RunOptions());
+    }
+
+    /**
+     * Same as the previous function, but with the agent and its output
+     * configured by the given options. At the SUMMARY level, a final line
+     * with the number of positions still unknown is written. The threads
+     * of the agent are stopped at the end, also if a step fails.
+     *
+     * @param wDim          the dimension of world
+     * @param numSteps      num of steps to perform
+     * @param fileSteps     file name with sequence of steps to perform
+     * @param fileEnvelopes file name with sequence of steps to perform
+     * @param options       output and configuration of the agent
+     * @throws IOException IoException error
+     * @throws ContradictionException contradiction error
+     * @throws TimeoutException time out exception
+     **/
+    public static void runStepsSequence(int wDim, int numSteps, String fileSteps, String fileEnvelopes,
+                                        RunOptions options) throws
+            IOException, ContradictionException, TimeoutException {
+        OutputSink output = options.output;
         // Make instances of EnvelopeFinder agent and environment object classes
         EnvelopeFinder EAgent;
         EnvelopeWorldEnv EnvAgent;
 
-        EnvAgent = new EnvelopeWorldEnv(wDim, fileEnvelopes);
-        EAgent = new EnvelopeFinder(wDim, EnvAgent);
+        EnvAgent = new EnvelopeWorldEnv(wDim, fileEnvelopes, output);
+        if (options.anytime) {
+            EAgent = new EnvelopeFinder(wDim, EnvAgent, InferenceMode.ANYTIME, GammaMode.STANDARD, options.backend);
+            EAgent.setInferenceBudget(options.budgetNanos);
+        } else {
+            EAgent = new EnvelopeFinder(wDim, EnvAgent, InferenceMode.FULL, GammaMode.STANDARD, options.backend);
+        }
+        try {
+            EAgent.setEventStream(options.events);
+            EAgent.setMetrics(options.metrics);
+            EAgent.setPipelineDepth(options.pipelineDepth);
+
+            // load list of steps into the Finder Agent
+            EAgent.streamListOfSteps(numSteps, fileSteps);
+
 
-        // load list of steps into the Finder Agent
-        EAgent.loadListOfSteps(numSteps, fileSteps);
+            // Execute sequence of steps with the Agent
+            for (int i = 0; i < numSteps; i++) {
+                EAgent.runNextStep();
+            }
+            EAgent.waitForCompleteKnowledge();
+        } finally {
+            EAgent.shutdown();
+        }
+        if (output.getLevel() == OutputLevel.SUMMARY) {
+            output.text().append("FINDER => ").append(numSteps).append(" steps performed, ")
+                    .append(EAgent.getState().unknownCount()).append(" positions still unknown")
+                    .append(OutputSink.EOL);
+            output.endText();
+        }
+        output.flush();
+    }
+
+    /**
+     * Options of runStepsSequence. By default, the output is written to
+     * System.out, and the agent performs the complete inference of every
+     * step in FULL inference mode, with the default backend, serially.
+     **/
+    public static class RunOptions {
+        OutputSink output = new OutputSink();
+        KnowledgeEventStream events;
+        FinderMetrics metrics;
+        boolean anytime;
+        long budgetNanos;
+        InferenceBackend backend = SolverBackend.DEFAULT;
+        int pipelineDepth;
 
+        /**
+         * Write the console output of the agent and the environment in the
+         * given sink.
+         *
+         * @param output destination of the console output
+         * @return these options
+         **/
+        public RunOptions setOutput(OutputSink output) {
+            this.output = output;
+            return this;
+        }
 
-        // Execute sequence of steps with the Agent
-        for (int i = 0; i < numSteps; i++) {
-            EAgent.runNextStep();
+        /**
+         * Write the knowledge obtained in every step to a stream of events.
+         *
+         * @param events stream of knowledge events
+         * @return these options
+         **/
+        public RunOptions setEvents(KnowledgeEventStream events) {
+            this.events = events;
+            return this;
+        }
+
+        /**
+         * Record the runtime metrics of every step of the agent.
+         *
+         * @param metrics where the metrics of the steps are recorded
+         * @return these options
+         **/
+        public RunOptions setMetrics(FinderMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Use the ANYTIME inference mode with the given time budget per
+         * step. The states printed after every step may then be incomplete,
+         * but the final summary waits for the complete knowledge.
+         *
+         * @param nanos time budget of the inference of every step
+         * @return these options
+         * @throws IllegalArgumentException if the budget is negative
+         **/
+        public RunOptions setInferenceBudget(long nanos) {
+            if (nanos < 0) {
+                throw new IllegalArgumentException(String.format("Inference budget can not be negative. Given %d",
+                        nanos));
+            }
+            anytime = true;
+            budgetNanos = nanos;
+            return this;
+        }
+
+        /**
+         * Choose the backend that provides the solvers of the agent.
+         *
+         * @param backend inference backend of the agent
+         * @return these options
+         **/
+        public RunOptions setBackend(InferenceBackend backend) {
+            this.backend = backend;
+            return this;
+        }
+
+        /**
+         * Choose how many steps the environment performs ahead of the
+         * inference of the agent, as EnvelopeFinder.setPipelineDepth. The
+         * output is the same as with serial steps.
+         *
+         * @param depth steps performed ahead, 0 to perform them serially
+         * @return these options
+         * @throws IllegalArgumentException if depth is negative
+         **/
+        public RunOptions setPipelineDepth(int depth) {
+            if (depth < 0) {
+                throw new IllegalArgumentException(String.format("Pipeline depth can not be negative. Given %d",
+                        depth));
+            }
+            pipelineDepth = depth;
+            return this;
         }
     }
 
@@ -55,6 +201,25 @@ public class EnvelopeWorld {
      * arg[1] = num of steps to perform
      * arg[2] = file name with sequence of steps to perform
      * arg[3] = file name with list of envelopes positions
+     * -output=LEVEL, anywhere, selects the OutputLevel (silent, summary,
+     * step or full, the default). The output is written by a background thread.
+     * -events=FILE, anywhere, writes the knowledge obtained in every step to
+     * FILE, as NDJSON if it ends with .ndjson or .jsonl, or in binary otherwise.
+     * -budget=MS, anywhere, uses the ANYTIME inference mode with a time budget
+     * of MS milliseconds per step (see AnytimeInference).
+     * -backend=NAME, anywhere, selects the SolverBackend of the agent (default,
+     * light, glucose, mini_learning_heap or portfolio), or a portfolio of
+     * several of them separated by commas.
+     * -pipeline=DEPTH, anywhere, moves and senses up to DEPTH steps ahead of
+     * the inference of the agent, with another thread (see StepPipeline).
+     * -jmx, anywhere, publishes the runtime metrics of the steps through JMX
+     * (see FinderMetrics), and prints a summary of them at the end.
+     * Alternatively, with arg[0] = -batch, the rest of arguments are passed
+     * to BatchRunner, to run all the jobs of a manifest file, and with
+     * arg[0] = -convert, to WorldFile, to convert an envelopes file to the
+     * binary format, and with arg[0] = -serve, to EnvironmentServer, to serve
+     * the environment to agents in other processes. arg[3] can be a file in
+     * either format.
      * @throws IOException IoException error
      * @throws ContradictionException contradiction error
      * @throws TimeoutException time out exception
@@ -64,8 +229,51 @@ public class EnvelopeWorld {
     public static void main(String[] args) throws ParseFormatException,
             IOException, ContradictionException, TimeoutException, IllegalArgumentException {
 
+        if (args.length > 0 && args[0].equals("-batch")) {
+            try {
+                BatchRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-convert")) {
+            WorldFile.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-serve")) {
+            EnvironmentServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        OutputLevel level = OutputLevel.FULL;
+        String eventsFile = null;
+        FinderMetrics metrics = null;
+        RunOptions options = new RunOptions();
+        ArrayList<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("-output=")) {
+                level = getOutputLevel(arg.substring("-output=".length()));
+            } else if (arg.startsWith("-events=")) {
+                eventsFile = arg.substring("-events=".length());
+            } else if (arg.startsWith("-budget=")) {
+                options.setInferenceBudget(getBudgetNanos(arg.substring("-budget=".length())));
+            } else if (arg.startsWith("-backend=")) {
+                options.setBackend(SolverBackend.forName(arg.substring("-backend=".length())));
+            } else if (arg.startsWith("-pipeline=")) {
+                options.setPipelineDepth(getPipelineDepth(arg.substring("-pipeline=".length())));
+            } else if (arg.equals("-jmx")) {
+                metrics = new FinderMetrics();
+            } else {
+                positional.add(arg);
+            }
+        }
+        args = positional.toArray(new String[0]);
         if (args.length != 4) {
-            System.err.println("Usage: EnvelopeWorld wdim numSteps fileSteps fileEnvelopes");
+            System.err.println("Usage: EnvelopeWorld wdim numSteps fileSteps fileEnvelopes [-output=LEVEL] [-events=FILE] [-budget=MS]");
+            System.err.println("                     [-backend=NAME] [-pipeline=DEPTH] [-jmx]");
+            System.err.println("       EnvelopeWorld -batch manifestFile [numThreads] [-verbose]");
+            System.err.println("       EnvelopeWorld -convert wdim envelopesFile worldFile");
+            System.err.println("       EnvelopeWorld -serve port wdim envelopesFile");
             throw new IllegalArgumentException(String.format("Expected 4 arguments. Given %d", args.length));
         }
         int wDim = getWDim(args[0]);
@@ -85,7 +293,113 @@ public class EnvelopeWorld {
             throw new IllegalArgumentException();
         }
 
-        runStepsSequence(wDim, numSteps, fileSteps, fileEnvelopes);
+        OutputSink output = new OutputSink(level, System.out, true);
+        KnowledgeEventStream events = null;
+        int exitStatus = 0;
+        try {
+            if (eventsFile != null) {
+                events = new KnowledgeEventStream(new FileOutputStream(eventsFile),
+                        eventsFile.endsWith(".ndjson") || eventsFile.endsWith(".jsonl")
+                                ? KnowledgeEventStream.Format.NDJSON : KnowledgeEventStream.Format.BINARY, wDim);
+            }
+            if (metrics != null) {
+                metrics.registerMBean("EnvelopeFinder");
+            }
+            runStepsSequence(wDim, numSteps, fileSteps, fileEnvelopes,
+                    options.setOutput(output).setEvents(events).setMetrics(metrics));
+            if (metrics != null) {
+                output.flush();
+                printMetrics(metrics.getSnapshot());
+            }
+        } catch (UncheckedIOException ex) {
+            // A missing or malformed steps or envelopes file ends the program
+            output.close();
+            System.out.println("MSG.   => " + ex.getMessage());
+            exitStatus = ex.getCause() instanceof NoSuchFileException ? 1 : 2;
+        } catch (JMException ex) {
+            throw new IOException("Can not publish the metrics through JMX", ex);
+        } finally {
+            output.close();
+            if (events != null) {
+                events.close();
+            }
+        }
+        if (exitStatus != 0) {
+            System.exit(exitStatus);
+        }
+    }
+
+    /**
+     * Print the latencies of the phases of the steps, and the counters.
+     *
+     * @param metrics the metrics to print
+     */
+    private static void printMetrics(FinderMetrics.Snapshot metrics) {
+        System.err.printf("METRICS => %d steps, %d solver calls (%d sat, %d unsat), %d clauses added,"
+                        + " %d conflicts, %d decisions, %d bytes of heap occupied%n",
+                metrics.getSteps(), metrics.getSatCalls(), metrics.getSatResults(), metrics.getUnsatResults(),
+                metrics.getClausesAdded(), metrics.getConflicts(), metrics.getDecisions(),
+                metrics.getHeapOccupiedBytes());
+        for (FinderMetrics.PhaseStats phase : metrics.getPhases()) {
+            System.err.printf("METRICS => %-16s p50 %d ns, p99 %d ns, max %d ns%n", phase.getName(),
+                    phase.getP50Nanos(), phase.getP99Nanos(), phase.getMaxNanos());
+        }
+    }
+
+    /**
+     *
+     * @param arg name of the level, in any case
+     * @return the output level
+     * @throws IllegalArgumentException
+     */
+
+    private static OutputLevel getOutputLevel(String arg) throws IllegalArgumentException {
+        try {
+            return OutputLevel.valueOf(arg.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format("Unknown output level %s. Expected one of %s",
+                    arg, Arrays.toString(OutputLevel.values())));
+        }
+    }
+
+    /**
+     *
+     * @param arg time budget in milliseconds, with decimals allowed
+     * @return the budget in nanoseconds
+     * @throws IllegalArgumentException
+     */
+
+    private static long getBudgetNanos(String arg) throws IllegalArgumentException {
+        double millis;
+        try {
+            millis = Double.parseDouble(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid inference budget %s", arg));
+        }
+        if (!(millis >= 0)) {
+            throw new IllegalArgumentException(String.format("Inference budget can not be negative. Given %s", arg));
+        }
+        return (long) (millis * 1_000_000);
+    }
+
+    /**
+     * Parse the number of steps performed ahead in pipelined mode.
+     *
+     * @param arg the depth
+     * @return the depth, 0 for serial steps
+     * @throws IllegalArgumentException if it is not a non negative int
+     */
+    private static int getPipelineDepth(String arg) throws IllegalArgumentException {
+        int depth;
+        try {
+            depth = Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid pipeline depth %s", arg));
+        }
+        if (depth < 0) {
+            throw new IllegalArgumentException(String.format("Pipeline depth can not be negative. Given %s", arg));
+        }
+        return depth;
     }
 
     /**
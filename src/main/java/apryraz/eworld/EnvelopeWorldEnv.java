@@ -2,16 +2,12 @@
 
 package apryraz.eworld;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.LinkedHashSet;
-import java.util.Set;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
-import static java.lang.System.exit;
 
 /**
  * Class of the agent that represents the environment/world.
@@ -24,14 +20,21 @@ public class EnvelopeWorldEnv {
     int WorldDim;
 
     /**
-     * envelopes locations
+     * number of envelopes
      */
-    Set<Position> envelopesLocations;
+    int numEnvelopes;
 
     /**
-     * number of envelopes
+     * envelopes locations: occupancy index of the envelopes, used to
+     * compute the readings
      */
-    int numEnvelopes;
+    EnvelopeIndex envelopeIndex;
+
+    /**
+     * destination of the console output, shared with the agents created
+     * with this environment
+     */
+    OutputSink output;
 
     /**
      * Class constructor
@@ -40,78 +43,152 @@ public class EnvelopeWorldEnv {
      * @param envelopeFile File with list of envelopes locations
      **/
     public EnvelopeWorldEnv(int dim, String envelopeFile) {
+        this(dim, envelopeFile, new OutputSink());
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param dim          dimension of the world
+     * @param envelopeFile File with list of envelopes locations
+     * @param output       destination of the console output
+     * @throws UncheckedIOException if the envelopes file does not exist or is malformed
+     **/
+    public EnvelopeWorldEnv(int dim, String envelopeFile, OutputSink output) {
 
         WorldDim = dim;
+        this.output = output;
         loadEnvelopeLocations(envelopeFile);
     }
 
+    /**
+     * Class constructor of an environment whose envelopes are somewhere
+     * else, for subclasses that send the messages to another place to be
+     * answered. No envelopes are loaded.
+     *
+     * @param dim    dimension of the world
+     * @param output destination of the console output
+     **/
+    protected EnvelopeWorldEnv(int dim, OutputSink output) {
+        WorldDim = dim;
+        this.output = output;
+    }
+
+    /**
+     * Change the destination of the console output of the environment.
+     *
+     * @param output the new destination
+     **/
+    public void setOutput(OutputSink output) {
+        this.output = output;
+    }
+
+    public OutputSink getOutput() {
+        return output;
+    }
+
     /**
      * Load the list of pirates locations
      *
      * @param envelopeFile name of the file that should contain a
-     *                     set of envelope locations in a single line.
+     *                     set of envelope locations in a single line,
+     *                     or a binary world file (see WorldFile).
+     * @throws UncheckedIOException if the file does not exist or is malformed
      **/
     public void loadEnvelopeLocations(String envelopeFile) {
-        String[] positionList;
-        String locations = "";
+        envelopeIndex = new EnvelopeIndex(WorldDim);
         try {
-            BufferedReader br = new BufferedReader(new FileReader(envelopeFile));
-            System.out.println("ENVELOPE LOCATIONS FILE OPENED ...");
-            locations = br.readLine();
-            br.close();
-        } catch (FileNotFoundException ex) {
-            System.out.println("MSG.   => Envelope locations file not found");
-            exit(1);
+            Path file = Paths.get(envelopeFile);
+            boolean binary = WorldFile.isWorldFile(file);
+            if (output.isEnabled(OutputLevel.SUMMARY)) {
+                output.text().append("ENVELOPE LOCATIONS FILE OPENED ...").append(OutputSink.EOL);
+                output.endText();
+            }
+            if (binary) {
+                WorldFile.readInto(file, envelopeIndex);
+            } else {
+                // Same format as a steps file: x1,y1 x2,y2 ... xn,yn
+                try (StepSource locations = new StepSource(envelopeFile, Long.MAX_VALUE)) {
+                    while (locations.next()) {
+                        envelopeIndex.add(locations.getX(), locations.getY());
+                    }
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            throw new UncheckedIOException(String.format("Envelope locations file %s not found", envelopeFile), ex);
         } catch (IOException ex) {
-            Logger.getLogger(EnvelopeWorldEnv.class.getName()).log(Level.SEVERE,
-                    null, ex);
-            exit(2);
+            throw new UncheckedIOException(String.format("Can not read the envelope locations file %s: %s",
+                    envelopeFile, ex.getMessage()), ex);
         }
-        positionList = locations.split(" ");
-        envelopesLocations = new LinkedHashSet<>();
-        for (String location : positionList) {
-            String[] coords = location.split(",");
-            envelopesLocations.add(new Position(Integer.parseInt(coords[0]),
-                    Integer.parseInt(coords[1])));
-        }
-        numEnvelopes = envelopesLocations.size();
+        numEnvelopes = envelopeIndex.size();
+    }
+
+    /**
+     * Store the envelopes of the world in a binary world file, that
+     * loadEnvelopeLocations loads much faster than the text format.
+     *
+     * @param worldFile name of the file to write
+     * @throws IOException IoException error
+     **/
+    public void saveEnvelopeLocations(String worldFile) throws IOException {
+        WorldFile.write(Paths.get(worldFile), envelopeIndex);
     }
 
 
     /**
      * Process a message received by the EFinder agent,
      * by returning an appropriate answer
-     * It answerS to moveto and detectsat messages
+     * It answerS to moveto and detectsat messages.
+     * The message is converted to a BinaryMessage and answered with
+     * acceptMessage(BinaryMessage, BinaryMessage).
      *
      * @param msg message sent by the Agent
      * @return a msg with the answer to return to the agent
      **/
     public AMessage acceptMessage(AMessage msg) {
-        AMessage ans = new AMessage("voidmsg", "", "", "");
-
-        msg.showMessage();
-        if (msg.getComp(0).equals("moveto")) {
-            int nx = Integer.parseInt(msg.getComp(1));
-            int ny = Integer.parseInt(msg.getComp(2));
-
-            if (withinLimits(nx, ny)) {
-                ans = new AMessage("movedto",
-                        msg.getComp(1),
-                        msg.getComp(2), "");
-            } else
-                ans = new AMessage("notmovedto",
-                        msg.getComp(1),
-                        msg.getComp(2), "");
-        } else if (msg.getComp(0).equals("detectsat")) {
-            int x = Integer.parseInt(msg.getComp(1));
-            int y = Integer.parseInt(msg.getComp(2));
-            Position currentPos = new Position(x, y);
-            ans = getPositionReadings(currentPos);
-        } else {
+        BinaryMessage request = new BinaryMessage().fromAMessage(msg);
+        if (request == null) {
+            if (output.isEnabled(OutputLevel.STEP)) {
+                msg.appendMessage(output.text());
+            }
+            output.flush();
             System.err.printf("ERROR: Unknown message type (%s)\n",
                     msg.getComp(0));
+            return new AMessage("voidmsg", "", "", "");
+        }
+        BinaryMessage ans = new BinaryMessage();
+        acceptMessage(request, ans);
+        return ans.toAMessage();
+    }
+
+    /**
+     * Process a message received by the EFinder agent, writing the answer
+     * in a message given by the agent, so no object is created.
+     * It answers to moveto and detectsat messages, and any other message
+     * gets a voidmsg answer.
+     *
+     * @param msg message sent by the Agent
+     * @param ans message where the answer is written
+     **/
+    public void acceptMessage(BinaryMessage msg, BinaryMessage ans) {
+        if (output.isEnabled(OutputLevel.STEP)) {
+            msg.appendMessage(output.text());
+            output.endText();
+        }
+        switch (msg.type) {
+            case BinaryMessage.MOVETO:
+                ans.set(withinLimits(msg.x, msg.y) ? BinaryMessage.MOVEDTO : BinaryMessage.NOTMOVEDTO,
+                        msg.x, msg.y, 0);
+                break;
+            case BinaryMessage.DETECTSAT:
+                ans.set(BinaryMessage.DETECTSAT, msg.x, msg.y, getReadingsMask(msg.x, msg.y));
+                break;
+            default:
+                output.flush();
+                System.err.printf("ERROR: Unknown message type (%s)\n",
+                        BinaryMessage.TYPE_NAMES[msg.type]);
+                ans.set(BinaryMessage.VOIDMSG, 0, 0, 0);
         }
-        return ans;
     }
 
     /**
@@ -127,32 +204,34 @@ public class EnvelopeWorldEnv {
      * @return The answer message with the  readings codified in binary.
      */
     AMessage getPositionReadings(Position pos) {
-        StringBuilder readings = new StringBuilder();
-        for (int i = 0; i < 5; i++) {
-            readings.append(0);
-        }
-        for (Position envLoc : envelopesLocations) {
-            if (pos.isOnTop(envLoc)) {
-                readings.replace(0, 1, "1");
-            }
-            if (pos.isOnRight(envLoc)) {
-                readings.replace(1, 2, "1");
-            }
-            if (pos.isOnBot(envLoc)) {
-                readings.replace(2, 3, "1");
-            }
-            if (pos.isOnLeft(envLoc)) {
-                readings.replace(3, 4, "1");
-            }
-            if (pos.isOnSite(envLoc)) {
-                readings.replace(4, 5, "1");
-            }
-        }
         //Answer: "detectsat", x, y, DetectorValue
         return new AMessage("detectsat",
                 Integer.toString(pos.x),
                 Integer.toString(pos.y),
-                readings.toString());
+                BinaryMessage.readingsString(getReadingsMask(pos.x, pos.y)));
+    }
+
+    /**
+     * Gets all the sensor readings at (x,y) as a mask, with bit r set if
+     * reading r+1 is detected.
+     * Only the 9 positions around (x,y) are checked in the envelope index,
+     * so the cost does not depend on the number of envelopes.
+     *
+     * @param x x coordinate of the position
+     * @param y y coordinate of the position
+     * @return the readings mask
+     */
+    int getReadingsMask(int x, int y) {
+        int mask = 0;
+        for (int r = 0; r < EnvelopeFinder.READING_AREAS.length; r++) {
+            for (int[] delta : EnvelopeFinder.READING_AREAS[r]) {
+                if (envelopeIndex.contains(x + delta[0], y + delta[1])) {
+                    mask |= 1 << r;
+                    break;
+                }
+            }
+        }
+        return mask;
     }
 
 
@@ -0,0 +1,269 @@
+package apryraz.eworld;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server that exposes an EnvelopeWorldEnv to agents running in other
+ * processes, through TCP connections handled by a single NIO selector
+ * thread. Every connection is answered with the same environment, so the
+ * messages are processed one at a time, as with direct calls.
+ * <p>
+ * Protocol: the client starts with a header of two big-endian ints,
+ * FILE_MAGIC and PROTOCOL_VERSION, and the server answers with the same
+ * two ints and the dimension of the world. Then every message, in both
+ * directions, is a frame of FRAME_BYTES bytes: the type as a byte, x and y
+ * as ints, and the readings mask as a byte. The server answers the frames
+ * of a connection in the order they arrive, so a client can pipeline as
+ * many requests as it wants, and send them in batches, without waiting for
+ * the answers. When a client does not read its answers, the server stops
+ * reading its requests until they are sent.
+ **/
+public class EnvironmentServer implements Closeable {
+
+    /**
+     * First int of the headers of the connections ("EWEP")
+     **/
+    static final int FILE_MAGIC = 0x45574550;
+    /**
+     * Version of the protocol
+     **/
+    static final int PROTOCOL_VERSION = 1;
+    /**
+     * Size of the header sent by the client, and of the one sent by the server
+     **/
+    static final int CLIENT_HEADER_BYTES = 2 * Integer.BYTES;
+    static final int SERVER_HEADER_BYTES = 3 * Integer.BYTES;
+    /**
+     * Size of every message frame
+     **/
+    static final int FRAME_BYTES = 2 + 2 * Integer.BYTES;
+    /**
+     * Size of the input and output buffers of every connection
+     **/
+    static final int BUFFER_BYTES = 1 << 16;
+
+    /**
+     * Environment that answers the messages
+     **/
+    EnvelopeWorldEnv environment;
+    ServerSocketChannel serverChannel;
+    Selector selector;
+    Thread thread;
+    /**
+     * Number of messages answered so far
+     **/
+    volatile long messages;
+
+    /**
+     * Class constructor. Binds the server to the given address and starts
+     * the thread that serves the connections.
+     *
+     * @param environment the environment that answers the messages
+     * @param address     local address of the server; port 0 chooses a free one
+     * @throws IOException if the address can not be bound
+     **/
+    public EnvironmentServer(EnvelopeWorldEnv environment, SocketAddress address) throws IOException {
+        this.environment = environment;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        thread = new Thread(this::serve, "eworld-env-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the address where the server listens, with the port chosen.
+     *
+     * @return local address of the server
+     * @throws IOException IoException error
+     **/
+    public SocketAddress getAddress() throws IOException {
+        return serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Returns the number of messages answered so far, by all the connections.
+     *
+     * @return number of messages answered
+     **/
+    public long getMessages() {
+        return messages;
+    }
+
+    /**
+     * Stop the server, closing all the connections, and wait for its thread.
+     **/
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        serverChannel.close();
+    }
+
+    /**
+     * Loop of the thread of the server, until the selector is closed.
+     **/
+    void serve() {
+        try {
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        try {
+                            ((Connection) key.attachment()).process(key);
+                        } catch (IOException ex) {
+                            closeConnection(key);  // the client went away
+                        }
+                    }
+                }
+            }
+        } catch (ClosedSelectorException ex) {
+            // close() was called
+        } catch (IOException ex) {
+            Logger.getLogger(EnvironmentServer.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            for (SelectionKey key : selectorKeys()) {
+                closeConnection(key);
+            }
+        }
+    }
+
+    /**
+     * Returns the keys of the selector, or none if it is already closed.
+     **/
+    Iterable<SelectionKey> selectorKeys() {
+        try {
+            return selector.keys();
+        } catch (ClosedSelectorException ex) {
+            return Collections.emptySet();
+        }
+    }
+
+    void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    static void closeConnection(SelectionKey key) {
+        key.cancel();
+        if (key.channel() instanceof SocketChannel) {
+            try {
+                key.channel().close();
+            } catch (IOException ex) {
+                // nothing else to do with it
+            }
+        }
+    }
+
+    /**
+     * State of a connection: its buffers, and whether the header has been
+     * received.
+     **/
+    class Connection {
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+        ByteBuffer out = ByteBuffer.allocate(BUFFER_BYTES);
+        boolean started;
+        BinaryMessage request = new BinaryMessage();
+        BinaryMessage answer = new BinaryMessage();
+
+        /**
+         * Read the frames available, answer all the complete ones that fit
+         * in the output buffer, and write the answers.
+         **/
+        void process(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (key.isReadable() && channel.read(in) < 0) {
+                closeConnection(key);
+                return;
+            }
+            in.flip();
+            if (!started && in.remaining() >= CLIENT_HEADER_BYTES) {
+                if (in.getInt() != FILE_MAGIC || in.getInt() != PROTOCOL_VERSION) {
+                    closeConnection(key);
+                    return;
+                }
+                out.putInt(FILE_MAGIC).putInt(PROTOCOL_VERSION).putInt(environment.WorldDim);
+                started = true;
+            }
+            if (started) {
+                do {
+                    while (in.remaining() >= FRAME_BYTES && out.remaining() >= FRAME_BYTES) {
+                        request.set(in.get(), in.getInt(), in.getInt(), in.get());
+                        if (request.type < 0 || request.type >= BinaryMessage.TYPE_NAMES.length) {
+                            closeConnection(key);
+                            return;
+                        }
+                        environment.acceptMessage(request, answer);
+                        messages++;
+                        out.put((byte) answer.type).putInt(answer.x).putInt(answer.y).put((byte) answer.readings);
+                    }
+                    out.flip();
+                    channel.write(out);
+                    out.compact();
+                } while (out.position() == 0 && in.remaining() >= FRAME_BYTES);
+            }
+            in.compact();
+            // Stop reading while the answers can not be sent, and go on when they are
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * Serve an environment until the process is stopped.
+     *
+     * @param args ...
+     *             arg[0] = port of the server
+     *             arg[1] = dimension of the world
+     *             arg[2] = file with the envelopes, in text or binary format
+     * @throws IOException IoException error
+     **/
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: EnvelopeWorld -serve port wdim envelopesFile");
+            throw new IllegalArgumentException(String.format("Expected 3 arguments. Given %d", args.length));
+        }
+        int port = Integer.parseInt(args[0]);
+        int wDim = Integer.parseInt(args[1]);
+        EnvelopeWorldEnv env = new EnvelopeWorldEnv(wDim, args[2], OutputSink.silent());
+        EnvironmentServer server = new EnvironmentServer(env, new InetSocketAddress(port));
+        System.out.printf("ENVIRONMENT SERVER => %dx%d world with %d envelopes at %s%n",
+                wDim, wDim, env.numEnvelopes, server.getAddress());
+        try {
+            server.thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
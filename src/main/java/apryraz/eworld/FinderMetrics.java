@@ -0,0 +1,320 @@
+package apryraz.eworld;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Runtime metrics of the steps of an EnvelopeFinder agent: the time spent
+ * in every phase of runNextStep, recorded in latency histograms, and
+ * counters of the work done by the solver. They can be read with
+ * getSnapshot, or published through JMX with registerMBean.
+ * <p>
+ * The agent records a step calling startStep, endPhase after every phase,
+ * and endStep at the end. All the methods are synchronized, so the metrics
+ * can be read by the JMX threads while the agent is running.
+ **/
+public class FinderMetrics implements FinderMetricsMXBean {
+
+    /**
+     * Phases of runNextStep. STEP is the whole step.
+     **/
+    public enum Phase {ADD_PAST_CLAUSES, MOVE, SENSE, PROCESS_SENSOR, INFERENCE, OUTPUT, STEP}
+
+    /**
+     * Domain of the names of the MBeans registered by registerMBean
+     **/
+    static final String DOMAIN = "apryraz.eworld";
+
+    LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+    /**
+     * Time at which the current step started, and the last phase ended
+     **/
+    long stepStart, lapStart;
+    long lastStepNanos;
+    /**
+     * Counters of all the steps recorded
+     **/
+    long steps, satCalls, satResults, unsatResults, clausesAdded;
+    /**
+     * Values after the last step recorded. heapOccupiedBytes is the heap
+     * occupied at that moment (totalMemory - freeMemory), which includes
+     * the garbage not collected yet, so it is not the heap retained by
+     * the agent.
+     **/
+    long futureToPastSize, conflicts, decisions, heapOccupiedBytes;
+    /**
+     * Name of the MBean registered, or null
+     **/
+    ObjectName mbeanName;
+
+    public FinderMetrics() {
+        for (int p = 0; p < phases.length; p++) {
+            phases[p] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Start the timing of a step.
+     **/
+    public synchronized void startStep() {
+        stepStart = System.nanoTime();
+        lapStart = stepStart;
+    }
+
+    /**
+     * Record the time since the end of the previous phase of the step, or
+     * since the start of the step, as the time of the given phase.
+     *
+     * @param phase the phase that just ended
+     **/
+    public synchronized void endPhase(Phase phase) {
+        long now = System.nanoTime();
+        phases[phase.ordinal()].record(now - lapStart);
+        lapStart = now;
+    }
+
+    /**
+     * Record the end of the step, with the counters of the work done.
+     *
+     * @param calls            solver calls performed in the step
+     * @param unsat            solver calls of the step answered UNSAT
+     * @param clauses          clauses added to the solver in the step
+     * @param futureToPast     conclusions pending for the next step
+     * @param solverStatistics statistics of the solver (getStat), or null. The map
+     *                         is taken with wildcard types because SAT4J returns it raw
+     **/
+    public synchronized void endStep(long calls, long unsat, long clauses, long futureToPast,
+                                     Map<?, ?> solverStatistics) {
+        lastStepNanos = System.nanoTime() - stepStart;
+        phases[Phase.STEP.ordinal()].record(lastStepNanos);
+        steps++;
+        satCalls += calls;
+        unsatResults += unsat;
+        satResults += calls - unsat;
+        clausesAdded += clauses;
+        futureToPastSize = futureToPast;
+        if (solverStatistics != null) {
+            conflicts = statistic(solverStatistics, "conflicts");
+            decisions = statistic(solverStatistics, "decisions");
+        }
+        Runtime runtime = Runtime.getRuntime();
+        heapOccupiedBytes = runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Returns a statistic of the solver, or 0 if it does not have it as a number.
+     **/
+    static long statistic(Map<?, ?> solverStatistics, String key) {
+        Object value = solverStatistics.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        PhaseStats[] stats = new PhaseStats[phases.length];
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = phases[phase.ordinal()];
+            stats[phase.ordinal()] = new PhaseStats(phase.name(), histogram.getCount(), histogram.getTotal(),
+                    histogram.percentile(0.5), histogram.percentile(0.99), histogram.getMax());
+        }
+        return new Snapshot(steps, satCalls, satResults, unsatResults, clausesAdded, futureToPastSize,
+                conflicts, decisions, heapOccupiedBytes, stats);
+    }
+
+    @Override
+    public synchronized long getSteps() {
+        return steps;
+    }
+
+    @Override
+    public synchronized long getLastStepNanos() {
+        return lastStepNanos;
+    }
+
+    @Override
+    public synchronized long getStepP50Nanos() {
+        return phases[Phase.STEP.ordinal()].percentile(0.5);
+    }
+
+    @Override
+    public synchronized long getStepP99Nanos() {
+        return phases[Phase.STEP.ordinal()].percentile(0.99);
+    }
+
+    @Override
+    public synchronized long getStepMaxNanos() {
+        return phases[Phase.STEP.ordinal()].getMax();
+    }
+
+    @Override
+    public synchronized long getSatCalls() {
+        return satCalls;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : phases) {
+            histogram.reset();
+        }
+        lastStepNanos = 0;
+        steps = 0;
+        satCalls = 0;
+        satResults = 0;
+        unsatResults = 0;
+        clausesAdded = 0;
+    }
+
+    /**
+     * Publish the metrics in the platform MBean server, with the name
+     * apryraz.eworld:type=FinderMetrics,name=NAME.
+     *
+     * @param name name of the agent, to tell apart the MBeans of several agents
+     * @throws JMException if the MBean can not be registered
+     **/
+    public synchronized void registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=FinderMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        mbeanName = objectName;
+    }
+
+    /**
+     * Remove the MBean published by registerMBean, if any.
+     *
+     * @throws JMException if the MBean can not be unregistered
+     **/
+    public synchronized void unregisterMBean() throws JMException {
+        if (mbeanName != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(mbeanName)) {
+                server.unregisterMBean(mbeanName);
+            }
+            mbeanName = null;
+        }
+    }
+
+    public synchronized ObjectName getObjectName() {
+        return mbeanName;
+    }
+
+    /**
+     * Metrics at a given moment. Read with getters, so JMX shows them as a
+     * composite value.
+     **/
+    public static class Snapshot {
+        final long steps, satCalls, satResults, unsatResults, clausesAdded;
+        final long futureToPastSize, conflicts, decisions, heapOccupiedBytes;
+        final PhaseStats[] phases;
+
+        public Snapshot(long steps, long satCalls, long satResults, long unsatResults, long clausesAdded,
+                        long futureToPastSize, long conflicts, long decisions, long heapOccupiedBytes,
+                        PhaseStats[] phases) {
+            this.steps = steps;
+            this.satCalls = satCalls;
+            this.satResults = satResults;
+            this.unsatResults = unsatResults;
+            this.clausesAdded = clausesAdded;
+            this.futureToPastSize = futureToPastSize;
+            this.conflicts = conflicts;
+            this.decisions = decisions;
+            this.heapOccupiedBytes = heapOccupiedBytes;
+            this.phases = phases;
+        }
+
+        public long getSteps() {
+            return steps;
+        }
+
+        public long getSatCalls() {
+            return satCalls;
+        }
+
+        public long getSatResults() {
+            return satResults;
+        }
+
+        public long getUnsatResults() {
+            return unsatResults;
+        }
+
+        public long getClausesAdded() {
+            return clausesAdded;
+        }
+
+        public long getFutureToPastSize() {
+            return futureToPastSize;
+        }
+
+        public long getConflicts() {
+            return conflicts;
+        }
+
+        public long getDecisions() {
+            return decisions;
+        }
+
+        public long getHeapOccupiedBytes() {
+            return heapOccupiedBytes;
+        }
+
+        public PhaseStats[] getPhases() {
+            return phases.clone();
+        }
+
+        /**
+         * Returns the statistics of a phase.
+         *
+         * @param phase the phase
+         * @return the latencies of the phase
+         **/
+        public PhaseStats phase(Phase phase) {
+            return phases[phase.ordinal()];
+        }
+    }
+
+    /**
+     * Latencies of a phase, in nanoseconds.
+     **/
+    public static class PhaseStats {
+        final String name;
+        final long count, totalNanos, p50Nanos, p99Nanos, maxNanos;
+
+        public PhaseStats(String name, long count, long totalNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+            this.name = name;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+package apryraz.eworld;
+
+/**
+ * Management interface of the metrics of an EnvelopeFinder agent, as
+ * published through JMX by FinderMetrics.registerMBean.
+ **/
+public interface FinderMetricsMXBean {
+
+    /**
+     * Returns all the metrics at this moment.
+     *
+     * @return a copy of the metrics, that does not change afterwards
+     **/
+    FinderMetrics.Snapshot getSnapshot();
+
+    long getSteps();
+
+    long getLastStepNanos();
+
+    long getStepP50Nanos();
+
+    long getStepP99Nanos();
+
+    long getStepMaxNanos();
+
+    long getSatCalls();
+
+    /**
+     * Forget all the metrics recorded so far.
+     **/
+    void reset();
+}
@@ -0,0 +1,33 @@
+package apryraz.eworld;
+
+/**
+ * Ways in which the EnvelopeFinder agent can build the formula with the
+ * rules of the Envelope World.
+ **/
+public enum GammaMode {
+    /**
+     * Build all the variables and clauses when the agent is created.
+     */
+    STANDARD,
+    /**
+     * Same formula as STANDARD, but loaded from the GammaTemplate of the
+     * dimension of the world, that is generated only once and shared by
+     * all the agents.
+     */
+    TEMPLATE,
+    /**
+     * Use the same variables, but only add the clauses of the readings of a
+     * position the first time the agent senses there. The clauses and the
+     * memory of the agent grow with the positions sensed, but the variable
+     * ids still span the 7*n*n variables of STANDARD mode, and the solver
+     * sizes its per variable arrays by the largest id in its clauses.
+     */
+    LAZY,
+    /**
+     * Use only one variable per position, meaning "there is an envelope",
+     * as the envelopes never move. There are no reading variables: every
+     * "0" reading is added directly as unit clauses over the positions it
+     * covers.
+     */
+    COMPACT
+}
@@ -0,0 +1,462 @@
+package apryraz.eworld;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.specs.*;
+
+/**
+ * Precompiled version of the formula with the rules of the Envelope World
+ * that EnvelopeFinder.buildGamma builds. The formula only depends on the
+ * dimension of the world, so it is generated once per dimension and kept
+ * as two primitive arrays: the literals of all the clauses, one clause
+ * after the other, and the index where every clause starts. Loading it
+ * into a new solver does not need to generate anything again.
+ * <p>
+ * Templates can also be stored in a binary file, so that a new process
+ * can load them with a memory-mapped file instead of generating them. The
+ * file starts with a header of six big-endian ints: FILE_MAGIC,
+ * ENCODING_VERSION, dimension, number of variables, number of clauses and
+ * number of literals. Then come the clause start indexes (number of clauses
+ * plus one ints) and the literals.
+ **/
+public class GammaTemplate {
+
+    /**
+     * Templates already generated, by dimension of the world
+     **/
+    static final ConcurrentHashMap<Integer, GammaTemplate> cache = new ConcurrentHashMap<>();
+    /**
+     * First int of the binary template files ("EWGT")
+     **/
+    static final int FILE_MAGIC = 0x45574754;
+    /**
+     * Version of the encoding of the formula. It must be increased every
+     * time the variables or clauses of buildGamma change, so that binary
+     * files of previous versions are rejected.
+     **/
+    static final int ENCODING_VERSION = 1;
+    /**
+     * Size of the header of the binary files, in bytes
+     **/
+    static final int HEADER_BYTES = 6 * Integer.BYTES;
+    /**
+     * Maximum number of bytes mapped or written at once
+     **/
+    static final int CHUNK_BYTES = 1 << 26;
+    /**
+     * Directory where forDimension looks for and stores binary templates,
+     * or null to keep them only in memory. By default, the value of the
+     * system property eworld.gammaCacheDir.
+     **/
+    static volatile Path diskCacheDir = System.getProperty("eworld.gammaCacheDir") == null ? null
+            : Paths.get(System.getProperty("eworld.gammaCacheDir"));
+
+    /**
+     * Dimension of the world
+     **/
+    int WorldDim;
+    /**
+     * Number of variables of the formula
+     **/
+    int numVariables;
+    /**
+     * Literals of all the clauses, one clause after the other
+     **/
+    int[] literals;
+    /**
+     * Clause c has the literals from clauseStart[c] to clauseStart[c + 1] - 1
+     **/
+    int[] clauseStart;
+    /**
+     * Number of clauses, and number of literals, generated so far
+     **/
+    int numClauses, numLiterals;
+
+    /**
+     * Returns the template for the given dimension, generating it if it is
+     * the first time that it is requested.
+     *
+     * @param dim dimension of the world
+     * @return the template of the formula for worlds of that dimension
+     **/
+    public static GammaTemplate forDimension(int dim) {
+        return cache.computeIfAbsent(dim, GammaTemplate::loadOrGenerate);
+    }
+
+    /**
+     * Set the directory where forDimension looks for binary templates
+     * before generating them, and where it stores the ones it generates.
+     *
+     * @param dir the cache directory, or null to disable the disk cache
+     **/
+    public static void setDiskCacheDir(Path dir) {
+        diskCacheDir = dir;
+    }
+
+    /**
+     * Returns the name of the binary template file for a dimension.
+     *
+     * @param dim dimension of the world
+     * @return the file name, relative to the cache directory
+     **/
+    static String fileName(int dim) {
+        return "gamma-v" + ENCODING_VERSION + "-" + dim + ".bin";
+    }
+
+    /**
+     * Load the template of the given dimension from the disk cache. If
+     * there is no disk cache, or the file does not exist or is not valid,
+     * generate it (and store it, if there is a disk cache).
+     *
+     * @param dim dimension of the world
+     * @return the template of the formula for worlds of that dimension
+     **/
+    static GammaTemplate loadOrGenerate(int dim) {
+        Path dir = diskCacheDir;
+        if (dir == null) {
+            return new GammaTemplate(dim);
+        }
+        Path file = dir.resolve(fileName(dim));
+        if (Files.exists(file)) {
+            try {
+                return readFrom(file, dim);
+            } catch (IOException ex) {
+                Logger.getLogger(GammaTemplate.class.getName()).log(Level.WARNING,
+                        "Discarding gamma template file " + file, ex);
+            }
+        }
+        GammaTemplate template = new GammaTemplate(dim);
+        try {
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, "gamma", ".tmp");
+            template.writeTo(tmp);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            Logger.getLogger(GammaTemplate.class.getName()).log(Level.WARNING,
+                    "Unable to store gamma template file " + file, ex);
+        }
+        return template;
+    }
+
+    /**
+     * Load the template of the given dimension from a binary file written
+     * by writeTo, and use it from now on as the template of that dimension,
+     * instead of the one in memory or in the disk cache.
+     *
+     * @param file the file to read
+     * @param dim  dimension of the world the template must have
+     * @return the template stored in the file
+     * @throws IOException if the file is not a valid template of that
+     *                     dimension (see readFrom)
+     **/
+    public static GammaTemplate load(Path file, int dim) throws IOException {
+        GammaTemplate template = readFrom(file, dim);
+        cache.put(dim, template);
+        return template;
+    }
+
+    /**
+     * Forget all the templates generated so far.
+     **/
+    public static void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * Generate the template for the given dimension, with the same clauses,
+     * in the same order, and with the same variables that buildGamma uses:
+     * past ALO, future ALO, past to future, and no reading 1 to 5.
+     *
+     * @param dim dimension of the world
+     **/
+    GammaTemplate(int dim) {
+        WorldDim = dim;
+        int linealDim = dim * dim;
+        numVariables = linealDim * 7;
+        int pastOffset = 1;
+        int futureOffset = pastOffset + linealDim;
+        int readOffset = futureOffset + linealDim;
+
+        int expectedClauses = 2 + linealDim * 14;
+        literals = new int[2 * linealDim + 2 * (expectedClauses - 2)];
+        clauseStart = new int[expectedClauses + 1];
+
+        // at least one envelope at past and at future
+        for (int offset : new int[]{pastOffset, futureOffset}) {
+            for (int l = linealDim - 1; l >= 0; l--) {
+                addLiteral(l + offset);
+            }
+            endClause();
+        }
+        // keep past to future consistency
+        for (int l = 0; l < linealDim; l++) {
+            addLiteral(-(l + futureOffset));
+            addLiteral(l + pastOffset);
+            endClause();
+        }
+        // no reading 1 to 5
+        for (int r = 0; r < EnvelopeFinder.READING_AREAS.length; r++) {
+            for (int i = 1; i <= dim; i++) {
+                for (int j = 1; j <= dim; j++) {
+                    int detectLiteral = readOffset + r * linealDim + (i - 1) * dim + (j - 1);
+                    for (int[] delta : EnvelopeFinder.READING_AREAS[r]) {
+                        int x = i + delta[0];
+                        int y = j + delta[1];
+                        if (x >= 1 && x <= dim && y >= 1 && y <= dim) {
+                            addLiteral(detectLiteral);
+                            addLiteral(-(futureOffset + (x - 1) * dim + (y - 1)));
+                            endClause();
+                        }
+                    }
+                }
+            }
+        }
+        literals = Arrays.copyOf(literals, numLiterals);
+        clauseStart = Arrays.copyOf(clauseStart, numClauses + 1);
+    }
+
+    /**
+     * Build a template from clauses already generated.
+     *
+     * @param dim          dimension of the world
+     * @param numVariables number of variables of the formula
+     * @param literals     literals of all the clauses, one after the other
+     * @param clauseStart  index of the first literal of every clause, plus
+     *                     the total number of literals at the end
+     **/
+    GammaTemplate(int dim, int numVariables, int[] literals, int[] clauseStart) {
+        WorldDim = dim;
+        this.numVariables = numVariables;
+        this.literals = literals;
+        this.clauseStart = clauseStart;
+        numClauses = clauseStart.length - 1;
+        numLiterals = literals.length;
+    }
+
+    /**
+     * Append a literal to the clause being generated.
+     *
+     * @param literal the literal to append
+     **/
+    void addLiteral(int literal) {
+        literals[numLiterals++] = literal;
+    }
+
+    /**
+     * Finish the clause being generated.
+     **/
+    void endClause() {
+        numClauses++;
+        clauseStart[numClauses] = numLiterals;
+    }
+
+    /**
+     * Add all the variables and clauses of the template to the solver.
+     * The same buffer is used for all the clauses, as the solver copies
+     * the literals of every clause it receives.
+     *
+     * @param solver the solver where the formula is loaded
+     * @throws ContradictionException contradiction error
+     **/
+    public void loadInto(ISolver solver) throws ContradictionException {
+        solver.newVar(numVariables);
+        solver.setExpectedNumberOfClauses(numClauses);
+        VecInt clause = new VecInt(WorldDim * WorldDim);
+        for (int c = 0; c < numClauses; c++) {
+            clause.clear();
+            for (int k = clauseStart[c]; k < clauseStart[c + 1]; k++) {
+                clause.push(literals[k]);
+            }
+            solver.addClause(clause);
+        }
+    }
+
+    /**
+     * Store the template in a binary file, with the format described in the
+     * class comment.
+     *
+     * @param file the file to write
+     * @throws IOException IoException error
+     **/
+    public void writeTo(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(FILE_MAGIC).putInt(ENCODING_VERSION).putInt(WorldDim)
+                    .putInt(numVariables).putInt(numClauses).putInt(numLiterals);
+            header.flip();
+            writeFully(channel, header);
+            writeInts(channel, clauseStart);
+            writeInts(channel, literals);
+        }
+    }
+
+    /**
+     * Load a template from a binary file written by writeTo, mapping the
+     * file in memory.
+     *
+     * @param file the file to read
+     * @param dim  dimension of the world the template must have
+     * @return the template stored in the file
+     * @throws IOException if the file can not be read, was written for
+     *                     another dimension or encoding version, is truncated,
+     *                     or has clauses or variables that are not valid
+     **/
+    public static GammaTemplate readFrom(Path file, int dim) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("Gamma template file too short: " + file);
+            }
+            IntBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).asIntBuffer();
+            if (header.get(0) != FILE_MAGIC) {
+                throw new IOException("Not a gamma template file: " + file);
+            }
+            if (header.get(1) != ENCODING_VERSION) {
+                throw new IOException(String.format("Gamma template file %s has encoding version %d, expected %d",
+                        file, header.get(1), ENCODING_VERSION));
+            }
+            if (header.get(2) != dim) {
+                throw new IOException(String.format("Gamma template file %s is for dimension %d, expected %d",
+                        file, header.get(2), dim));
+            }
+            int vars = header.get(3);
+            if (vars != 7L * dim * dim) {
+                throw new IOException(String.format("Gamma template file %s has %d variables, expected %d",
+                        file, vars, 7L * dim * dim));
+            }
+            int clauses = header.get(4);
+            int lits = header.get(5);
+            long expectedSize = HEADER_BYTES + ((long) clauses + 1 + lits) * Integer.BYTES;
+            if (clauses < 0 || lits < 0 || channel.size() != expectedSize) {
+                throw new IOException(String.format("Gamma template file %s has %d bytes, expected %d",
+                        file, channel.size(), expectedSize));
+            }
+            int[] starts = readInts(channel, HEADER_BYTES, clauses + 1);
+            int[] literals = readInts(channel, HEADER_BYTES + (long) (clauses + 1) * Integer.BYTES, lits);
+            if (starts[0] != 0 || starts[clauses] != lits) {
+                throw new IOException("Corrupted gamma template file: " + file);
+            }
+            for (int c = 0; c < clauses; c++) {
+                if (starts[c] > starts[c + 1]) {
+                    throw new IOException(String.format("Corrupted gamma template file %s: clause %d", file, c));
+                }
+            }
+            for (int k = 0; k < lits; k++) {
+                if (literals[k] == 0 || literals[k] > vars || literals[k] < -vars) {
+                    throw new IOException(String.format("Corrupted gamma template file %s: literal %d at %d",
+                            file, literals[k], k));
+                }
+            }
+            return new GammaTemplate(dim, vars, literals, starts);
+        }
+    }
+
+    /**
+     * Write the template in DIMACS CNF format, to inspect it or to use it
+     * with other tools.
+     *
+     * @param file the file to write
+     * @throws IOException IoException error
+     **/
+    public void writeDimacs(Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("c Envelope World gamma, dimension " + WorldDim + ", encoding version " + ENCODING_VERSION);
+            out.newLine();
+            out.write("p cnf " + numVariables + " " + numClauses);
+            out.newLine();
+            for (int c = 0; c < numClauses; c++) {
+                for (int k = clauseStart[c]; k < clauseStart[c + 1]; k++) {
+                    out.write(Integer.toString(literals[k]));
+                    out.write(' ');
+                }
+                out.write('0');
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Write all the ints of the array to the channel, in chunks.
+     **/
+    static void writeInts(FileChannel channel, int[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(CHUNK_BYTES, Math.max(Integer.BYTES, values.length * Integer.BYTES)));
+        int next = 0;
+        while (next < values.length) {
+            buffer.clear();
+            int count = Math.min(values.length - next, buffer.capacity() / Integer.BYTES);
+            buffer.asIntBuffer().put(values, next, count);
+            buffer.limit(count * Integer.BYTES);
+            writeFully(channel, buffer);
+            next += count;
+        }
+    }
+
+    /**
+     * Write all the remaining bytes of the buffer to the channel.
+     **/
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Read count ints starting at position, mapping the file in chunks.
+     **/
+    static int[] readInts(FileChannel channel, long position, int count) throws IOException {
+        int[] values = new int[count];
+        int next = 0;
+        while (next < count) {
+            int chunk = Math.min(count - next, CHUNK_BYTES / Integer.BYTES);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                    position + (long) next * Integer.BYTES, (long) chunk * Integer.BYTES);
+            mapped.asIntBuffer().get(values, next, chunk);
+            next += chunk;
+        }
+        return values;
+    }
+
+    /**
+     * Returns the dimension of the world of the template.
+     *
+     * @return the dimension of the world
+     **/
+    public int getWorldDim() {
+        return WorldDim;
+    }
+
+    /**
+     * Returns the number of variables of the formula.
+     *
+     * @return number of variables
+     **/
+    public int getNumVariables() {
+        return numVariables;
+    }
+
+    /**
+     * Returns the number of clauses of the formula.
+     *
+     * @return number of clauses
+     **/
+    public int getNumClauses() {
+        return numClauses;
+    }
+
+}
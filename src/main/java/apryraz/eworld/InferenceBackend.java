@@ -0,0 +1,35 @@
+package apryraz.eworld;
+
+import org.sat4j.specs.ISolver;
+
+/**
+ * Provider of the SAT solvers used by the EnvelopeFinder agent to store
+ * its formula and perform the inference questions. The agent asks for a
+ * new solver every time it builds its formula, and one for every replica
+ * of the PARALLEL mode, so every call must return a new solver.
+ * <p>
+ * SolverBackend has the configurations of SAT4J, and PortfolioBackend
+ * races several backends. Other solvers can be used by implementing
+ * this interface.
+ * <p>
+ * The solvers of a PortfolioBackend (and of SolverBackend.PORTFOLIO) do not
+ * support removeConstr nor removeSubsumedConstr, which throw
+ * UnsupportedOperationException: they can not be used where constraints
+ * are removed. The EnvelopeFinder agent never removes constraints.
+ **/
+public interface InferenceBackend {
+
+    /**
+     * Returns a new empty solver.
+     *
+     * @return a solver with no variables nor clauses
+     **/
+    ISolver newSolver();
+
+    /**
+     * Returns the name of the backend, as given in the command line.
+     *
+     * @return the name of the backend
+     **/
+    String getName();
+}
@@ -0,0 +1,57 @@
+package apryraz.eworld;
+
+/**
+ * Strategies that the EnvelopeFinder agent can use to perform the
+ * inference questions after every step.
+ **/
+public enum InferenceMode {
+    /**
+     * Ask the solver about every position of the world, every step.
+     */
+    FULL,
+    /**
+     * Only ask the solver about the positions that can be affected by the
+     * evidence added since the last inference, skipping the ones already
+     * known to be empty.
+     */
+    INCREMENTAL,
+    /**
+     * Use the models returned by the solver to discard at once all the
+     * positions that can still hold an envelope, and only check one by one
+     * the positions that remain.
+     */
+    BACKBONE,
+    /**
+     * Ask about all the positions not yet known to be empty, splitting the
+     * rows of the world between several threads, each one with its own
+     * replica of the solver.
+     */
+    PARALLEL,
+    /**
+     * Do not use a SAT solver: apply every "0" reading directly to a packed
+     * bitset of empty positions. It must be chosen when the agent is created,
+     * as no formula is built in this mode.
+     */
+    BITSET,
+    /**
+     * Check the same positions as INCREMENTAL, nearest to the agent first,
+     * until the time budget of the step runs out, and the rest in the
+     * background between steps. The state is sound but may be incomplete
+     * until EnvelopeFinder.waitForCompleteKnowledge is called.
+     */
+    ANYTIME,
+    /**
+     * Check the same positions as INCREMENTAL, but with one small formula
+     * per tile of the world instead of a formula of the whole world (see
+     * TiledInference). Like BITSET, it must be chosen when the agent is
+     * created, and the formula mode is ignored.
+     */
+    TILED,
+    /**
+     * Check the same positions as INCREMENTAL, splitting them in connected
+     * components that are solved in parallel, each one with its own small
+     * formula (see ComponentInference). Like TILED, it must be chosen when
+     * the agent is created, and the formula mode is ignored.
+     */
+    COMPONENTS
+}
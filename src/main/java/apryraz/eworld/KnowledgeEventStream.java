@@ -0,0 +1,308 @@
+package apryraz.eworld;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Stream of the knowledge obtained by the agent in every step: the step
+ * number, the position of the agent, the readings of the sensor, and the
+ * positions newly marked "X" by the inference. The size of every event
+ * only depends on the new knowledge, not on the size of the world, and
+ * the state of the agent after any step can be rebuilt from the events.
+ * <p>
+ * There are two formats:
+ * <ul>
+ * <li>BINARY: a header of three big-endian ints (FILE_MAGIC, FORMAT_VERSION
+ * and dimension) and then, per step, the step number, x and y as ints,
+ * the readings mask as a byte, the number of new positions as a varint,
+ * and their lineal indexes (x-1)*dim + (y-1), sorted and delta-encoded as
+ * varints (the first one, and then the difference with the previous one).</li>
+ * <li>NDJSON: a first line {"dim":D} and then one line per step like
+ * {"step":3,"x":2,"y":5,"readings":"10100","empty":[[1,4],[1,5]]}.</li>
+ * </ul>
+ **/
+public class KnowledgeEventStream implements Closeable {
+
+    /**
+     * Formats of the stream
+     **/
+    public enum Format {BINARY, NDJSON}
+
+    /**
+     * First int of the binary streams ("EWKE")
+     **/
+    static final int FILE_MAGIC = 0x45574b45;
+    /**
+     * Version of the binary format
+     **/
+    static final int FORMAT_VERSION = 1;
+
+    Format format;
+    DataOutputStream out;
+    /**
+     * Dimension of the world
+     **/
+    int WorldDim;
+    /**
+     * Sorted positions of the step being written, and text of an NDJSON line
+     **/
+    int[] cells = new int[0];
+    StringBuilder line = new StringBuilder();
+
+    /**
+     * Class constructor. Writes the header of the stream.
+     *
+     * @param out    where the events are written
+     * @param format format of the events
+     * @param dim    dimension of the world
+     * @throws IOException IoException error
+     **/
+    public KnowledgeEventStream(OutputStream out, Format format, int dim) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        this.format = format;
+        WorldDim = dim;
+        if (format == Format.BINARY) {
+            this.out.writeInt(FILE_MAGIC);
+            this.out.writeInt(FORMAT_VERSION);
+            this.out.writeInt(dim);
+        } else {
+            line.append("{\"dim\":").append(dim).append("}\n");
+            writeLine();
+        }
+    }
+
+    /**
+     * Write the event of a step, with the changes recorded by the state
+     * since the last event, and clear them.
+     *
+     * @param step     number of the step, starting at 1
+     * @param x        x coordinate of the agent
+     * @param y        y coordinate of the agent
+     * @param readings readings mask of the sensor (bit r for reading r+1)
+     * @param state    state of the agent, with setTrackChanges(true)
+     * @throws IOException IoException error
+     **/
+    public void writeStep(int step, int x, int y, int readings, EFState state) throws IOException {
+        int count = state.getNumChanges();
+        if (cells.length < count) {
+            cells = new int[Math.max(count, 2 * cells.length)];
+        }
+        for (int k = 0; k < count; k++) {
+            cells[k] = state.getChange(k);
+        }
+        state.clearChanges();
+        Arrays.sort(cells, 0, count);
+        if (format == Format.BINARY) {
+            out.writeInt(step);
+            out.writeInt(x);
+            out.writeInt(y);
+            out.writeByte(readings);
+            writeVarint(count);
+            int previous = 0;
+            for (int k = 0; k < count; k++) {
+                writeVarint(cells[k] - previous);
+                previous = cells[k];
+            }
+        } else {
+            line.append("{\"step\":").append(step).append(",\"x\":").append(x).append(",\"y\":").append(y)
+                    .append(",\"readings\":\"");
+            for (int r = 0; r < 5; r++) {
+                line.append((readings & (1 << r)) != 0 ? '1' : '0');
+            }
+            line.append("\",\"empty\":[");
+            for (int k = 0; k < count; k++) {
+                line.append(k == 0 ? "[" : ",[").append(cells[k] / WorldDim + 1).append(',')
+                        .append(cells[k] % WorldDim + 1).append(']');
+            }
+            line.append("]}\n");
+            writeLine();
+        }
+    }
+
+    /**
+     * Write the buffered events to the underlying stream.
+     *
+     * @throws IOException IoException error
+     **/
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Write an unsigned int in groups of 7 bits, lowest first, with the
+     * high bit of every byte set if more bytes follow.
+     **/
+    void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Write the NDJSON line rendered, which only has ASCII chars.
+     **/
+    void writeLine() throws IOException {
+        for (int c = 0; c < line.length(); c++) {
+            out.write(line.charAt(c));
+        }
+        line.setLength(0);
+    }
+
+    /**
+     * Rebuild the final state of the agent from a stream of events in
+     * either format.
+     *
+     * @param in the stream of events
+     * @return the state after the last event
+     * @throws IOException if the stream can not be read or is not valid
+     **/
+    public static EFState readState(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, 1 << 16);
+        buffered.mark(1);
+        int first = buffered.read();
+        buffered.reset();
+        if (first == '{') {
+            return readNdjson(buffered);
+        }
+        return readBinary(new DataInputStream(buffered));
+    }
+
+    /**
+     * Rebuild the state from a binary stream.
+     **/
+    static EFState readBinary(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_MAGIC) {
+            throw new IOException("Not a knowledge event stream");
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException(String.format("Knowledge event stream has format version %d, expected %d",
+                    version, FORMAT_VERSION));
+        }
+        int dim = in.readInt();
+        EFState state = new EFState(dim);
+        while (true) {
+            try {
+                in.readInt();  // step
+            } catch (EOFException ex) {
+                return state;
+            }
+            in.readInt();  // x
+            in.readInt();  // y
+            in.readByte();  // readings
+            int count = readVarint(in);
+            int cell = 0;
+            for (int k = 0; k < count; k++) {
+                cell += readVarint(in);
+                if (cell < 0 || cell >= dim * dim) {
+                    throw new IOException("Position out of the world in knowledge event stream: " + cell);
+                }
+                state.markEmpty(cell / dim + 1, cell % dim + 1);
+            }
+        }
+    }
+
+    /**
+     * Read an unsigned varint written by writeVarint.
+     **/
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in knowledge event stream");
+    }
+
+    /**
+     * Rebuild the state from an NDJSON stream. Only the fields written by
+     * writeStep are understood: the dimension of the first line, and the
+     * pairs of the "empty" array of the others.
+     **/
+    static EFState readNdjson(InputStream in) throws IOException {
+        String firstLine = readLine(in);
+        int dimStart = firstLine == null ? -1 : firstLine.indexOf("\"dim\":");
+        if (dimStart < 0) {
+            throw new IOException("Knowledge event stream without dimension");
+        }
+        int dim = parseInts(firstLine, dimStart + 6, 1)[0];
+        EFState state = new EFState(dim);
+        String line;
+        while ((line = readLine(in)) != null) {
+            int emptyStart = line.indexOf("\"empty\":[");
+            if (emptyStart < 0) {
+                continue;
+            }
+            int[] coords = parseInts(line, emptyStart + 9, Integer.MAX_VALUE);
+            for (int k = 0; k + 1 < coords.length; k += 2) {
+                if (coords[k] < 1 || coords[k] > dim || coords[k + 1] < 1 || coords[k + 1] > dim) {
+                    throw new IOException("Position out of the world in knowledge event stream: " + line);
+                }
+                state.markEmpty(coords[k], coords[k + 1]);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Parse up to max non negative ints of text, starting at from, until
+     * the closing bracket or brace of the value.
+     **/
+    static int[] parseInts(String text, int from, int max) {
+        int[] values = new int[8];
+        int count = 0;
+        int depth = 0;
+        for (int c = from; c < text.length() && count < max; c++) {
+            char ch = text.charAt(c);
+            if (ch == '[') {
+                depth++;
+            } else if (ch == ']' || ch == '}') {
+                if (--depth < 0) {
+                    break;
+                }
+            } else if (ch >= '0' && ch <= '9') {
+                int value = 0;
+                while (c < text.length() && text.charAt(c) >= '0' && text.charAt(c) <= '9') {
+                    value = value * 10 + (text.charAt(c++) - '0');
+                }
+                c--;
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, 2 * count);
+                }
+                values[count++] = value;
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Read a line of ASCII text, or null at the end of the stream.
+     **/
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder text = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            text.append((char) b);
+        }
+        return b < 0 && text.length() == 0 ? null : text.toString();
+    }
+
+}
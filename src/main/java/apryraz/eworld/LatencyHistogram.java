@@ -0,0 +1,108 @@
+package apryraz.eworld;
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed number of buckets,
+ * so recording values in long runs uses constant memory and time. Values
+ * below 2^SUB_BITS have their own bucket; the rest are grouped by their
+ * highest bit, and every group is split in 2^SUB_BITS buckets, so the
+ * percentiles have a relative error below 1/2^SUB_BITS (about 3%).
+ **/
+public class LatencyHistogram {
+
+    /**
+     * Number of bits of every value kept below its highest bit
+     **/
+    static final int SUB_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /**
+     * Number of buckets needed for all the non negative longs
+     **/
+    static final int NUM_BUCKETS = SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    long[] counts = new long[NUM_BUCKETS];
+    long count, total, max;
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     *
+     * @param nanos the latency to record
+     **/
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[bucketOf(value)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Returns the value below or at which are the given fraction of the
+     * recorded values: the highest value of the bucket of the percentile,
+     * but never more than the maximum recorded.
+     *
+     * @param fraction the percentile, from 0 to 1 (0.99 for p99)
+     * @return the percentile, or 0 if there are no values
+     **/
+    public long percentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int b = 0; b < NUM_BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= target) {
+                return Math.min(max, highestValueOf(b));
+            }
+        }
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Forget all the values recorded.
+     **/
+    public void reset() {
+        java.util.Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    /**
+     * Index of the bucket of a non negative value.
+     **/
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (highestBit - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (highestBit - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Highest value that falls in a bucket.
+     **/
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int highestBit = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << (highestBit - SUB_BITS);
+        return lowest + (1L << (highestBit - SUB_BITS)) - 1;
+    }
+
+}
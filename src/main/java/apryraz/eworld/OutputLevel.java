@@ -0,0 +1,26 @@
+package apryraz.eworld;
+
+/**
+ * Amount of console output written by the agent and the environment.
+ * Every level includes the output of the previous ones.
+ **/
+public enum OutputLevel {
+    /**
+     * No output at all.
+     */
+    SILENT,
+    /**
+     * Only the lines written once per run: files opened, agent started,
+     * and a final summary of the knowledge of the agent.
+     */
+    SUMMARY,
+    /**
+     * Also the messages exchanged and the movements of every step, but not
+     * the knowledge matrix.
+     */
+    STEP,
+    /**
+     * Everything, including the knowledge matrix after every step.
+     */
+    FULL
+}
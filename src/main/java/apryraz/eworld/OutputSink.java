@@ -0,0 +1,206 @@
+package apryraz.eworld;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Destination of the console output of the agent and the environment.
+ * The text is only rendered if its level is enabled, and it is rendered
+ * in a reusable buffer:
+ * <pre>
+ *     if (output.isEnabled(OutputLevel.STEP)) {
+ *         output.text().append("FINDER => ...").append(OutputSink.EOL);
+ *         output.endText();
+ *     }
+ * </pre>
+ * A synchronous sink writes the text in endText, as soon as it is
+ * rendered. An asynchronous sink keeps it until flush is called (once per
+ * step) or the buffer grows over FLUSH_SIZE chars, and then hands the
+ * buffer to a writer thread and goes on with a free one, so the caller
+ * only waits for the stream if the writer is NUM_BUFFERS - 1 buffers behind.
+ * <p>
+ * A sink must only be used by one thread at a time (the writer thread
+ * aside), so every agent of a batch needs its own sink.
+ **/
+public class OutputSink {
+
+    /**
+     * Line separator used by println
+     **/
+    public static final String EOL = System.lineSeparator();
+    /**
+     * Size of the buffer that makes text() flush it first
+     **/
+    static final int FLUSH_SIZE = 1 << 20;
+    /**
+     * Number of buffers of an asynchronous sink
+     **/
+    static final int NUM_BUFFERS = 4;
+
+    /**
+     * Levels of output written
+     **/
+    OutputLevel level;
+    /**
+     * Stream where the text is written. If null, the System.out of the
+     * moment of every write.
+     **/
+    PrintStream out;
+    /**
+     * Buffer where the text is rendered
+     **/
+    StringBuilder text = new StringBuilder();
+    /**
+     * Only for asynchronous sinks: the buffers ready to be rendered, the
+     * buffers waiting to be written, and the thread that writes them.
+     * Null when the sink is synchronous or closed.
+     **/
+    BlockingQueue<StringBuilder> freeBuffers, fullBuffers;
+    Thread writer;
+
+    /**
+     * Class constructor of a synchronous sink with the FULL level, that
+     * writes to the System.out of the moment, as the agent always did.
+     **/
+    public OutputSink() {
+        this(OutputLevel.FULL, null, false);
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param level the levels of output written
+     * @param out   stream where the text is written, or null to use System.out
+     * @param async true to write the text with a background thread
+     **/
+    public OutputSink(OutputLevel level, PrintStream out, boolean async) {
+        this.level = level;
+        this.out = out;
+        if (async && level != OutputLevel.SILENT) {
+            freeBuffers = new ArrayBlockingQueue<>(NUM_BUFFERS);
+            fullBuffers = new ArrayBlockingQueue<>(NUM_BUFFERS);
+            for (int b = 1; b < NUM_BUFFERS; b++) {
+                freeBuffers.add(new StringBuilder());
+            }
+            writer = new Thread(this::writeBuffers, "eworld-output");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Returns a sink that writes nothing.
+     *
+     * @return a new SILENT sink
+     **/
+    public static OutputSink silent() {
+        return new OutputSink(OutputLevel.SILENT, null, false);
+    }
+
+    public OutputLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Check whether the text of the given level must be rendered.
+     *
+     * @param textLevel level of the text, SUMMARY, STEP or FULL
+     * @return true if the sink writes the text of that level
+     **/
+    public boolean isEnabled(OutputLevel textLevel) {
+        return level != OutputLevel.SILENT && level.compareTo(textLevel) >= 0;
+    }
+
+    /**
+     * Returns the buffer where the text must be appended. It is flushed
+     * first if it is over FLUSH_SIZE chars.
+     *
+     * @return the buffer of the sink
+     **/
+    public StringBuilder text() {
+        if (text.length() >= FLUSH_SIZE) {
+            flush();
+        }
+        return text;
+    }
+
+    /**
+     * Mark the end of a piece of text. A synchronous sink writes it now.
+     **/
+    public void endText() {
+        if (writer == null) {
+            flush();
+        }
+    }
+
+    /**
+     * Write the text rendered so far, or give it to the writer thread.
+     **/
+    public void flush() {
+        if (text.length() == 0) {
+            return;
+        }
+        if (writer != null) {
+            try {
+                StringBuilder free = freeBuffers.take();
+                fullBuffers.put(text);
+                text = free;
+                return;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();  // write it here instead
+            }
+        }
+        write(text);
+        text.setLength(0);
+    }
+
+    /**
+     * Write all the text rendered and wait until it is written. Then stop
+     * the writer thread. The sink can still be used after closing it, but
+     * it becomes synchronous.
+     **/
+    public void close() {
+        flush();
+        if (writer != null) {
+            Thread thread = writer;
+            try {
+                fullBuffers.put(new StringBuilder(0));  // an empty buffer ends the thread
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Loop of the writer thread: write the full buffers in order and give
+     * them back, until an empty buffer arrives.
+     **/
+    void writeBuffers() {
+        try {
+            while (true) {
+                StringBuilder buffer = fullBuffers.take();
+                if (buffer.length() == 0) {
+                    return;
+                }
+                write(buffer);
+                buffer.setLength(0);
+                freeBuffers.put(buffer);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write a buffer in the stream of the sink.
+     **/
+    void write(StringBuilder buffer) {
+        PrintStream stream = out != null ? out : System.out;
+        stream.append(buffer);
+        stream.flush();
+    }
+
+}
@@ -0,0 +1,193 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.specs.*;
+
+/**
+ * Performs the inference questions of the EnvelopeFinder agent with
+ * several threads. Every thread uses its own replica of the solver, as
+ * ISolver objects can not be shared between threads, and all the replicas
+ * receive the same clauses as the solver of the agent.
+ **/
+public class ParallelInference {
+
+    /**
+     * Solver replicas. The first one is the solver of the agent.
+     **/
+    ISolver[] replicas;
+    /**
+     * Pool of threads where the rows of the world are checked
+     **/
+    ForkJoinPool pool;
+    /**
+     * Dimension of the world
+     **/
+    int WorldDim;
+    /**
+     * Offset of the future envelope variables in the formula
+     **/
+    int EnvelopeFutureOffset;
+    /**
+     * Number of calls to the solvers performed by the last inference
+     **/
+    int lastSolverCalls;
+
+    /**
+     * Class constructor
+     *
+     * @param dim          dimension of the world
+     * @param futureOffset offset of the future envelope variables
+     * @param replicas     one solver per thread, all with the same formula
+     **/
+    public ParallelInference(int dim, int futureOffset, ISolver[] replicas) {
+        WorldDim = dim;
+        EnvelopeFutureOffset = futureOffset;
+        this.replicas = replicas;
+        pool = new ForkJoinPool(replicas.length);
+    }
+
+    /**
+     * Returns the number of threads (and solver replicas) used.
+     *
+     * @return the parallelism of the inference
+     **/
+    public int getParallelism() {
+        return replicas.length;
+    }
+
+    /**
+     * Add a clause to all the replicas except the first one, that is the
+     * solver of the agent and already receives the clauses.
+     *
+     * @param clause the clause to add
+     * @throws ContradictionException contradiction error
+     **/
+    public void addClause(VecInt clause) throws ContradictionException {
+        for (int k = 1; k < replicas.length; k++) {
+            replicas[k].addClause(clause);
+        }
+    }
+
+    /**
+     * Check, for all the positions of the world not yet known to be
+     * empty, whether it is a logical consequence that there is no envelope
+     * there. The rows of the world are split in as many contiguous blocks as
+     * replicas, and every block is checked in a different thread.
+     *
+     * @param state current state of the agent; it is only read
+     * @return lineal indexes (0 based) of the new empty positions, in
+     * increasing order
+     * @throws TimeoutException time out exception
+     **/
+    public int[] findNewEmptyPositions(EFState state) throws TimeoutException {
+        boolean[] impossible = new boolean[WorldDim * WorldDim];
+        int[] calls = new int[replicas.length];
+        ArrayList<RowBlock> blocks = new ArrayList<>(replicas.length);
+        int rowsPerBlock = (WorldDim + replicas.length - 1) / replicas.length;
+        for (int k = 0; k < replicas.length; k++) {
+            int first = k * rowsPerBlock + 1;
+            int last = Math.min(WorldDim, (k + 1) * rowsPerBlock);
+            if (first <= last) {
+                blocks.add(new RowBlock(k, first, last, state, impossible, calls));
+            }
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(blocks);
+            }
+        });
+        for (RowBlock block : blocks) {
+            if (block.timeout != null) {
+                throw block.timeout;
+            }
+        }
+
+        int found = 0;
+        for (boolean b : impossible) {
+            if (b) {
+                found++;
+            }
+        }
+        int[] result = new int[found];
+        int next = 0;
+        for (int l = 0; l < impossible.length; l++) {
+            if (impossible[l]) {
+                result[next++] = l;
+            }
+        }
+        lastSolverCalls = 0;
+        for (int c : calls) {
+            lastSolverCalls += c;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of calls to the solvers performed by the last
+     * call to findNewEmptyPositions, adding the calls of all the threads.
+     *
+     * @return number of solver calls
+     **/
+    public int getLastSolverCalls() {
+        return lastSolverCalls;
+    }
+
+    /**
+     * Stop the threads of the pool.
+     **/
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Task that checks a block of consecutive rows with one replica.
+     **/
+    class RowBlock extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        int replica, firstRow, lastRow;
+        EFState state;
+        boolean[] impossible;
+        int[] calls;
+        TimeoutException timeout;
+
+        RowBlock(int replica, int firstRow, int lastRow, EFState state, boolean[] impossible, int[] calls) {
+            this.replica = replica;
+            this.firstRow = firstRow;
+            this.lastRow = lastRow;
+            this.state = state;
+            this.impossible = impossible;
+            this.calls = calls;
+        }
+
+        @Override
+        protected void compute() {
+            ISolver solver = replicas[replica];
+            VecInt variablePositive = new VecInt(1);
+            try {
+                for (int i = firstRow; i <= lastRow; i++) {
+                    for (int j = 1; j <= WorldDim; j++) {
+                        if (state.isEmpty(i, j)) {
+                            continue;
+                        }
+                        int lineal = (i - 1) * WorldDim + (j - 1);
+                        variablePositive.clear();
+                        variablePositive.push(lineal + EnvelopeFutureOffset);
+                        calls[replica]++;
+                        if (!solver.isSatisfiable(variablePositive)) {
+                            impossible[lineal] = true;
+                        }
+                    }
+                }
+            } catch (TimeoutException ex) {
+                timeout = ex;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import org.sat4j.specs.*;
+
+/**
+ * Program that measures how the PARALLEL inference mode of the
+ * EnvelopeFinder agent scales with the number of threads. It generates a
+ * random world and sequence of steps, runs them with 1 to maxThreads
+ * threads and prints the time per step and the speedup of every run.
+ **/
+public class ParallelScalingReport {
+
+    /**
+     * Run the report.
+     *
+     * @param args ...
+     *             arg[0] = dimension of the world
+     *             arg[1] = num of steps to perform
+     *             arg[2] = maximum number of threads (by default, the available processors)
+     *             arg[3] = seed of the random world (by default, 42)
+     * @throws IOException            IoException error
+     * @throws ContradictionException contradiction error
+     * @throws TimeoutException       time out exception
+     **/
+    public static void main(String[] args) throws
+            IOException, ContradictionException, TimeoutException {
+        if (args.length < 2) {
+            System.err.println("Usage: ParallelScalingReport wdim numSteps [maxThreads] [seed]");
+            throw new IllegalArgumentException(String.format("Expected at least 2 arguments. Given %d", args.length));
+        }
+        int wDim = Integer.parseInt(args[0]);
+        int numSteps = Integer.parseInt(args[1]);
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+
+        Random random = new Random(seed);
+        File stepsFile = File.createTempFile("steps", ".txt");
+        File envelopesFile = File.createTempFile("envelopes", ".txt");
+        stepsFile.deleteOnExit();
+        envelopesFile.deleteOnExit();
+        writeRandomPositions(stepsFile, numSteps, wDim, random);
+        writeRandomPositions(envelopesFile, Math.max(1, wDim / 2), wDim, random);
+
+        System.out.printf("Parallel inference scaling: %dx%d world, %d steps, seed %d%n",
+                wDim, wDim, numSteps, seed);
+        System.out.println("threads\tms/step\tspeedup");
+        double baseline = 0;
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            double msPerStep = timeRun(wDim, numSteps, threads, stepsFile.getPath(), envelopesFile.getPath());
+            if (threads == 1) {
+                baseline = msPerStep;
+            }
+            System.out.printf("%d\t%.2f\t%.2f%n", threads, msPerStep, baseline / msPerStep);
+        }
+    }
+
+    /**
+     * Run the sequence of steps with the given number of threads, without
+     * the console output of the agent.
+     *
+     * @return average milliseconds per step
+     **/
+    static double timeRun(int wDim, int numSteps, int threads, String fileSteps, String fileEnvelopes)
+            throws IOException, ContradictionException, TimeoutException {
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(wDim, fileEnvelopes, OutputSink.silent());
+        EnvelopeFinder eAgent = new EnvelopeFinder(wDim, envAgent);
+        try {
+            eAgent.setParallelism(threads);
+            eAgent.setInferenceMode(InferenceMode.PARALLEL);
+            eAgent.loadListOfSteps(numSteps, fileSteps);
+            long start = System.nanoTime();
+            for (int i = 0; i < numSteps; i++) {
+                eAgent.runNextStep();
+            }
+            return (System.nanoTime() - start) / 1e6 / numSteps;
+        } finally {
+            eAgent.shutdown();
+        }
+    }
+
+    /**
+     * Write a line with random positions x1,y1 x2,y2 ... xn,yn
+     **/
+    static void writeRandomPositions(File file, int count, int wDim, Random random) throws IOException {
+        try (PrintWriter out = new PrintWriter(file)) {
+            for (int k = 0; k < count; k++) {
+                out.print((random.nextInt(wDim) + 1) + "," + (random.nextInt(wDim) + 1));
+                out.print(k + 1 < count ? " " : "\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package apryraz.eworld;
+
+import org.sat4j.specs.ISolver;
+
+/**
+ * Backend that races several backends on every question. All the solvers
+ * receive the same clauses, every call to isSatisfiable runs all of them
+ * in separate threads, and the first answer is returned while the others
+ * are stopped (see PortfolioSolver). The models are the ones of the winner.
+ **/
+public class PortfolioBackend implements InferenceBackend {
+
+    /**
+     * Backends of the solvers that race
+     **/
+    InferenceBackend[] members;
+
+    /**
+     * Class constructor
+     *
+     * @param members the backends that race, at least two
+     * @throws IllegalArgumentException if less than two backends are given
+     **/
+    public PortfolioBackend(InferenceBackend... members) {
+        if (members.length < 2) {
+            throw new IllegalArgumentException(String.format("A portfolio needs at least 2 backends. Given %d",
+                    members.length));
+        }
+        this.members = members.clone();
+    }
+
+    @Override
+    public ISolver newSolver() {
+        ISolver[] solvers = new ISolver[members.length];
+        for (int k = 0; k < members.length; k++) {
+            solvers[k] = members[k].newSolver();
+        }
+        return new PortfolioSolver(solvers);
+    }
+
+    @Override
+    public String getName() {
+        StringBuilder name = new StringBuilder();
+        for (InferenceBackend member : members) {
+            name.append(name.length() == 0 ? "" : ",").append(member.getName());
+        }
+        return name.toString();
+    }
+
+}
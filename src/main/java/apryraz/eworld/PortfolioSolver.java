@@ -0,0 +1,433 @@
+package apryraz.eworld;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.specs.*;
+import org.sat4j.tools.SolverDecorator;
+
+/**
+ * Solver that races several solvers with the same clauses on every
+ * question. Every call to isSatisfiable runs all the solvers in separate
+ * threads, with their own copy of the assumptions, and returns the first
+ * answer. The other solvers are stopped with expireTimeout, and the call
+ * only returns when all of them have stopped, so the solvers are never
+ * used by two threads at the same time. The models are the ones of the
+ * solver that answered first.
+ * <p>
+ * The clauses, variables and timeouts are given to all the solvers. The
+ * constraints can not be removed, as every solver has its own ones.
+ * SAT4J ManyCore does the same, but does not accept assumptions.
+ * <p>
+ * All the portfolios share the same pool of daemon threads, whose idle
+ * threads expire, so a solver that is dropped leaves no threads behind.
+ **/
+public class PortfolioSolver extends SolverDecorator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Time between the calls to expireTimeout of the solvers that must stop
+     **/
+    static final long STOP_POLL_MILLIS = 1;
+
+    /**
+     * The solvers that race. The first one is the decorated solver.
+     **/
+    final ISolver[] members;
+    /**
+     * Index of the solver that answered the last question
+     **/
+    int winner;
+    /**
+     * Threads where the solvers of all the portfolios run. A portfolio
+     * needs one thread per solver during every question, so the pool has
+     * no bound, and threads idle for a minute are stopped.
+     **/
+    static final ExecutorService POOL = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "eworld-portfolio");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Question asked to every solver of the portfolio
+     **/
+    interface Question {
+        boolean ask(ISolver solver, IVecInt assumptions) throws TimeoutException;
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param members the solvers that race, at least two, all empty
+     * @throws IllegalArgumentException if less than two solvers are given
+     **/
+    public PortfolioSolver(ISolver... members) {
+        super(members.length > 0 ? members[0] : null);
+        if (members.length < 2) {
+            throw new IllegalArgumentException(String.format("A portfolio needs at least 2 solvers. Given %d",
+                    members.length));
+        }
+        this.members = members.clone();
+    }
+
+    /**
+     * Returns the solvers that race.
+     *
+     * @return a copy of the array of solvers
+     **/
+    public ISolver[] getMembers() {
+        return members.clone();
+    }
+
+    /**
+     * Returns the index of the solver that answered the last question.
+     *
+     * @return index in getMembers
+     **/
+    public int getWinner() {
+        return winner;
+    }
+
+    /**
+     * Ask a question to all the solvers, and return the first answer.
+     *
+     * @throws TimeoutException if all the solvers time out
+     **/
+    boolean race(IVecInt assumptions, Question question) throws TimeoutException {
+        CompletionService<Boolean> answers = new ExecutorCompletionService<>(POOL);
+        List<Future<Boolean>> running = new ArrayList<>(members.length);
+        for (ISolver solver : members) {
+            IVecInt copy = new VecInt(assumptions.size());
+            assumptions.copyTo(copy);
+            running.add(answers.submit(() -> question.ask(solver, copy)));
+        }
+        Boolean answer = null;
+        TimeoutException timeout = null;
+        try {
+            for (int pending = members.length; pending > 0 && answer == null; pending--) {
+                Future<Boolean> done = takeUninterruptibly(answers);
+                try {
+                    answer = done.get();
+                    winner = running.indexOf(done);
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof TimeoutException) {
+                        timeout = (TimeoutException) ex.getCause();
+                    } else {
+                        throw new IllegalStateException("Portfolio solver failed", ex.getCause());
+                    }
+                } catch (InterruptedException ex) {
+                    throw new AssertionError(ex);  // done.get() does not wait
+                }
+            }
+        } finally {
+            stopAll(running);
+        }
+        if (answer == null) {
+            throw timeout;
+        }
+        return answer;
+    }
+
+    /**
+     * Wait for a question to end, even if the thread is interrupted, as
+     * the solvers can not be used until all of them stop.
+     **/
+    static Future<Boolean> takeUninterruptibly(CompletionService<Boolean> answers) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return answers.take();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Stop the solvers still running, and wait for them. A solver may
+     * start its search after a call to expireTimeout, so it is called
+     * again until the solver stops.
+     **/
+    void stopAll(List<Future<Boolean>> running) {
+        boolean interrupted = false;
+        for (int k = 0; k < members.length; k++) {
+            while (!running.get(k).isDone()) {
+                members[k].expireTimeout();
+                try {
+                    running.get(k).get(STOP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException | java.util.concurrent.TimeoutException ex) {
+                    // stopped with an exception, or still running
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isSatisfiable() throws TimeoutException {
+        return race(VecInt.EMPTY, (solver, assumptions) -> solver.isSatisfiable());
+    }
+
+    @Override
+    public boolean isSatisfiable(boolean global) throws TimeoutException {
+        return race(VecInt.EMPTY, (solver, assumptions) -> solver.isSatisfiable(global));
+    }
+
+    @Override
+    public boolean isSatisfiable(IVecInt assumps) throws TimeoutException {
+        return race(assumps, ISolver::isSatisfiable);
+    }
+
+    @Override
+    public boolean isSatisfiable(IVecInt assumps, boolean global) throws TimeoutException {
+        return race(assumps, (solver, assumptions) -> solver.isSatisfiable(assumptions, global));
+    }
+
+    @Override
+    public int[] findModel() throws TimeoutException {
+        return isSatisfiable() ? model() : null;
+    }
+
+    @Override
+    public int[] findModel(IVecInt assumps) throws TimeoutException {
+        return isSatisfiable(assumps) ? model() : null;
+    }
+
+    @Override
+    public int[] model() {
+        return members[winner].model();
+    }
+
+    @Override
+    public boolean model(int var) {
+        return members[winner].model(var);
+    }
+
+    @Override
+    public int[] primeImplicant() {
+        return members[winner].primeImplicant();
+    }
+
+    @Override
+    public IVecInt unsatExplanation() {
+        return members[winner].unsatExplanation();
+    }
+
+    @Override
+    public int[] modelWithInternalVariables() {
+        return members[winner].modelWithInternalVariables();
+    }
+
+    /**
+     * Deprecated in ISolver, but still given to all the solvers.
+     **/
+    @Deprecated
+    @Override
+    public int newVar() {
+        int var = members[0].newVar();
+        for (int k = 1; k < members.length; k++) {
+            members[k].newVar();
+        }
+        return var;
+    }
+
+    @Override
+    public int newVar(int howmany) {
+        int vars = members[0].newVar(howmany);
+        for (int k = 1; k < members.length; k++) {
+            members[k].newVar(howmany);
+        }
+        return vars;
+    }
+
+    @Override
+    public int nextFreeVarId(boolean reserve) {
+        int var = members[0].nextFreeVarId(reserve);
+        for (int k = 1; k < members.length; k++) {
+            members[k].nextFreeVarId(reserve);
+        }
+        return var;
+    }
+
+    @Override
+    public void registerLiteral(int p) {
+        for (ISolver solver : members) {
+            solver.registerLiteral(p);
+        }
+    }
+
+    @Override
+    public void setExpectedNumberOfClauses(int nb) {
+        for (ISolver solver : members) {
+            solver.setExpectedNumberOfClauses(nb);
+        }
+    }
+
+    @Override
+    public IConstr addClause(IVecInt literals) throws ContradictionException {
+        IConstr constr = members[0].addClause(literals);
+        for (int k = 1; k < members.length; k++) {
+            members[k].addClause(literals);
+        }
+        return constr;
+    }
+
+    @Override
+    public IConstr addBlockingClause(IVecInt literals) throws ContradictionException {
+        IConstr constr = members[0].addBlockingClause(literals);
+        for (int k = 1; k < members.length; k++) {
+            members[k].addBlockingClause(literals);
+        }
+        return constr;
+    }
+
+    @Override
+    public void addAllClauses(IVec clauses) throws ContradictionException {
+        for (ISolver solver : members) {
+            solver.addAllClauses(clauses);
+        }
+    }
+
+    @Override
+    public IConstr addAtMost(IVecInt literals, int degree) throws ContradictionException {
+        IConstr constr = members[0].addAtMost(literals, degree);
+        for (int k = 1; k < members.length; k++) {
+            members[k].addAtMost(literals, degree);
+        }
+        return constr;
+    }
+
+    @Override
+    public IConstr addAtLeast(IVecInt literals, int degree) throws ContradictionException {
+        IConstr constr = members[0].addAtLeast(literals, degree);
+        for (int k = 1; k < members.length; k++) {
+            members[k].addAtLeast(literals, degree);
+        }
+        return constr;
+    }
+
+    @Override
+    public IConstr addExactly(IVecInt literals, int n) throws ContradictionException {
+        IConstr constr = members[0].addExactly(literals, n);
+        for (int k = 1; k < members.length; k++) {
+            members[k].addExactly(literals, n);
+        }
+        return constr;
+    }
+
+    /**
+     * Not supported: the constraint given is the one of the first solver,
+     * and the other solvers have their own copies (see InferenceBackend).
+     *
+     * @throws UnsupportedOperationException always
+     **/
+    @Override
+    public boolean removeConstr(IConstr c) {
+        throw new UnsupportedOperationException("Constraints can not be removed from a portfolio solver,"
+                + " see InferenceBackend");
+    }
+
+    /**
+     * Not supported, as removeConstr.
+     *
+     * @throws UnsupportedOperationException always
+     **/
+    @Override
+    public boolean removeSubsumedConstr(IConstr c) {
+        throw new UnsupportedOperationException("Constraints can not be removed from a portfolio solver,"
+                + " see InferenceBackend");
+    }
+
+    @Override
+    public void setTimeout(int t) {
+        for (ISolver solver : members) {
+            solver.setTimeout(t);
+        }
+    }
+
+    @Override
+    public void setTimeoutMs(long t) {
+        for (ISolver solver : members) {
+            solver.setTimeoutMs(t);
+        }
+    }
+
+    @Override
+    public void setTimeoutOnConflicts(int count) {
+        for (ISolver solver : members) {
+            solver.setTimeoutOnConflicts(count);
+        }
+    }
+
+    @Override
+    public void expireTimeout() {
+        for (ISolver solver : members) {
+            solver.expireTimeout();
+        }
+    }
+
+    @Override
+    public void reset() {
+        for (ISolver solver : members) {
+            solver.reset();
+        }
+    }
+
+    @Override
+    public void clearLearntClauses() {
+        for (ISolver solver : members) {
+            solver.clearLearntClauses();
+        }
+    }
+
+    @Override
+    public void setDBSimplificationAllowed(boolean status) {
+        for (ISolver solver : members) {
+            solver.setDBSimplificationAllowed(status);
+        }
+    }
+
+    /**
+     * Returns the statistics of all the solvers added, as the work of a
+     * portfolio is the work of all its solvers.
+     **/
+    @Override
+    public Map<String, Number> getStat() {
+        Map<String, Number> total = new HashMap<>();
+        for (ISolver solver : members) {
+            Map<?, ?> stat = solver.getStat();
+            for (Map.Entry<?, ?> entry : stat.entrySet()) {
+                if (entry.getValue() instanceof Number) {
+                    String key = String.valueOf(entry.getKey());
+                    Number value = (Number) entry.getValue();
+                    Number previous = total.get(key);
+                    total.put(key, previous == null ? value : (Number) (previous.longValue() + value.longValue()));
+                }
+            }
+        }
+        return total;
+    }
+
+}
@@ -71,4 +71,39 @@ public class Position {
         return x == pos.x && y == pos.y;
     }
 
+    /**
+     * Two positions are equal if they have the same coordinates.
+     * @param obj The object to compare with.
+     * @return True if obj is a Position with the same coordinates. Otherwise, false.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Position)) {
+            return false;
+        }
+        Position pos = (Position) obj;
+        return x == pos.x && y == pos.y;
+    }
+
+    /**
+     * Hash code consistent with equals.
+     * @return The hash code of the coordinates.
+     */
+    @Override
+    public int hashCode() {
+        return 31 * x + y;
+    }
+
+    /**
+     * Returns the position as "x,y", the format of the steps and envelopes files.
+     * @return The string representation of the position.
+     */
+    @Override
+    public String toString() {
+        return x + "," + y;
+    }
+
 }
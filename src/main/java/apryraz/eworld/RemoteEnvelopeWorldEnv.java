@@ -0,0 +1,240 @@
+package apryraz.eworld;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Proxy of an environment served by an EnvironmentServer, maybe in another
+ * process, so an EnvelopeFinder agent can use it as a local environment.
+ * Besides the synchronous acceptMessage used by the agent, the requests
+ * can be pipelined: send queues a request, and receive returns the answers
+ * in the same order, so many requests travel in a single round trip. At
+ * most MAX_PIPELINED requests can wait for their answers, so the buffers
+ * of the server always have room for all of them.
+ **/
+public class RemoteEnvelopeWorldEnv extends EnvelopeWorldEnv implements Closeable {
+
+    /**
+     * Maximum number of requests sent and not yet received
+     **/
+    public static final int MAX_PIPELINED = EnvironmentServer.BUFFER_BYTES / EnvironmentServer.FRAME_BYTES;
+
+    SocketChannel channel;
+    /**
+     * Requests not yet written to the channel, and answers read from it
+     **/
+    ByteBuffer out = ByteBuffer.allocate(EnvironmentServer.BUFFER_BYTES);
+    ByteBuffer in = ByteBuffer.allocate(EnvironmentServer.BUFFER_BYTES);
+    /**
+     * Number of requests sent whose answers have not been received
+     **/
+    int pendingAnswers;
+    /**
+     * Message reused by getReadingsMask, for the request and the answer
+     **/
+    BinaryMessage reply = new BinaryMessage();
+
+    /**
+     * Class constructor. Connects to the server and gets the dimension of
+     * the world from it.
+     *
+     * @param address address of the server
+     * @throws IOException if the connection fails or the server does not
+     *                     speak the same protocol
+     **/
+    public RemoteEnvelopeWorldEnv(SocketAddress address) throws IOException {
+        this(address, new OutputSink());
+    }
+
+    /**
+     * Class constructor
+     *
+     * @param address address of the server
+     * @param output  destination of the console output
+     * @throws IOException if the connection fails or the server does not
+     *                     speak the same protocol
+     **/
+    public RemoteEnvelopeWorldEnv(SocketAddress address, OutputSink output) throws IOException {
+        this(SocketChannel.open(address), output);
+    }
+
+    RemoteEnvelopeWorldEnv(SocketChannel channel, OutputSink output) throws IOException {
+        super(handshake(channel), output);
+        this.channel = channel;
+        in.flip();  // no answers read yet
+    }
+
+    /**
+     * Send the header of the protocol and read the one of the server.
+     *
+     * @return dimension of the world of the server
+     **/
+    static int handshake(SocketChannel channel) throws IOException {
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer header = ByteBuffer.allocate(EnvironmentServer.SERVER_HEADER_BYTES);
+            header.putInt(EnvironmentServer.FILE_MAGIC).putInt(EnvironmentServer.PROTOCOL_VERSION).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            header.clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    throw new EOFException("Environment server closed the connection");
+                }
+            }
+            if (header.getInt(0) != EnvironmentServer.FILE_MAGIC) {
+                throw new IOException("Not an environment server");
+            }
+            if (header.getInt(4) != EnvironmentServer.PROTOCOL_VERSION) {
+                throw new IOException(String.format("Environment server speaks protocol version %d, expected %d",
+                        header.getInt(4), EnvironmentServer.PROTOCOL_VERSION));
+            }
+            return header.getInt(8);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Queue a request for the server. It is written when the buffer is
+     * full, or by flush or receive.
+     *
+     * @param msg the request
+     * @throws IOException IoException error
+     * @throws IllegalStateException if MAX_PIPELINED answers are pending
+     **/
+    public void send(BinaryMessage msg) throws IOException {
+        if (pendingAnswers >= MAX_PIPELINED) {
+            throw new IllegalStateException(String.format("More than %d requests without answer", MAX_PIPELINED));
+        }
+        if (output.isEnabled(OutputLevel.STEP)) {
+            msg.appendMessage(output.text());
+            output.endText();
+        }
+        if (out.remaining() < EnvironmentServer.FRAME_BYTES) {
+            flush();
+        }
+        out.put((byte) msg.type).putInt(msg.x).putInt(msg.y).put((byte) msg.readings);
+        pendingAnswers++;
+    }
+
+    /**
+     * Write all the queued requests to the server.
+     *
+     * @throws IOException IoException error
+     **/
+    public void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Receive the answer of the oldest request sent, writing first the
+     * requests still queued.
+     *
+     * @param ans message where the answer is written
+     * @throws IOException IoException error
+     * @throws IllegalStateException if there are no pending answers
+     **/
+    public void receive(BinaryMessage ans) throws IOException {
+        if (pendingAnswers == 0) {
+            throw new IllegalStateException("No request waiting for its answer");
+        }
+        if (out.position() > 0) {
+            flush();
+        }
+        if (in.remaining() < EnvironmentServer.FRAME_BYTES) {
+            in.compact();
+            while (in.position() < EnvironmentServer.FRAME_BYTES) {
+                if (channel.read(in) < 0) {
+                    throw new EOFException("Environment server closed the connection");
+                }
+            }
+            in.flip();
+        }
+        ans.set(in.get(), in.getInt(), in.getInt(), in.get());
+        pendingAnswers--;
+    }
+
+    /**
+     * Returns the number of requests sent whose answers have not been
+     * received yet.
+     *
+     * @return number of pending answers
+     **/
+    public int getPendingAnswers() {
+        return pendingAnswers;
+    }
+
+    /**
+     * Send a batch of requests and receive their answers, in groups of up
+     * to MAX_PIPELINED requests per round trip. The requests pipelined
+     * before must have been received.
+     *
+     * @param requests the requests
+     * @param answers  messages where the answers are written, one per request
+     * @throws IOException IoException error
+     * @throws IllegalStateException if some pipelined answer is pending
+     **/
+    public void acceptMessages(BinaryMessage[] requests, BinaryMessage[] answers) throws IOException {
+        if (pendingAnswers > 0) {
+            throw new IllegalStateException("Pipelined answers must be received before a batch");
+        }
+        for (int first = 0; first < requests.length; first += MAX_PIPELINED) {
+            int last = Math.min(requests.length, first + MAX_PIPELINED);
+            for (int k = first; k < last; k++) {
+                send(requests[k]);
+            }
+            for (int k = first; k < last; k++) {
+                receive(answers[k]);
+            }
+        }
+    }
+
+    /**
+     * Send a message to the server and wait for its answer. The requests
+     * pipelined before must have been received.
+     *
+     * @param msg message sent by the Agent
+     * @param ans message where the answer is written
+     * @throws IllegalStateException if the connection with the server fails,
+     *                               or some pipelined answer is pending
+     **/
+    @Override
+    public void acceptMessage(BinaryMessage msg, BinaryMessage ans) {
+        if (pendingAnswers > 0) {
+            throw new IllegalStateException("Pipelined answers must be received before a synchronous message");
+        }
+        try {
+            send(msg);
+            receive(ans);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Connection with the environment server failed", ex);
+        }
+    }
+
+    /**
+     * Gets the readings at (x,y) from the server.
+     **/
+    @Override
+    int getReadingsMask(int x, int y) {
+        acceptMessage(reply.set(BinaryMessage.DETECTSAT, x, y, 0), reply);
+        return reply.readings;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
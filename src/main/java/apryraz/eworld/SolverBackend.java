@@ -0,0 +1,87 @@
+package apryraz.eworld;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.sat4j.minisat.SolverFactory;
+import org.sat4j.specs.ISolver;
+
+/**
+ * Configurations of the SAT4J minisat solver that the EnvelopeFinder
+ * agent can use.
+ **/
+public enum SolverBackend implements InferenceBackend {
+    /**
+     * SolverFactory.newDefault(), used when no backend is chosen
+     */
+    DEFAULT {
+        @Override
+        public ISolver newSolver() {
+            return SolverFactory.newDefault();
+        }
+    },
+    /**
+     * SolverFactory.newLight(), without the costly learning of the default
+     */
+    LIGHT {
+        @Override
+        public ISolver newSolver() {
+            return SolverFactory.newLight();
+        }
+    },
+    /**
+     * SolverFactory.newGlucose(), with the clause deletion of Glucose
+     */
+    GLUCOSE {
+        @Override
+        public ISolver newSolver() {
+            return SolverFactory.newGlucose();
+        }
+    },
+    /**
+     * SolverFactory.newMiniLearningHeap(), the original MiniSat
+     */
+    MINI_LEARNING_HEAP {
+        @Override
+        public ISolver newSolver() {
+            return SolverFactory.newMiniLearningHeap();
+        }
+    },
+    /**
+     * DEFAULT, GLUCOSE and MINI_LEARNING_HEAP racing on every question
+     * (see PortfolioBackend)
+     */
+    PORTFOLIO {
+        @Override
+        public ISolver newSolver() {
+            return new PortfolioBackend(DEFAULT, GLUCOSE, MINI_LEARNING_HEAP).newSolver();
+        }
+    };
+
+    @Override
+    public String getName() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the backend with the given name, in any case. A list of names
+     * separated by commas gives a PortfolioBackend of those backends.
+     *
+     * @param name name of the backend, or list of names
+     * @return the backend
+     * @throws IllegalArgumentException if a name is not known
+     **/
+    public static InferenceBackend forName(String name) {
+        String[] names = name.split(",");
+        InferenceBackend[] backends = new InferenceBackend[names.length];
+        for (int k = 0; k < names.length; k++) {
+            try {
+                backends[k] = valueOf(names[k].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(String.format("Unknown inference backend %s. Expected one of %s",
+                        names[k], Arrays.toString(values())));
+            }
+        }
+        return backends.length == 1 ? backends[0] : new PortfolioBackend(backends);
+    }
+}
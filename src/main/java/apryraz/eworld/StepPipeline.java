@@ -0,0 +1,248 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pipelined execution of the steps of an EnvelopeFinder agent. The moves
+ * and the readings of the agent do not depend on its inference, so an
+ * environment thread performs the moveto and detectsat requests of the
+ * next steps, up to depth steps ahead, while the agent is still inferring
+ * the consequences of the current one. The answers are passed to the agent
+ * through a single-producer single-consumer ring buffer without locks, and
+ * the agent applies them in the order of the steps, so the states obtained
+ * are the same as in the serial mode.
+ * <p>
+ * The environment thread follows the position of the agent like the agent
+ * does: a step whose move is not accepted senses at the previous position.
+ * While the pipeline runs, the console output of the environment is
+ * disabled, and the agent writes the messages the environment would have
+ * written, in the same order as in the serial mode.
+ **/
+public class StepPipeline {
+
+    /**
+     * Number of times a thread checks the ring buffer before parking
+     **/
+    static final int SPIN_TRIES = 1000;
+    /**
+     * Time a thread parks before checking the ring buffer again
+     **/
+    static final long PARK_NANOS = 20000;
+
+    /**
+     * Slots of the ring buffer: the position requested, the answer to the
+     * moveto message and the answer to the detectsat message of a step. A
+     * slot with a null sense answer marks the end of the steps.
+     **/
+    int[] stepX, stepY;
+    BinaryMessage[] moveAnswers, senseAnswers;
+    int mask;
+    /**
+     * Next slot to read by the agent, and next slot to write by the
+     * environment thread. Only the owner of each one writes it, and the
+     * volatile writes publish the contents of the slots.
+     **/
+    volatile long head, tail;
+    volatile boolean stopped;
+    /**
+     * Failure of the environment thread, rethrown by the agent
+     **/
+    volatile RuntimeException failure;
+
+    EnvelopeFinder agent;
+    EnvelopeWorldEnv environment;
+    /**
+     * Console output of the environment, restored by stop
+     **/
+    OutputSink environmentOutput;
+    /**
+     * Position of the agent as seen by the environment thread, and index
+     * in the list of steps of the next step to perform
+     **/
+    int agentX, agentY;
+    int nextStep;
+    Thread thread;
+
+    /**
+     * Class constructor. Starts the environment thread with the steps not
+     * yet performed by the agent, from its current position.
+     *
+     * @param agent the agent whose steps are performed
+     * @param depth maximum number of steps performed ahead of the agent,
+     *              rounded up to a power of two
+     * @throws IllegalArgumentException if depth is lower than 1
+     **/
+    public StepPipeline(EnvelopeFinder agent, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException(String.format("Pipeline depth must be at least 1. Given %d", depth));
+        }
+        int capacity = Integer.highestOneBit(depth);
+        if (capacity < depth) {
+            capacity <<= 1;
+        }
+        mask = capacity - 1;
+        stepX = new int[capacity];
+        stepY = new int[capacity];
+        moveAnswers = new BinaryMessage[capacity];
+        senseAnswers = new BinaryMessage[capacity];
+        for (int s = 0; s < capacity; s++) {
+            moveAnswers[s] = new BinaryMessage();
+        }
+        this.agent = agent;
+        environment = agent.EnvAgent;
+        agentX = agent.agentX;
+        agentY = agent.agentY;
+        nextStep = agent.idNextStep;
+        environmentOutput = environment.getOutput();
+        environment.setOutput(OutputSink.silent());
+        thread = new Thread(this::produce, "eworld-pipeline");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the console output of the environment, where the agent
+     * writes the messages of the environment.
+     *
+     * @return the output of the environment before the pipeline started
+     **/
+    public OutputSink getEnvironmentOutput() {
+        return environmentOutput;
+    }
+
+    /**
+     * Loop of the environment thread: perform the steps of the agent until
+     * there are no more steps, or the pipeline is stopped.
+     **/
+    void produce() {
+        BinaryMessage request = new BinaryMessage();
+        try {
+            while (!stopped) {
+                while (tail - head > mask) {
+                    if (!await()) {
+                        return;
+                    }
+                }
+                int slot = (int) (tail & mask);
+                if (!nextStep(slot)) {
+                    senseAnswers[slot] = null;
+                    tail = tail + 1;
+                    return;
+                }
+                environment.acceptMessage(request.set(BinaryMessage.MOVETO, stepX[slot], stepY[slot], 0),
+                        moveAnswers[slot]);
+                if (moveAnswers[slot].type == BinaryMessage.MOVEDTO) {
+                    agentX = moveAnswers[slot].x;
+                    agentY = moveAnswers[slot].y;
+                }
+                if (senseAnswers[slot] == null) {
+                    senseAnswers[slot] = new BinaryMessage();
+                }
+                environment.acceptMessage(request.set(BinaryMessage.DETECTSAT, agentX, agentY, 0),
+                        senseAnswers[slot]);
+                tail = tail + 1;
+            }
+        } catch (RuntimeException ex) {
+            failure = ex;
+        }
+    }
+
+    /**
+     * Read the next step of the agent into a slot, from its steps file or
+     * from its list of steps.
+     *
+     * @return false if there are no more steps
+     * @throws UncheckedIOException if the steps file can not be read, to be
+     *                              rethrown by take
+     **/
+    boolean nextStep(int slot) {
+        if (agent.stepSource != null) {
+            try {
+                if (agent.stepSource.next()) {
+                    stepX[slot] = agent.stepSource.getX();
+                    stepY[slot] = agent.stepSource.getY();
+                    return true;
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(String.format("Can not read the next step of the steps file: %s",
+                        ex.getMessage()), ex);
+            }
+            return false;
+        }
+        if (nextStep >= agent.numMovements) {
+            return false;
+        }
+        Position position = agent.listOfSteps.get(nextStep++);
+        stepX[slot] = position.x;
+        stepY[slot] = position.y;
+        return true;
+    }
+
+    /**
+     * Wait a little for the other thread.
+     *
+     * @return false if the pipeline has been stopped
+     **/
+    boolean await() {
+        for (int k = 0; k < SPIN_TRIES; k++) {
+            Thread.onSpinWait();
+        }
+        LockSupport.parkNanos(this, PARK_NANOS);
+        return !stopped;
+    }
+
+    /**
+     * Wait for the answers of the next step of the agent.
+     *
+     * @return the slot with the answers, or -1 if there are no more steps
+     * @throws UncheckedIOException  if the steps file could not be read, as
+     *                               in the serial mode
+     * @throws IllegalStateException if the environment thread failed
+     **/
+    int take() {
+        int tries = 0;
+        while (head == tail) {
+            if (failure instanceof UncheckedIOException) {
+                throw new UncheckedIOException(failure.getMessage(), (IOException) failure.getCause());
+            }
+            if (failure != null) {
+                throw new IllegalStateException("Environment thread of the pipeline failed", failure);
+            }
+            if (!thread.isAlive() && head == tail) {
+                return -1;
+            }
+            if (++tries < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+        int slot = (int) (head & mask);
+        return senseAnswers[slot] == null ? -1 : slot;
+    }
+
+    /**
+     * Free the slot read by take, so the environment thread can reuse it.
+     **/
+    void release() {
+        head = head + 1;
+    }
+
+    /**
+     * Stop the environment thread, wait for it, and restore the console
+     * output of the environment. The steps performed ahead are lost, and
+     * the state of the steps file being streamed is not defined.
+     **/
+    public void stop() {
+        stopped = true;
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        environment.setOutput(environmentOutput);
+    }
+
+}
@@ -0,0 +1,172 @@
+package apryraz.eworld;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the steps of a steps file one at a time, so that the memory used
+ * does not depend on the number of steps. The file has the same format
+ * read by EnvelopeFinder.loadListOfSteps: a line with the sequence of
+ * steps "x1,y1 x2,y2 ... xn,yn". The coordinates are parsed directly from
+ * the bytes read from the file, without making any String.
+ **/
+public class StepSource implements Closeable {
+
+    /**
+     * Size of the buffer of bytes read from the file
+     **/
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Channel of the file, and buffer with the bytes not parsed yet
+     **/
+    FileChannel channel;
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Offset in the file of the first byte of the buffer
+     **/
+    long bufferOffset;
+    /**
+     * Maximum number of steps to read, and number of steps read so far
+     **/
+    long maxSteps, stepsRead;
+    /**
+     * Coordinates of the last step read
+     **/
+    int x, y;
+    /**
+     * True when the end of the line or of the file has been reached
+     **/
+    boolean finished;
+
+    /**
+     * Class constructor
+     *
+     * @param stepsFile name of the steps file
+     * @param maxSteps  maximum number of steps to read
+     * @throws IOException if the file can not be opened
+     **/
+    public StepSource(String stepsFile, long maxSteps) throws IOException {
+        channel = FileChannel.open(Paths.get(stepsFile), StandardOpenOption.READ);
+        this.maxSteps = maxSteps;
+        buffer.limit(0);
+    }
+
+    /**
+     * Read the next step of the sequence.
+     *
+     * @return true if a step was read, false if there are no more steps
+     * @throws IOException if the file can not be read or is not valid
+     **/
+    public boolean next() throws IOException {
+        if (finished || stepsRead >= maxSteps) {
+            return false;
+        }
+        int c = peek();
+        while (c == ' ' || c == '\t') {
+            buffer.get();
+            c = peek();
+        }
+        if (c < 0 || c == '\n' || c == '\r') {
+            finished = true;
+            return false;
+        }
+        x = parseInt();
+        if (peek() != ',') {
+            throw invalid("expected ','");
+        }
+        buffer.get();
+        y = parseInt();
+        c = peek();
+        if (c >= 0 && c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+            throw invalid("expected a space");
+        }
+        stepsRead++;
+        return true;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Returns the number of steps read so far.
+     *
+     * @return number of steps returned by next
+     **/
+    public long getStepsRead() {
+        return stepsRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        channel.close();
+    }
+
+    /**
+     * Parse an integer, with an optional sign, at the current position.
+     **/
+    int parseInt() throws IOException {
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            buffer.get();
+        }
+        int c = peek();
+        if (c < '0' || c > '9') {
+            throw invalid("expected a digit");
+        }
+        long value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE + 1L) {
+                throw invalid("coordinate too big");
+            }
+            buffer.get();
+            c = peek();
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw invalid("coordinate too big");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Returns the next byte without consuming it, reading more bytes from
+     * the file if the buffer is empty, or -1 at the end of the file.
+     **/
+    int peek() throws IOException {
+        if (!buffer.hasRemaining()) {
+            bufferOffset += buffer.limit();
+            buffer.clear();
+            int read;
+            do {
+                read = channel.read(buffer);
+            } while (read == 0);
+            buffer.flip();
+            if (read < 0) {
+                return -1;
+            }
+        }
+        return buffer.get(buffer.position()) & 0xff;
+    }
+
+    /**
+     * Make the exception of a syntax error at the current position.
+     **/
+    IOException invalid(String expected) {
+        return new IOException(String.format("Invalid steps file at byte %d: %s",
+                bufferOffset + buffer.position(), expected));
+    }
+
+}
@@ -0,0 +1,216 @@
+package apryraz.eworld;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.specs.*;
+
+/**
+ * Inference engine for very large worlds that splits the formula of the
+ * agent in tiles. The world is divided in square tiles of tileSize x
+ * tileSize positions (the core of the tile), and every tile has its own
+ * small formula over its core and a border of one position around it,
+ * that overlaps with the neighbour tiles. The formula of a tile has one
+ * variable per position meaning "there is an envelope" (the envelopes
+ * never move), five reading variables per position, and the clauses
+ * "reading OR NOT envelope" of the positions of the tile, as in the
+ * formula of EnvelopeFinder. A "0" reading at (x,y) is added to all the
+ * tiles whose border includes (x,y). As the readings only cover the
+ * positions next to (x,y), the tile of a position has all the evidence
+ * about it, and a position is impossible if and only if it is impossible
+ * in the formula of its tile.
+ * <p>
+ * The tiles are only created when some evidence is added to them, so the
+ * cost of a world with millions of positions only depends on the places
+ * where the agent has sensed. The ALO clause of the whole world is not in
+ * any tile: it never makes a position impossible, as a model with an
+ * envelope at the position satisfies it, and every tile is satisfiable
+ * with no envelopes. So it only matters when no position of the world can
+ * hold an envelope, which is checked across the tiles with
+ * isGlobalAloSatisfiable.
+ **/
+public class TiledInference {
+
+    /**
+     * Default number of positions of every side of the core of a tile
+     **/
+    static final int DEFAULT_TILE_SIZE = 32;
+
+    /**
+     * Dimension of the world
+     **/
+    int WorldDim;
+    /**
+     * Side of the core of the tiles, and number of tiles in every row
+     **/
+    int tileSize, tilesPerRow;
+    /**
+     * Tiles of the world, one row of tiles after the other; null if no
+     * evidence has been added to the tile yet
+     **/
+    Tile[] tiles;
+    int createdTiles;
+    /**
+     * Provider of the solvers of the tiles
+     **/
+    InferenceBackend backend;
+    /**
+     * Number of calls to the solvers performed by the last inference
+     **/
+    int lastSolverCalls;
+
+    /**
+     * Class constructor
+     *
+     * @param dim      dimension of the world
+     * @param tileSize side of the core of the tiles
+     * @param backend  provider of the solvers of the tiles
+     * @throws IllegalArgumentException if tileSize is lower than 1
+     **/
+    public TiledInference(int dim, int tileSize, InferenceBackend backend) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException(String.format("Tile size must be at least 1. Given %d", tileSize));
+        }
+        WorldDim = dim;
+        this.tileSize = tileSize;
+        this.backend = backend;
+        tilesPerRow = (dim + tileSize - 1) / tileSize;
+        tiles = new Tile[tilesPerRow * tilesPerRow];
+    }
+
+    /**
+     * Returns the number of tiles created so far.
+     *
+     * @return number of tiles with some evidence
+     **/
+    public int getCreatedTiles() {
+        return createdTiles;
+    }
+
+    /**
+     * Apply a "0" answer of the given reading obtained at (x,y), adding it
+     * to all the tiles whose border includes (x,y).
+     *
+     * @param x       x coordinate of the sensing position
+     * @param y       y coordinate of the sensing position
+     * @param reading index of the reading (0 for reading 1, ..., 4 for reading 5)
+     * @throws ContradictionException contradiction error
+     **/
+    public void applyNoReading(int x, int y, int reading) throws ContradictionException {
+        int firstTx = (Math.max(1, x - 1) - 1) / tileSize;
+        int lastTx = (Math.min(WorldDim, x + 1) - 1) / tileSize;
+        int firstTy = (Math.max(1, y - 1) - 1) / tileSize;
+        int lastTy = (Math.min(WorldDim, y + 1) - 1) / tileSize;
+        for (int tx = firstTx; tx <= lastTx; tx++) {
+            for (int ty = firstTy; ty <= lastTy; ty++) {
+                Tile tile = tiles[tx * tilesPerRow + ty];
+                if (tile == null) {
+                    tile = new Tile(tx, ty);
+                    tiles[tx * tilesPerRow + ty] = tile;
+                    createdTiles++;
+                }
+                VecInt evidence = new VecInt(1);
+                evidence.push(-tile.readingVar(x, y, reading));
+                tile.solver.addClause(evidence);
+            }
+        }
+    }
+
+    /**
+     * Check the given positions not yet known to be empty, each one with
+     * the formula of its tile. Positions of tiles not created are possible.
+     *
+     * @param cells lineal indexes (0 based) of the positions to check
+     * @param state current state of the agent; it is only read
+     * @return lineal indexes of the new empty positions, in the order of cells
+     * @throws TimeoutException time out exception
+     **/
+    public VecInt findNewEmptyPositions(VecInt cells, EFState state) throws TimeoutException {
+        VecInt found = new VecInt();
+        VecInt assumption = new VecInt(1);
+        lastSolverCalls = 0;
+        for (int k = 0; k < cells.size(); k++) {
+            int x = cells.get(k) / WorldDim + 1;
+            int y = cells.get(k) % WorldDim + 1;
+            Tile tile = tiles[(x - 1) / tileSize * tilesPerRow + (y - 1) / tileSize];
+            if (tile == null || state.isEmpty(x, y)) {
+                continue;
+            }
+            assumption.clear();
+            assumption.push(tile.envelopeVar(x, y));
+            lastSolverCalls++;
+            if (!tile.solver.isSatisfiable(assumption)) {
+                found.push(cells.get(k));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns the number of calls to the solvers performed by the last
+     * call to findNewEmptyPositions.
+     *
+     * @return number of solver calls
+     **/
+    public int getLastSolverCalls() {
+        return lastSolverCalls;
+    }
+
+    /**
+     * Check the ALO clause of the whole world: as every tile is satisfiable
+     * with no envelopes, the formula of the world is satisfiable if and
+     * only if some position can still hold an envelope.
+     *
+     * @param state current state of the agent
+     * @return false if the evidence leaves no position for an envelope
+     **/
+    public boolean isGlobalAloSatisfiable(EFState state) {
+        return state.unknownCount() > 0;
+    }
+
+    /**
+     * A tile: its core, its region (the core and the border around it, inside
+     * the world), and the solver with its formula.
+     **/
+    class Tile {
+        int firstX, firstY, width, height;
+        ISolver solver;
+
+        Tile(int tx, int ty) throws ContradictionException {
+            int coreX = tx * tileSize + 1;
+            int coreY = ty * tileSize + 1;
+            firstX = Math.max(1, coreX - 1);
+            firstY = Math.max(1, coreY - 1);
+            width = Math.min(WorldDim, coreX + tileSize) - firstX + 1;
+            height = Math.min(WorldDim, coreY + tileSize) - firstY + 1;
+            solver = backend.newSolver();
+            solver.setTimeout(3600);
+            solver.newVar(6 * width * height);
+            for (int x = firstX; x < firstX + width; x++) {
+                for (int y = firstY; y < firstY + height; y++) {
+                    for (int r = 0; r < EnvelopeFinder.READING_AREAS.length; r++) {
+                        for (int[] delta : EnvelopeFinder.READING_AREAS[r]) {
+                            if (contains(x + delta[0], y + delta[1])) {
+                                VecInt readClause = new VecInt(2);
+                                readClause.push(readingVar(x, y, r));
+                                readClause.push(-envelopeVar(x + delta[0], y + delta[1]));
+                                solver.addClause(readClause);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        boolean contains(int x, int y) {
+            return x >= firstX && x < firstX + width && y >= firstY && y < firstY + height;
+        }
+
+        int envelopeVar(int x, int y) {
+            return (x - firstX) * height + (y - firstY) + 1;
+        }
+
+        int readingVar(int x, int y, int reading) {
+            return (reading + 1) * width * height + envelopeVar(x, y);
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary format of the files with the envelopes of a world, much faster
+ * to load than the text format when there are millions of envelopes.
+ * <p>
+ * The file starts with a header of four big-endian ints and a long:
+ * FILE_MAGIC, FORMAT_VERSION, dimension of the world, layout, and number of
+ * envelopes. With the COORDINATES layout, the header is followed by an x,y
+ * pair of ints per envelope. With the BITMAP layout, it is followed by the
+ * occupancy bitmap of EnvelopeIndex: ceil(dim*dim/64) longs, where bit
+ * (x-1)*dim + (y-1) is set if there is an envelope at (x,y). The writer
+ * chooses the smaller layout. Files are loaded by mapping them in memory,
+ * straight into the EnvelopeIndex of the environment.
+ **/
+public class WorldFile {
+
+    /**
+     * First int of the binary world files ("EWWF")
+     **/
+    static final int FILE_MAGIC = 0x45575746;
+    /**
+     * Version of the format of the files
+     **/
+    static final int FORMAT_VERSION = 1;
+    /**
+     * Layouts of the envelopes after the header
+     **/
+    static final int COORDINATES = 0;
+    static final int BITMAP = 1;
+    /**
+     * Size of the header, in bytes
+     **/
+    static final int HEADER_BYTES = 4 * Integer.BYTES + Long.BYTES;
+    /**
+     * Maximum number of bytes mapped or written at once
+     **/
+    static final int CHUNK_BYTES = GammaTemplate.CHUNK_BYTES;
+
+    /**
+     * Check whether a file starts like a binary world file.
+     *
+     * @param file the file to check
+     * @return true if the file starts with FILE_MAGIC
+     * @throws IOException if the file can not be read
+     **/
+    public static boolean isWorldFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // read the first int
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == FILE_MAGIC;
+        }
+    }
+
+    /**
+     * Add all the envelopes of a binary world file to an index.
+     *
+     * @param file  the file to read
+     * @param index the index of the world, of the same dimension as the file
+     * @throws IOException if the file can not be read, is not a valid world
+     *                     file or is for another dimension
+     **/
+    public static void readInto(Path file, EnvelopeIndex index) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("World file too short: " + file);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (header.getInt(0) != FILE_MAGIC) {
+                throw new IOException("Not a world file: " + file);
+            }
+            if (header.getInt(4) != FORMAT_VERSION) {
+                throw new IOException(String.format("World file %s has format version %d, expected %d",
+                        file, header.getInt(4), FORMAT_VERSION));
+            }
+            int dim = header.getInt(8);
+            if (dim != index.getWorldDim()) {
+                throw new IOException(String.format("World file %s is for dimension %d, expected %d",
+                        file, dim, index.getWorldDim()));
+            }
+            int layout = header.getInt(12);
+            long count = header.getLong(16);
+            if (layout == COORDINATES) {
+                checkSize(file, channel, count < 0 ? -1 : HEADER_BYTES + count * 2 * Integer.BYTES);
+                readCoordinates(channel, count, index);
+            } else if (layout == BITMAP) {
+                if (index.bitmap == null || index.size() != 0) {
+                    throw new IOException("World file " + file + " has a bitmap, but the index can not load it");
+                }
+                checkSize(file, channel, HEADER_BYTES + (long) index.bitmap.length * Long.BYTES);
+                readBitmap(channel, index);
+                if (index.size() != count) {
+                    throw new IOException(String.format("World file %s has %d envelopes, expected %d",
+                            file, index.size(), count));
+                }
+            } else {
+                throw new IOException(String.format("World file %s has unknown layout %d", file, layout));
+            }
+        }
+    }
+
+    /**
+     * Store all the envelopes of an index in a binary world file, with the
+     * smaller layout.
+     *
+     * @param file  the file to write
+     * @param index the envelopes to store
+     * @throws IOException IoException error
+     **/
+    public static void write(Path file, EnvelopeIndex index) throws IOException {
+        int dim = index.getWorldDim();
+        long bitmapBytes = index.bitmap == null ? Long.MAX_VALUE : (long) index.bitmap.length * Long.BYTES;
+        long coordinateBytes = (long) index.size() * 2 * Integer.BYTES;
+        int layout = index.isBitmapOnly() && bitmapBytes < coordinateBytes ? BITMAP : COORDINATES;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_BYTES,
+                    HEADER_BYTES + Math.min(bitmapBytes, coordinateBytes)));
+            buffer.putInt(FILE_MAGIC).putInt(FORMAT_VERSION).putInt(dim).putInt(layout).putLong(index.size());
+            if (layout == BITMAP) {
+                for (long word : index.bitmap) {
+                    if (buffer.remaining() < Long.BYTES) {
+                        flushBuffer(channel, buffer);
+                    }
+                    buffer.putLong(word);
+                }
+            } else {
+                IOException[] error = new IOException[1];
+                index.forEach((x, y) -> {
+                    if (buffer.remaining() < 2 * Integer.BYTES) {
+                        try {
+                            flushBuffer(channel, buffer);
+                        } catch (IOException ex) {
+                            error[0] = ex;
+                            buffer.clear();
+                        }
+                    }
+                    buffer.putInt(x).putInt(y);
+                });
+                if (error[0] != null) {
+                    throw error[0];
+                }
+            }
+            flushBuffer(channel, buffer);
+        }
+    }
+
+    /**
+     * Check that the file has the size given by its header.
+     **/
+    static void checkSize(Path file, FileChannel channel, long expectedSize) throws IOException {
+        if (channel.size() != expectedSize) {
+            throw new IOException(String.format("World file %s has %d bytes, expected %d",
+                    file, channel.size(), expectedSize));
+        }
+    }
+
+    /**
+     * Add count x,y pairs of ints after the header to the index, mapping
+     * the file in chunks.
+     **/
+    static void readCoordinates(FileChannel channel, long count, EnvelopeIndex index) throws IOException {
+        long pairsPerChunk = CHUNK_BYTES / (2 * Integer.BYTES);
+        for (long next = 0; next < count; next += pairsPerChunk) {
+            long pairs = Math.min(count - next, pairsPerChunk);
+            IntBuffer ints = channel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_BYTES + next * 2 * Integer.BYTES, pairs * 2 * Integer.BYTES).asIntBuffer();
+            while (ints.hasRemaining()) {
+                index.add(ints.get(), ints.get());
+            }
+        }
+    }
+
+    /**
+     * Copy the bitmap after the header to the bitmap of an empty index,
+     * mapping the file in chunks, and count its envelopes.
+     **/
+    static void readBitmap(FileChannel channel, EnvelopeIndex index) throws IOException {
+        long[] bitmap = index.bitmap;
+        int wordsPerChunk = CHUNK_BYTES / Long.BYTES;
+        for (int next = 0; next < bitmap.length; next += wordsPerChunk) {
+            int words = Math.min(bitmap.length - next, wordsPerChunk);
+            channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + (long) next * Long.BYTES,
+                    (long) words * Long.BYTES).asLongBuffer().get(bitmap, next, words);
+        }
+        long lastBits = (long) index.getWorldDim() * index.getWorldDim() & 63;
+        if (lastBits != 0 && (bitmap[bitmap.length - 1] >>> lastBits) != 0) {
+            throw new IOException("World file bitmap has envelopes outside the world");
+        }
+        int size = 0;
+        for (long word : bitmap) {
+            size += Long.bitCount(word);
+        }
+        index.size = size;
+    }
+
+    /**
+     * Write the contents of the buffer and clear it.
+     **/
+    static void flushBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        GammaTemplate.writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Convert a text envelopes file to a binary world file.
+     *
+     * @param args ...
+     *             arg[0] = dimension of the world
+     *             arg[1] = text file with the list of envelopes positions
+     *             arg[2] = binary world file to write
+     * @throws IOException IoException error
+     **/
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: EnvelopeWorld -convert wdim envelopesFile worldFile");
+            throw new IllegalArgumentException(String.format("Expected 3 arguments. Given %d", args.length));
+        }
+        int wDim = Integer.parseInt(args[0]);
+        EnvelopeWorldEnv env = new EnvelopeWorldEnv(wDim, args[1], OutputSink.silent());
+        write(Paths.get(args[2]), env.envelopeIndex);
+        System.out.printf("WORLD FILE => %d envelopes of a %dx%d world written to %s%n",
+                env.numEnvelopes, wDim, wDim, args[2]);
+    }
+
+}
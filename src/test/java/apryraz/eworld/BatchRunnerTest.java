@@ -0,0 +1,74 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.*;
+
+/**
+ * Class for testing the concurrent execution of batches of episodes
+ **/
+public class BatchRunnerTest {
+
+    @Test
+    public void TBatchOfExampleWorlds() throws IOException, InterruptedException {
+        List<BatchRunner.Job> jobs = BatchRunner.loadManifest("tests/batch.txt");
+        assertEquals(4, jobs.size());
+        String[] statesFiles = {"tests/states1.txt", "tests/states2.txt", "tests/states3.txt", "tests/states4.txt"};
+
+        BatchRunner runner = new BatchRunner(3);
+        List<BatchRunner.Result> results = runner.run(jobs);
+        EnvelopeFinderTest loader = new EnvelopeFinderTest();
+        for (int k = 0; k < jobs.size(); k++) {
+            BatchRunner.Job job = jobs.get(k);
+            BatchRunner.Result result = results.get(k);
+            assertNull(result.error);
+            assertEquals(job.numSteps, result.stepsDone);
+            ArrayList<EFState> states = loader.loadListOfTargetStates(job.wDim, job.numSteps, statesFiles[k]);
+            assertEquals(states.get(job.numSteps - 1), result.finalState);
+        }
+    }
+
+    @Test
+    public void TMissingFileFailsOnlyItsJob() throws InterruptedException {
+        List<BatchRunner.Job> jobs = new ArrayList<>();
+        jobs.add(new BatchRunner.Job(0, 5, 5, "tests/missing.txt", "tests/envelopes1.txt"));
+        jobs.add(new BatchRunner.Job(1, 5, 5, "tests/steps1.txt", "tests/envelopes1.txt"));
+        List<BatchRunner.Result> results = new BatchRunner(2).run(jobs);
+        assertNotNull(results.get(0).error);
+        assertNull(results.get(1).error);
+    }
+
+    @Test
+    public void TMalformedFileFailsOnlyItsJob() throws IOException, InterruptedException {
+        // The second step of the steps file and the envelopes file are not valid
+        File steps = File.createTempFile("steps", ".txt");
+        File envelopes = File.createTempFile("envelopes", ".txt");
+        steps.deleteOnExit();
+        envelopes.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(steps)) {
+            out.print("1,1 2;2 3,3");
+        }
+        try (PrintWriter out = new PrintWriter(envelopes)) {
+            out.print("2,2 four,4");
+        }
+        List<BatchRunner.Job> jobs = new ArrayList<>();
+        jobs.add(new BatchRunner.Job(0, 5, 3, steps.getPath(), "tests/envelopes1.txt"));
+        jobs.add(new BatchRunner.Job(1, 5, 5, "tests/steps1.txt", "tests/envelopes1.txt"));
+        jobs.add(new BatchRunner.Job(2, 5, 5, "tests/steps1.txt", envelopes.getPath()));
+        List<BatchRunner.Result> results = new BatchRunner(2).run(jobs);
+        assertNotNull(results.get(0).error);
+        assertEquals(1, results.get(0).stepsDone);
+        assertNull(results.get(1).error);
+        assertEquals(5, results.get(1).stepsDone);
+        assertNotNull(results.get(2).error);
+    }
+
+}
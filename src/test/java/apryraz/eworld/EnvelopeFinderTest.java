@@ -7,11 +7,17 @@ import java.util.logging.Logger;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.File;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 
 import static java.lang.System.exit;
 
+import org.sat4j.core.VecInt;
 import org.sat4j.specs.*;
 import org.sat4j.minisat.*;
 import org.sat4j.reader.*;
@@ -20,6 +26,8 @@ import org.sat4j.reader.*;
 import apryraz.eworld.*;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import org.junit.*;
 
@@ -44,7 +52,10 @@ public class EnvelopeFinderTest {
                                    EFState targetState) throws
             IOException, ContradictionException, TimeoutException {
         eAgent.runNextStep();
-        assertEquals(targetState, eAgent.getState());
+        EFState state = eAgent.getState();
+        if (!targetState.equals(state)) {
+            fail("Positions with a wrong state: " + targetState.diff(state));
+        }
     }
 
 
@@ -122,6 +133,35 @@ public class EnvelopeFinderTest {
      **/
     public void testMakeSeqOfSteps(int wDim, int numSteps, String fileSteps, String fileStates, String fileEnvelopes)
             throws IOException, ContradictionException, TimeoutException {
+        testMakeSeqOfSteps(wDim, numSteps, fileSteps, fileStates, fileEnvelopes, EnvelopeFinder::new);
+    }
+
+    /**
+     * Creates the agent to test in a world, configured with the modes under
+     * test.
+     **/
+    interface AgentFactory {
+        EnvelopeFinder create(int wDim, EnvelopeWorldEnv envAgent) throws IOException;
+    }
+
+    /**
+     * Run the sequence of steps of fileSteps with an agent created by the
+     * given factory, checking the state after every step, and stop the
+     * threads of the agent at the end.
+     *
+     * @param wDim          the dimension of world
+     * @param numSteps      num of steps to perform
+     * @param fileSteps     file name with sequence of steps to perform
+     * @param fileStates    file name with sequence of target states
+     * @param fileEnvelopes file name with the position of the envelopes
+     * @param factory       creates the agent to test
+     * @throws IOException            IoException error
+     * @throws ContradictionException contradiction error
+     * @throws TimeoutException       time out exception
+     **/
+    public void testMakeSeqOfSteps(int wDim, int numSteps, String fileSteps, String fileStates, String fileEnvelopes,
+                                   AgentFactory factory)
+            throws IOException, ContradictionException, TimeoutException {
         EnvelopeFinder eAgent;
         // load information about the World into the EnvAgent
         EnvelopeWorldEnv envAgent;
@@ -129,19 +169,37 @@ public class EnvelopeFinderTest {
         ArrayList<EFState> seqOfStates = loadListOfTargetStates(wDim, numSteps, fileStates);
 
         envAgent = new EnvelopeWorldEnv(wDim, fileEnvelopes);
-        eAgent = new EnvelopeFinder(wDim, envAgent);
-
+        eAgent = factory.create(wDim, envAgent);
 
         // Set environment agent and load list of steps into the finder agent
         eAgent.loadListOfSteps(numSteps, fileSteps);
 
         // Test here the sequence of steps and check the resulting states with the
         // ones in seqOfStates
-        for (int i = 0; i < numSteps; i++) {
-            testMakeSimpleStep(eAgent, seqOfStates.get(i));
+        try {
+            for (int i = 0; i < numSteps; i++) {
+                testMakeSimpleStep(eAgent, seqOfStates.get(i));
+            }
+        } finally {
+            eAgent.shutdown();
         }
     }
 
+    /**
+     * Run the four example worlds with agents created by the given factory.
+     *
+     * @param factory creates the agent to test
+     * @throws IOException            IoException error
+     * @throws ContradictionException contradiction error
+     * @throws TimeoutException       time out exception
+     **/
+    public void testAllWorlds(AgentFactory factory) throws
+            IOException, ContradictionException, TimeoutException {
+        testMakeSeqOfSteps(5, 5, "tests/steps1.txt", "tests/states1.txt", "tests/envelopes1.txt", factory);
+        testMakeSeqOfSteps(5, 7, "tests/steps2.txt", "tests/states2.txt", "tests/envelopes2.txt", factory);
+        testMakeSeqOfSteps(7, 6, "tests/steps3.txt", "tests/states3.txt", "tests/envelopes3.txt", factory);
+        testMakeSeqOfSteps(7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt", factory);
+    }
 
     @Test
     public void TWorldTest1() throws
@@ -171,4 +229,464 @@ public class EnvelopeFinderTest {
         testMakeSeqOfSteps(7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt");
     }
 
+    @Test
+    public void TWorldTestsBackends() throws
+            IOException, ContradictionException, TimeoutException {
+        for (SolverBackend backend : SolverBackend.values()) {
+            testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.FULL, GammaMode.STANDARD,
+                    backend));
+            testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.INCREMENTAL, GammaMode.TEMPLATE,
+                    backend));
+            testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.BACKBONE, GammaMode.COMPACT,
+                    backend));
+            testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.PARALLEL, GammaMode.LAZY,
+                    backend));
+        }
+        InferenceBackend lightThenGlucose = SolverBackend.forName("light,glucose");
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.INCREMENTAL, GammaMode.STANDARD,
+                lightThenGlucose));
+    }
+
+    @Test
+    public void TBackendNames() {
+        assertEquals(SolverBackend.GLUCOSE, SolverBackend.forName("Glucose"));
+        assertEquals("default,mini_learning_heap", SolverBackend.forName("default, mini_learning_heap").getName());
+        try {
+            SolverBackend.forName("minisat");
+            fail("Unknown backend accepted");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("minisat"));
+        }
+    }
+
+    @Test
+    public void TPortfolioSolversShareThreads() throws ContradictionException, TimeoutException {
+        // Solvers dropped without any cleanup must not keep their threads
+        for (int k = 0; k < 100; k++) {
+            ISolver solver = SolverBackend.PORTFOLIO.newSolver();
+            solver.newVar(2);
+            solver.addClause(new VecInt(new int[]{1, 2}));
+            assertTrue(solver.isSatisfiable(new VecInt(new int[]{-1})));
+        }
+        int portfolioThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("eworld-portfolio")) {
+                portfolioThreads++;
+            }
+        }
+        assertTrue(portfolioThreads < 30);  // not 3 per solver
+    }
+
+    @Test
+    public void TWorldTestsIncremental() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.INCREMENTAL));
+    }
+
+    @Test
+    public void TWorldTestsBackbone() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.BACKBONE));
+    }
+
+    @Test
+    public void TWorldTestsBitset() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.BITSET));
+    }
+
+    @Test
+    public void TWorldTestsTiled() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.TILED));
+        // Tiles smaller than the readings, so positions depend on evidence of other tiles
+        for (int size = 1; size <= 4; size++) {
+            int tileSize = size;
+            testMakeSeqOfSteps(7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt", (wDim, env) -> {
+                EnvelopeFinder eAgent = new EnvelopeFinder(wDim, env, InferenceMode.TILED);
+                eAgent.setTileSize(tileSize);
+                return eAgent;
+            });
+        }
+    }
+
+    @Test
+    public void TBitsetLargeWorld() throws
+            IOException, ContradictionException, TimeoutException {
+        // A world of 100 million positions: the agent only has packed bits per position
+        File envelopes = File.createTempFile("envelopes", ".txt");
+        File steps = File.createTempFile("steps", ".txt");
+        envelopes.deleteOnExit();
+        steps.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(envelopes)) {
+            out.print("5000,5003 10,10 10000,10000");
+        }
+        try (PrintWriter out = new PrintWriter(steps)) {
+            out.print("1,1 5000,5000 5001,5000 5002,5001 9999,9999 10000,10000");
+        }
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(10000, envelopes.getPath(), OutputSink.silent());
+        EnvelopeFinder eAgent = new EnvelopeFinder(10000, envAgent, InferenceMode.BITSET);
+        assertTrue(eAgent.pendingMark == null);
+        eAgent.loadListOfSteps(6, steps.getPath());
+        for (int i = 0; i < 6; i++) {
+            eAgent.runNextStep();
+        }
+        EFState state = eAgent.getState();
+        assertTrue(state.isEmpty(1, 1) && state.isEmpty(2, 2) && state.isEmpty(5000, 5000));
+        assertTrue(state.isEmpty(5003, 5001) && !state.isEmpty(5000, 5003) && !state.isEmpty(10000, 10000));
+        assertEquals(10000L * 10000 - state.emptyCount(), state.unknownCount());
+    }
+
+    @Test
+    public void TTiledLargeWorld() throws
+            IOException, ContradictionException, TimeoutException {
+        // A world of 9 million positions, where the agent only senses around (1500,1500)
+        File envelopes = File.createTempFile("envelopes", ".txt");
+        File steps = File.createTempFile("steps", ".txt");
+        envelopes.deleteOnExit();
+        steps.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(envelopes)) {
+            out.print("1500,1503 10,10");
+        }
+        try (PrintWriter out = new PrintWriter(steps)) {
+            out.print("1500,1500 1501,1500 1502,1500 1502,1501 1502,1502 1502,1503");
+        }
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(3000, envelopes.getPath(), OutputSink.silent());
+        EnvelopeFinder tiled = new EnvelopeFinder(3000, envAgent, InferenceMode.TILED);
+        EnvelopeFinder bitset = new EnvelopeFinder(3000, envAgent, InferenceMode.BITSET);
+        tiled.loadListOfSteps(6, steps.getPath());
+        bitset.loadListOfSteps(6, steps.getPath());
+        for (int i = 0; i < 6; i++) {
+            tiled.runNextStep();
+            bitset.runNextStep();
+            assertEquals(bitset.getState(), tiled.getState());
+        }
+        assertTrue(tiled.getState().emptyCount() > 0);
+        assertEquals(1, tiled.tiledInference.getCreatedTiles());
+    }
+
+    @Test
+    public void TWorldTestsComponents() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.COMPONENTS));
+    }
+
+    @Test
+    public void TComponentsAreIndependent() throws
+            IOException, ContradictionException, TimeoutException {
+        // Envelopes left and right of (4,4): readings 1, 3 and 5 give three separate components
+        File envelopes = File.createTempFile("envelopes", ".txt");
+        File steps = File.createTempFile("steps", ".txt");
+        envelopes.deleteOnExit();
+        steps.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(envelopes)) {
+            out.print("4,3 4,5");
+        }
+        try (PrintWriter out = new PrintWriter(steps)) {
+            out.print("4,4 5,4");
+        }
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, envelopes.getPath(), OutputSink.silent());
+        EnvelopeFinder components = new EnvelopeFinder(7, envAgent, InferenceMode.COMPONENTS);
+        EnvelopeFinder bitset = new EnvelopeFinder(7, envAgent, InferenceMode.BITSET);
+        components.setParallelism(3);
+        components.loadListOfSteps(2, steps.getPath());
+        bitset.loadListOfSteps(2, steps.getPath());
+        components.runNextStep();
+        bitset.runNextStep();
+        assertEquals(bitset.getState(), components.getState());
+        assertEquals(3, components.componentInference.getLastComponents());
+        assertEquals(7, components.getState().emptyCount());
+        components.runNextStep();
+        bitset.runNextStep();
+        assertEquals(bitset.getState(), components.getState());
+        components.shutdown();
+    }
+
+    @Test
+    public void TRemoteEnvironment() throws
+            IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt", OutputSink.silent());
+        try (EnvironmentServer server = new EnvironmentServer(envAgent,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             RemoteEnvelopeWorldEnv remote = new RemoteEnvelopeWorldEnv(server.getAddress(), OutputSink.silent())) {
+            EnvelopeFinder eAgent = new EnvelopeFinder(7, remote, InferenceMode.INCREMENTAL);
+            eAgent.loadListOfSteps(12, "tests/steps4.txt");
+            for (int i = 0; i < 12; i++) {
+                testMakeSimpleStep(eAgent, seqOfStates.get(i));
+            }
+            assertEquals(24, server.getMessages());
+        }
+    }
+
+    @Test
+    public void TPipelinedStepsMatchSerial() throws
+            IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt", OutputSink.silent());
+        try (EnvironmentServer server = new EnvironmentServer(envAgent,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             RemoteEnvelopeWorldEnv remote = new RemoteEnvelopeWorldEnv(server.getAddress(), OutputSink.silent())) {
+            EnvelopeFinder eAgent = new EnvelopeFinder(7, remote, InferenceMode.INCREMENTAL);
+            eAgent.setPipelineDepth(4);
+            eAgent.loadListOfSteps(12, "tests/steps4.txt");
+            for (int i = 0; i < 12; i++) {
+                testMakeSimpleStep(eAgent, seqOfStates.get(i));
+            }
+            eAgent.shutdown();
+        }
+        // Moves out of the world, steps streamed, and steps after the last one
+        File steps = File.createTempFile("steps", ".txt");
+        steps.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(steps)) {
+            out.print("1,1 0,5 2,2 9,9 3,3 3,8 5,5 6,6");
+        }
+        EnvelopeFinder serial = new EnvelopeFinder(7, envAgent, InferenceMode.INCREMENTAL);
+        EnvelopeFinder pipelined = new EnvelopeFinder(7, envAgent, InferenceMode.INCREMENTAL);
+        pipelined.setPipelineDepth(2);
+        serial.streamListOfSteps(8, steps.getPath());
+        pipelined.streamListOfSteps(8, steps.getPath());
+        for (int i = 0; i < 10; i++) {
+            serial.runNextStep();
+            pipelined.runNextStep();
+            assertEquals(serial.getState(), pipelined.getState());
+            assertEquals(serial.agentX, pipelined.agentX);
+            assertEquals(serial.agentY, pipelined.agentY);
+        }
+        // The steps ran out: the pipeline is not started again
+        assertTrue(pipelined.pipeline == null);
+        pipelined.shutdown();
+        // A bad step is reported by the agent thread, after the valid ones
+        try (PrintWriter out = new PrintWriter(steps)) {
+            out.print("1,1 2,2 3;3 4,4");
+        }
+        pipelined = new EnvelopeFinder(7, envAgent, InferenceMode.INCREMENTAL);
+        pipelined.setPipelineDepth(2);
+        pipelined.streamListOfSteps(4, steps.getPath());
+        pipelined.runNextStep();
+        pipelined.runNextStep();
+        try {
+            pipelined.runNextStep();
+            fail("Bad step accepted");
+        } catch (UncheckedIOException ex) {
+            assertTrue(ex.getMessage().contains("expected ','"));
+        } finally {
+            pipelined.shutdown();
+        }
+    }
+
+    @Test
+    public void TWorldTestsParallel() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.PARALLEL));
+    }
+
+    @Test
+    public void TStreamedSteps() throws
+            IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt");
+        EnvelopeFinder eAgent = new EnvelopeFinder(7, envAgent, InferenceMode.INCREMENTAL);
+        eAgent.streamListOfSteps(12, "tests/steps4.txt");
+        for (int i = 0; i < 12; i++) {
+            testMakeSimpleStep(eAgent, seqOfStates.get(i));
+        }
+        assertTrue(eAgent.listOfSteps.isEmpty());
+        assertEquals("NOMESSAGE", eAgent.moveToNext().getComp(0));
+    }
+
+    @Test
+    public void TParallelReplicasInSync() throws
+            IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt");
+        EnvelopeFinder eAgent = new EnvelopeFinder(7, envAgent);
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        for (int i = 0; i < 12; i++) {
+            if (i == 4) {
+                // Replicas created in the middle of the run must catch up
+                eAgent.setParallelism(3);
+                eAgent.setInferenceMode(InferenceMode.PARALLEL);
+            }
+            testMakeSimpleStep(eAgent, seqOfStates.get(i));
+        }
+        eAgent.shutdown();
+    }
+
+    @Test
+    public void TWorldTestsLazyGamma() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.FULL, GammaMode.LAZY));
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.INCREMENTAL, GammaMode.LAZY));
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.BACKBONE, GammaMode.LAZY));
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.PARALLEL, GammaMode.LAZY));
+    }
+
+    @Test
+    public void TWorldTestsCompactGamma() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.FULL, GammaMode.COMPACT));
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.INCREMENTAL, GammaMode.COMPACT));
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.BACKBONE, GammaMode.COMPACT));
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.PARALLEL, GammaMode.COMPACT));
+    }
+
+    @Test
+    public void TWorldTestsGammaTemplate() throws
+            IOException, ContradictionException, TimeoutException {
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.FULL, GammaMode.TEMPLATE));
+        testAllWorlds((wDim, env) -> new EnvelopeFinder(wDim, env, InferenceMode.PARALLEL, GammaMode.TEMPLATE));
+    }
+
+    @Test
+    public void TGammaTemplateSameFormula() throws IOException {
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt");
+        EnvelopeFinder standard = new EnvelopeFinder(7, envAgent, InferenceMode.FULL, GammaMode.STANDARD);
+        EnvelopeFinder template = new EnvelopeFinder(7, envAgent, InferenceMode.FULL, GammaMode.TEMPLATE);
+        assertEquals(standard.solver.nVars(), template.solver.nVars());
+        assertEquals(standard.solver.nConstraints(), template.solver.nConstraints());
+        assertEquals(standard.ReadFiveOffset, template.ReadFiveOffset);
+        assertTrue(GammaTemplate.forDimension(7) == GammaTemplate.forDimension(7));
+    }
+
+    @Test
+    public void TBackboneSolverCalls() throws
+            IOException, ContradictionException, TimeoutException {
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt");
+        EnvelopeFinder fullAgent = new EnvelopeFinder(7, envAgent);
+        EnvelopeFinder backboneAgent = new EnvelopeFinder(7, envAgent);
+        backboneAgent.setInferenceMode(InferenceMode.BACKBONE);
+        fullAgent.loadListOfSteps(12, "tests/steps4.txt");
+        backboneAgent.loadListOfSteps(12, "tests/steps4.txt");
+        for (int i = 0; i < 12; i++) {
+            fullAgent.runNextStep();
+            backboneAgent.runNextStep();
+            assertEquals(49, fullAgent.getSolverCallsLastStep());
+            assertTrue(backboneAgent.getSolverCallsLastStep() < fullAgent.getSolverCallsLastStep());
+        }
+        assertEquals(fullAgent.getState(), backboneAgent.getState());
+    }
+
+    @Test
+    public void TEFStateDiffAndCounts() {
+        EFState a = new EFState(9);
+        EFState b = new EFState(9);
+        assertEquals(81, a.unknownCount());
+        a.set(1, 9, "X");
+        a.set(8, 2, "X");
+        a.set(8, 2, "X");
+        assertEquals(79, a.unknownCount());
+        assertEquals("X", a.getPositionState(8, 2));
+        assertEquals("?", a.getPositionState(2, 8));
+        assertEquals(2, a.diff(b).size());
+        assertEquals(new Position(1, 9), a.diff(b).get(0));
+        assertEquals(new Position(8, 2), b.diff(a).get(1));
+
+        b.set(8, 2, "X");
+        b.set(1, 9, "X");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertTrue(a.diff(b).isEmpty());
+        b.set(1, 9, "?");
+        assertEquals(80, b.unknownCount());
+        assertTrue(!a.equals(b) && !a.equals(new EFState(8)));
+    }
+
+    /**
+     * Run the steps of a world in ANYTIME mode with the given budget,
+     * waiting for the complete knowledge only after some of the steps, and
+     * check that the state is always sound, and complete after waiting.
+     **/
+    public void testAnytimeSteps(int wDim, int numSteps, String fileSteps, String fileStates,
+                                 String fileEnvelopes, long budgetNanos) throws
+            IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(wDim, numSteps, fileStates);
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(wDim, fileEnvelopes, OutputSink.silent());
+        EnvelopeFinder eAgent = new EnvelopeFinder(wDim, envAgent, InferenceMode.ANYTIME);
+        eAgent.setInferenceBudget(budgetNanos);
+        eAgent.loadListOfSteps(numSteps, fileSteps);
+        for (int i = 0; i < numSteps; i++) {
+            eAgent.runNextStep();
+            if (i % 3 == 2 || i == numSteps - 1) {
+                eAgent.waitForCompleteKnowledge();
+                assertEquals(seqOfStates.get(i), eAgent.getState());
+            }
+            for (Position p : seqOfStates.get(i).diff(eAgent.getState())) {
+                assertTrue("Unsound conclusion at " + p, !eAgent.getState().isEmpty(p.x, p.y));
+            }
+        }
+        eAgent.shutdown();
+    }
+
+    @Test
+    public void TAnytimeInference() throws
+            IOException, ContradictionException, TimeoutException {
+        // With no budget, all the positions are checked in the background
+        testAnytimeSteps(7, 12, "tests/steps4.txt", "tests/states4.txt", "tests/envelopes4.txt", 0);
+        testAnytimeSteps(7, 6, "tests/steps3.txt", "tests/states3.txt", "tests/envelopes3.txt", 0);
+        // With a budget that is never exhausted, the states are always complete
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt", OutputSink.silent());
+        EnvelopeFinder eAgent = new EnvelopeFinder(7, envAgent, InferenceMode.ANYTIME);
+        eAgent.setInferenceBudget(Long.MAX_VALUE);
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        for (int i = 0; i < 12; i++) {
+            testMakeSimpleStep(eAgent, seqOfStates.get(i));
+        }
+        assertTrue(eAgent.anytimeInference.refinement == null);
+        eAgent.shutdown();
+    }
+
+    @Test
+    public void TCompactionKeepsFormulaBounded() throws
+            IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        for (InferenceMode mode : new InferenceMode[]{InferenceMode.FULL, InferenceMode.INCREMENTAL,
+                InferenceMode.PARALLEL}) {
+            for (GammaMode gamma : new GammaMode[]{GammaMode.STANDARD, GammaMode.LAZY, GammaMode.COMPACT}) {
+                EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt", OutputSink.silent());
+                EnvelopeFinder eAgent = new EnvelopeFinder(7, envAgent, mode, gamma);
+                eAgent.setCompaction(true, 5);
+                // The steps of test 4, ten times
+                long[] clauses = new long[10];
+                int[] logged = new int[10];
+                for (int round = 0; round < 10; round++) {
+                    eAgent.loadListOfSteps(12, "tests/steps4.txt");
+                    for (int i = 0; i < 12; i++) {
+                        testMakeSimpleStep(eAgent, seqOfStates.get(round == 0 ? i : 11));
+                    }
+                    clauses[round] = eAgent.clausesAdded;
+                    logged[round] = eAgent.clauseLog.size();
+                }
+                assertEquals(24, eAgent.getSolverRebuilds());
+                // No clause is added after the first round, as nothing new is learned
+                assertEquals(clauses[1], clauses[9]);
+                assertEquals(logged[0], logged[9]);
+                eAgent.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void TClauseLogOnlyWhenNeeded() throws
+            IOException, ContradictionException, TimeoutException {
+        ArrayList<EFState> seqOfStates = loadListOfTargetStates(7, 12, "tests/states4.txt");
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt", OutputSink.silent());
+        EnvelopeFinder eAgent = new EnvelopeFinder(7, envAgent, InferenceMode.INCREMENTAL, GammaMode.LAZY);
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        for (int i = 0; i < 12; i++) {
+            if (i == 6) {
+                assertEquals(0, eAgent.clauseLog.size());
+                // The solver and the replicas are rebuilt without the log
+                eAgent.setCompaction(true, 2);
+                eAgent.setParallelism(2);
+                eAgent.setInferenceMode(InferenceMode.PARALLEL);
+            }
+            testMakeSimpleStep(eAgent, seqOfStates.get(i));
+        }
+        assertEquals(0, eAgent.clauseLog.size());
+        assertEquals(3, eAgent.getSolverRebuilds());
+        eAgent.shutdown();
+    }
+
 }
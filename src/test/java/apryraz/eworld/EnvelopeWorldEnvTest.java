@@ -0,0 +1,208 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.*;
+
+/**
+ * Class for testing the envelope index and the world files of the environment
+ **/
+public class EnvelopeWorldEnvTest {
+
+    /**
+     * Readings computed by checking every envelope with the Position
+     * functions, as the environment did before having an index.
+     **/
+    String bruteForceReadings(List<Position> envelopes, Position pos) {
+        char[] readings = {'0', '0', '0', '0', '0'};
+        for (Position envLoc : envelopes) {
+            if (pos.isOnTop(envLoc)) readings[0] = '1';
+            if (pos.isOnRight(envLoc)) readings[1] = '1';
+            if (pos.isOnBot(envLoc)) readings[2] = '1';
+            if (pos.isOnLeft(envLoc)) readings[3] = '1';
+            if (pos.isOnSite(envLoc)) readings[4] = '1';
+        }
+        return new String(readings);
+    }
+
+    @Test
+    public void TReadingsMatchBruteForce() throws IOException {
+        int wDim = 12;
+        Random random = new Random(7);
+        List<Position> envelopes = new ArrayList<>();
+        for (int k = 0; k < 15; k++) {
+            envelopes.add(new Position(random.nextInt(wDim) + 1, random.nextInt(wDim) + 1));
+        }
+        File file = File.createTempFile("envelopes", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file)) {
+            for (Position p : envelopes) {
+                out.print(p + " ");
+            }
+            out.println();
+        }
+        EnvelopeWorldEnv env = new EnvelopeWorldEnv(wDim, file.getPath());
+        for (int x = 1; x <= wDim; x++) {
+            for (int y = 1; y <= wDim; y++) {
+                Position pos = new Position(x, y);
+                assertEquals(bruteForceReadings(envelopes, pos), env.getPositionReadings(pos).getComp(3));
+            }
+        }
+    }
+
+    @Test
+    public void TDuplicatedEnvelopesAreRemoved() {
+        EnvelopeWorldEnv env = new EnvelopeWorldEnv(5, "tests/envelopes1.txt");
+        assertTrue(env.envelopeIndex.add(3, 3));
+        assertFalse(env.envelopeIndex.add(2, 2));
+        assertEquals(2, env.numEnvelopes);
+    }
+
+    @Test
+    public void TDenseAndSparseIndexAgree() {
+        Random random = new Random(11);
+        EnvelopeIndex dense = new EnvelopeIndex(50, true);
+        EnvelopeIndex sparse = new EnvelopeIndex(50, false);
+        for (int k = 0; k < 400; k++) {
+            int x = random.nextInt(52);
+            int y = random.nextInt(52);
+            assertEquals(dense.add(x, y), sparse.add(x, y));
+        }
+        assertEquals(dense.size(), sparse.size());
+        for (int x = -1; x <= 52; x++) {
+            for (int y = -1; y <= 52; y++) {
+                assertEquals(dense.contains(x, y), sparse.contains(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void TBinaryAndStringMessagesAgree() {
+        EnvelopeWorldEnv env = new EnvelopeWorldEnv(5, "tests/envelopes1.txt");
+        BinaryMessage request = new BinaryMessage();
+        BinaryMessage ans = new BinaryMessage();
+        for (int x = 0; x <= 6; x++) {
+            for (int y = 0; y <= 6; y++) {
+                for (int type : new int[]{BinaryMessage.MOVETO, BinaryMessage.DETECTSAT}) {
+                    env.acceptMessage(request.set(type, x, y, 0), ans);
+                    AMessage expected = env.acceptMessage(request.toAMessage());
+                    AMessage converted = ans.toAMessage();
+                    for (int c = 0; c < 4; c++) {
+                        assertEquals(expected.getComp(c), converted.getComp(c));
+                    }
+                    assertEquals(ans.getReadings(), new BinaryMessage().fromAMessage(converted).getReadings());
+                }
+            }
+        }
+        assertEquals(BinaryMessage.VOIDMSG,
+                new BinaryMessage().fromAMessage(env.acceptMessage(new AMessage("yes", "1", "1", ""))).getType());
+    }
+
+    @Test
+    public void TRemoteEnvironmentAgrees() throws IOException {
+        EnvelopeWorldEnv env = new EnvelopeWorldEnv(5, "tests/envelopes1.txt", OutputSink.silent());
+        try (EnvironmentServer server = new EnvironmentServer(env,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             RemoteEnvelopeWorldEnv first = new RemoteEnvelopeWorldEnv(server.getAddress(), OutputSink.silent());
+             RemoteEnvelopeWorldEnv second = new RemoteEnvelopeWorldEnv(server.getAddress(), OutputSink.silent())) {
+            assertEquals(5, first.WorldDim);
+            // A batch larger than the pipeline window, answered in order
+            int count = 2 * RemoteEnvelopeWorldEnv.MAX_PIPELINED + 3;
+            BinaryMessage[] requests = new BinaryMessage[count];
+            BinaryMessage[] answers = new BinaryMessage[count];
+            for (int k = 0; k < count; k++) {
+                int type = k % 2 == 0 ? BinaryMessage.MOVETO : BinaryMessage.DETECTSAT;
+                requests[k] = new BinaryMessage().set(type, k % 7, k / 7 % 7, 0);
+                answers[k] = new BinaryMessage();
+            }
+            first.acceptMessages(requests, answers);
+            BinaryMessage expected = new BinaryMessage();
+            BinaryMessage ans = new BinaryMessage();
+            for (int k = 0; k < count; k++) {
+                env.acceptMessage(requests[k], expected);
+                assertEquals(expected.getType(), answers[k].getType());
+                assertEquals(expected.getX(), answers[k].getX());
+                assertEquals(expected.getY(), answers[k].getY());
+                assertEquals(expected.getReadings(), answers[k].getReadings());
+            }
+            // Synchronous messages of two clients
+            for (int x = 1; x <= 5; x++) {
+                for (int y = 1; y <= 5; y++) {
+                    second.acceptMessage(new BinaryMessage().set(BinaryMessage.DETECTSAT, x, y, 0), ans);
+                    assertEquals(env.getReadingsMask(x, y), ans.getReadings());
+                    assertEquals(env.getReadingsMask(x, y), first.getReadingsMask(x, y));
+                }
+            }
+            assertEquals(count + 50, server.getMessages());
+            first.send(requests[0]);
+            try {
+                first.acceptMessage(requests[1], ans);
+                fail("Synchronous message with a pending answer");
+            } catch (IllegalStateException ex) {
+                assertEquals(1, first.getPendingAnswers());
+            }
+        }
+    }
+
+    /**
+     * Check that two environments give the same readings everywhere.
+     **/
+    void assertSameReadings(EnvelopeWorldEnv expected, EnvelopeWorldEnv env) {
+        assertEquals(expected.numEnvelopes, env.numEnvelopes);
+        for (int x = 1; x <= expected.WorldDim; x++) {
+            for (int y = 1; y <= expected.WorldDim; y++) {
+                assertEquals(expected.getReadingsMask(x, y), env.getReadingsMask(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void TBinaryWorldFiles() throws IOException {
+        for (int numEnvelopes : new int[]{0, 3, 200}) {  // 200: bitmap layout
+            File text = File.createTempFile("envelopes", ".txt");
+            File binary = File.createTempFile("world", ".bin");
+            text.deleteOnExit();
+            binary.deleteOnExit();
+            ParallelScalingReport.writeRandomPositions(text, numEnvelopes, 30, new Random(numEnvelopes));
+            EnvelopeWorldEnv fromText = new EnvelopeWorldEnv(30, text.getPath(), OutputSink.silent());
+            fromText.saveEnvelopeLocations(binary.getPath());
+            assertEquals(numEnvelopes == 200 ? WorldFile.BITMAP : WorldFile.COORDINATES,
+                    ByteBuffer.wrap(Files.readAllBytes(binary.toPath())).getInt(12));
+            assertSameReadings(fromText, new EnvelopeWorldEnv(30, binary.getPath(), OutputSink.silent()));
+        }
+
+        // Envelopes outside the world only fit in the coordinates layout
+        EnvelopeIndex index = new EnvelopeIndex(30);
+        for (int k = 0; k <= 30; k++) {
+            index.add(k, 1);
+        }
+        File binary = File.createTempFile("world", ".bin");
+        binary.deleteOnExit();
+        WorldFile.write(binary.toPath(), index);
+        EnvelopeIndex loaded = new EnvelopeIndex(30);
+        WorldFile.readInto(binary.toPath(), loaded);
+        assertEquals(31, loaded.size());
+        assertTrue(loaded.contains(0, 1) && loaded.contains(30, 1));
+        try {
+            WorldFile.readInto(binary.toPath(), new EnvelopeIndex(31));
+            fail("expected an exception");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("is for dimension 30, expected 31"));
+        }
+    }
+
+}
@@ -0,0 +1,111 @@
+package apryraz.eworld;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the runtime metrics of the agent and their histograms
+ **/
+public class FinderMetricsTest {
+
+    /**
+     * Run the steps of test 4 recording the metrics, and check the counters
+     * against the agent and the latencies of every phase.
+     **/
+    void checkMetrics(InferenceMode mode) throws Exception {
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt", OutputSink.silent());
+        EnvelopeFinder eAgent = new EnvelopeFinder(7, envAgent, mode);
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        FinderMetrics metrics = new FinderMetrics();
+        eAgent.setMetrics(metrics);
+        for (int i = 0; i < 12; i++) {
+            eAgent.runNextStep();
+        }
+        FinderMetrics.Snapshot snapshot = metrics.getSnapshot();
+        assertEquals(12, snapshot.getSteps());
+        assertEquals(eAgent.getTotalSolverCalls(), snapshot.getSatCalls());
+        assertEquals(eAgent.getState().emptyCount(), snapshot.getUnsatResults());
+        assertEquals(snapshot.getSatCalls(), snapshot.getSatResults() + snapshot.getUnsatResults());
+        assertTrue(snapshot.getClausesAdded() > 0 && snapshot.getHeapOccupiedBytes() > 0);
+        for (FinderMetrics.Phase phase : FinderMetrics.Phase.values()) {
+            FinderMetrics.PhaseStats stats = snapshot.phase(phase);
+            assertEquals(12, stats.getCount());
+            assertTrue(stats.getP50Nanos() <= stats.getP99Nanos() && stats.getP99Nanos() <= stats.getMaxNanos());
+        }
+        assertTrue(snapshot.phase(FinderMetrics.Phase.INFERENCE).getTotalNanos()
+                <= snapshot.phase(FinderMetrics.Phase.STEP).getTotalNanos());
+    }
+
+    @Test
+    public void TStepMetrics() throws Exception {
+        checkMetrics(InferenceMode.INCREMENTAL);
+        checkMetrics(InferenceMode.PARALLEL);
+    }
+
+    @Test
+    public void TAnytimeRefinementNotCountedInSteps() throws Exception {
+        // With no budget, every position is checked by the refinement in the background
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt", OutputSink.silent());
+        EnvelopeFinder eAgent = new EnvelopeFinder(7, envAgent, InferenceMode.ANYTIME);
+        eAgent.setInferenceBudget(0);
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        FinderMetrics metrics = new FinderMetrics();
+        eAgent.setMetrics(metrics);
+        for (int i = 0; i < 12; i++) {
+            eAgent.runNextStep();
+        }
+        eAgent.waitForCompleteKnowledge();
+        FinderMetrics.Snapshot snapshot = metrics.getSnapshot();
+        assertEquals(12, snapshot.getSteps());
+        assertEquals(0, snapshot.getSatCalls());
+        assertEquals(0, snapshot.getUnsatResults());
+        assertEquals(eAgent.getState().emptyCount(), eAgent.getRefinementUnsatCalls());
+        assertTrue(eAgent.getTotalSolverCalls() >= eAgent.getRefinementUnsatCalls());
+        eAgent.shutdown();
+    }
+
+    @Test
+    public void TMetricsThroughJmx() throws Exception {
+        FinderMetrics metrics = new FinderMetrics();
+        metrics.startStep();
+        metrics.endPhase(FinderMetrics.Phase.INFERENCE);
+        metrics.endStep(3, 1, 2, 1, null);
+        metrics.registerMBean("test");
+        try {
+            Object steps = ManagementFactory.getPlatformMBeanServer().getAttribute(metrics.getObjectName(), "Steps");
+            assertEquals(1L, steps);
+            Object satCalls = ManagementFactory.getPlatformMBeanServer().getAttribute(metrics.getObjectName(), "SatCalls");
+            assertEquals(3L, satCalls);
+            ManagementFactory.getPlatformMBeanServer().getAttribute(metrics.getObjectName(), "Snapshot");
+        } finally {
+            metrics.unregisterMBean();
+        }
+        assertTrue(!ManagementFactory.getPlatformMBeanServer().isRegistered(
+                new javax.management.ObjectName("apryraz.eworld:type=FinderMetrics,name=\"test\"")));
+    }
+
+    @Test
+    public void THistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.99));
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1000000, histogram.getMax());
+        long p50 = histogram.percentile(0.5);
+        long p99 = histogram.percentile(0.99);
+        // Relative error below 1/32
+        assertTrue(p50 >= 500000 && p50 <= 500000 + 500000 / 32);
+        assertTrue(p99 >= 990000 && p99 <= 990000 + 990000 / 32);
+        assertEquals(1000000, histogram.percentile(1));
+        for (long value : new long[]{0, 31, 32, 33, 1000, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket < LatencyHistogram.NUM_BUCKETS && value <= LatencyHistogram.highestValueOf(bucket));
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package apryraz.eworld;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.sat4j.minisat.SolverFactory;
+import org.sat4j.reader.DimacsReader;
+import org.sat4j.reader.ParseFormatException;
+import org.sat4j.specs.*;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.*;
+
+/**
+ * Class for testing the binary and DIMACS files of GammaTemplate
+ **/
+public class GammaTemplateTest {
+
+    Path dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = Files.createTempDirectory("gamma");
+    }
+
+    @After
+    public void removeDir() throws IOException {
+        GammaTemplate.setDiskCacheDir(null);
+        GammaTemplate.clearCache();
+        for (Path file : Files.newDirectoryStream(dir)) {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void TBinaryFileRoundTrip() throws IOException {
+        GammaTemplate template = new GammaTemplate(6);
+        Path file = dir.resolve("gamma6.bin");
+        template.writeTo(file);
+        GammaTemplate loaded = GammaTemplate.readFrom(file, 6);
+        assertEquals(template.getNumVariables(), loaded.getNumVariables());
+        assertArrayEquals(template.clauseStart, loaded.clauseStart);
+        assertArrayEquals(template.literals, loaded.literals);
+    }
+
+    @Test(expected = IOException.class)
+    public void TRejectOtherDimension() throws IOException {
+        Path file = dir.resolve("gamma6.bin");
+        new GammaTemplate(6).writeTo(file);
+        GammaTemplate.readFrom(file, 7);
+    }
+
+    @Test(expected = IOException.class)
+    public void TRejectOtherVersion() throws IOException {
+        Path file = dir.resolve("gamma6.bin");
+        new GammaTemplate(6).writeTo(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(Integer.BYTES);
+            raf.writeInt(GammaTemplate.ENCODING_VERSION + 1);
+        }
+        GammaTemplate.readFrom(file, 6);
+    }
+
+    @Test(expected = IOException.class)
+    public void TRejectTruncatedFile() throws IOException {
+        Path file = dir.resolve("gamma6.bin");
+        new GammaTemplate(6).writeTo(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() - Integer.BYTES);
+        }
+        GammaTemplate.readFrom(file, 6);
+    }
+
+    @Test
+    public void TRejectCorruptedContents() throws IOException {
+        Path file = dir.resolve("gamma6.bin");
+        GammaTemplate template = new GammaTemplate(6);
+        long literalsStart = GammaTemplate.HEADER_BYTES + (template.getNumClauses() + 1L) * Integer.BYTES;
+        // Number of variables of the header, a literal out of range and a zero literal
+        long[] positions = {3 * Integer.BYTES, literalsStart + 5 * Integer.BYTES, literalsStart};
+        int[] values = {7 * 6 * 6 + 1, -(7 * 6 * 6 + 1), 0};
+        for (int k = 0; k < positions.length; k++) {
+            template.writeTo(file);
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.seek(positions[k]);
+                raf.writeInt(values[k]);
+            }
+            try {
+                GammaTemplate.readFrom(file, 6);
+                fail("Corrupted file accepted");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage().contains(file.toString()));
+            }
+        }
+    }
+
+    @Test
+    public void TLoadSavedGamma() throws IOException {
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(5, "tests/envelopes1.txt", OutputSink.silent());
+        Path file = dir.resolve("saved.bin");
+        new EnvelopeFinder(5, envAgent).saveGamma(file.toString());
+        GammaTemplate.clearCache();
+        EnvelopeFinder.loadGamma(file.toString(), 5);
+        GammaTemplate loaded = GammaTemplate.cache.get(5);
+        assertArrayEquals(new GammaTemplate(5).literals, loaded.literals);
+        EnvelopeFinder standard = new EnvelopeFinder(5, envAgent, InferenceMode.FULL, GammaMode.STANDARD);
+        EnvelopeFinder template = new EnvelopeFinder(5, envAgent, InferenceMode.FULL, GammaMode.TEMPLATE);
+        assertTrue(GammaTemplate.forDimension(5) == loaded);
+        assertEquals(standard.solver.nConstraints(), template.solver.nConstraints());
+    }
+
+    @Test
+    public void TDiskCacheStoresAndReplacesStaleFiles() throws IOException {
+        GammaTemplate.setDiskCacheDir(dir);
+        Path file = dir.resolve(GammaTemplate.fileName(5));
+        Files.write(file, new byte[]{1, 2, 3});
+        GammaTemplate generated = GammaTemplate.forDimension(5);
+        GammaTemplate.clearCache();
+        GammaTemplate loaded = GammaTemplate.forDimension(5);
+        assertTrue(generated != loaded);
+        assertArrayEquals(generated.literals, loaded.literals);
+    }
+
+    @Test
+    public void TDimacsExport() throws IOException, ParseFormatException, ContradictionException {
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(5, "tests/envelopes1.txt");
+        EnvelopeFinder eAgent = new EnvelopeFinder(5, envAgent);
+        Path file = dir.resolve("gamma5.cnf");
+        eAgent.exportGammaDimacs(file.toString());
+        IProblem problem = new DimacsReader(SolverFactory.newDefault()).parseInstance(file.toString());
+        assertEquals(eAgent.solver.nVars(), problem.nVars());
+        assertEquals(eAgent.solver.nConstraints(), problem.nConstraints());
+    }
+
+}
@@ -0,0 +1,54 @@
+package apryraz.eworld;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the stream of knowledge events of the agent
+ **/
+public class KnowledgeEventStreamTest {
+
+    /**
+     * Run the steps of test 4 writing the events, and check after every
+     * step that the state rebuilt from the events is the one of the agent.
+     **/
+    void checkEvents(KnowledgeEventStream.Format format, InferenceMode mode) throws Exception {
+        EnvelopeWorldEnv envAgent = new EnvelopeWorldEnv(7, "tests/envelopes4.txt", OutputSink.silent());
+        EnvelopeFinder eAgent = new EnvelopeFinder(7, envAgent, mode);
+        eAgent.loadListOfSteps(12, "tests/steps4.txt");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        KnowledgeEventStream events = new KnowledgeEventStream(bytes, format, 7);
+        eAgent.setEventStream(events);
+        for (int i = 0; i < 12; i++) {
+            eAgent.runNextStep();
+            events.flush();
+            assertEquals(eAgent.getState(), KnowledgeEventStream.readState(new ByteArrayInputStream(bytes.toByteArray())));
+        }
+        events.close();
+        if (format == KnowledgeEventStream.Format.BINARY) {
+            // 13 bytes per step plus about one byte per new position
+            int empty = eAgent.getState().emptyCount();
+            assertTrue(bytes.size() <= 12 + 12 * 14 + 2 * empty);
+        } else {
+            assertTrue(bytes.toString("UTF-8").startsWith("{\"dim\":7}\n{\"step\":1,\"x\":1,\"y\":1,\"readings\":\""));
+        }
+    }
+
+    @Test
+    public void TBinaryEvents() throws Exception {
+        checkEvents(KnowledgeEventStream.Format.BINARY, InferenceMode.INCREMENTAL);
+        checkEvents(KnowledgeEventStream.Format.BINARY, InferenceMode.BITSET);
+    }
+
+    @Test
+    public void TNdjsonEvents() throws Exception {
+        checkEvents(KnowledgeEventStream.Format.NDJSON, InferenceMode.FULL);
+        checkEvents(KnowledgeEventStream.Format.NDJSON, InferenceMode.PARALLEL);
+    }
+
+}
@@ -0,0 +1,54 @@
+package apryraz.eworld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.*;
+
+/**
+ * Class for testing the output levels and the asynchronous OutputSink
+ **/
+public class OutputSinkTest {
+
+    /**
+     * Run the steps of test 4 writing the output in a sink of the given
+     * level, and return the text written.
+     **/
+    String runWithOutput(OutputLevel level, boolean async) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputSink output = new OutputSink(level, new PrintStream(bytes, true, "UTF-8"), async);
+        EnvelopeWorld.runStepsSequence(7, 10, "tests/steps4.txt", "tests/envelopes4.txt",
+                new EnvelopeWorld.RunOptions().setOutput(output));
+        output.close();
+        return bytes.toString("UTF-8");
+    }
+
+    @Test
+    public void TAsyncFullOutputIsIdentical() throws Exception {
+        PrintStream console = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true, "UTF-8"));
+        try {
+            EnvelopeWorld.runStepsSequence(7, 10, "tests/steps4.txt", "tests/envelopes4.txt");
+        } finally {
+            System.setOut(console);
+        }
+        String expected = bytes.toString("UTF-8");
+        assertEquals(expected, runWithOutput(OutputLevel.FULL, true));
+        assertEquals(expected, runWithOutput(OutputLevel.FULL, false));
+    }
+
+    @Test
+    public void TOutputLevels() throws Exception {
+        assertEquals("", runWithOutput(OutputLevel.SILENT, true));
+        String summary = runWithOutput(OutputLevel.SUMMARY, true);
+        assertEquals(4, summary.split(OutputSink.EOL).length);
+        assertTrue(summary.endsWith("FINDER => 10 steps performed, 18 positions still unknown" + OutputSink.EOL));
+        String step = runWithOutput(OutputLevel.STEP, true);
+        assertTrue(step.contains("FINDER => detecting at : (") && !step.contains("Printing Envelope world matrix"));
+    }
+
+}
@@ -0,0 +1,70 @@
+package apryraz.eworld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.*;
+
+/**
+ * Class for testing the streaming reader of steps files
+ **/
+public class StepSourceTest {
+
+    File writeSteps(String contents) throws IOException {
+        File file = File.createTempFile("steps", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file)) {
+            out.print(contents);
+        }
+        return file;
+    }
+
+    @Test
+    public void TStepsAcrossBuffers() throws IOException {
+        Random random = new Random(3);
+        int numSteps = 40000;  // several buffers of the source
+        int[] xs = new int[numSteps];
+        int[] ys = new int[numSteps];
+        StringBuilder contents = new StringBuilder();
+        for (int k = 0; k < numSteps; k++) {
+            xs[k] = random.nextInt(1000) + 1;
+            ys[k] = random.nextInt(1000) + 1;
+            contents.append(xs[k]).append(',').append(ys[k]).append(k % 7 == 0 ? "  " : " ");
+        }
+        contents.append("\n5,5 6,6\n");  // only the first line has steps
+        File file = writeSteps(contents.toString());
+
+        try (StepSource steps = new StepSource(file.getPath(), Long.MAX_VALUE)) {
+            for (int k = 0; k < numSteps; k++) {
+                assertTrue(steps.next());
+                assertEquals(xs[k], steps.getX());
+                assertEquals(ys[k], steps.getY());
+            }
+            assertFalse(steps.next());
+            assertEquals(numSteps, steps.getStepsRead());
+        }
+        try (StepSource steps = new StepSource(file.getPath(), 3)) {
+            assertTrue(steps.next() && steps.next() && steps.next());
+            assertFalse(steps.next());
+        }
+    }
+
+    @Test
+    public void TInvalidSteps() throws IOException {
+        try (StepSource steps = new StepSource(writeSteps("1,1 2;2").getPath(), 10)) {
+            assertTrue(steps.next());
+            steps.next();
+            fail("expected an exception");
+        } catch (IOException ex) {
+            assertEquals("Invalid steps file at byte 5: expected ','", ex.getMessage());
+        }
+    }
+
+}